@@ -0,0 +1,102 @@
+package com.uddernetworks.holysheet;
+
+import com.google.api.services.drive.model.FileList;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Iterates the pages of a Drive listing as they are needed. Once a page is returned, the following one is requested in
+ * the background, so a consumer handling a page doesn't then wait for the next one to be listed. Only the page being
+ * handled and the one being listed are held at once.
+ */
+class PageIterator implements Iterator<FileList>, AutoCloseable {
+
+    private static final ExecutorService LIST_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "SheetManager-list");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Counter STALLS = Metrics.counter("holysheet_list_page_stalls_total",
+            "Streamed listings that waited for a page still being listed");
+
+    private final PageFetcher fetcher;
+    private CompletableFuture<FileList> next;
+    private boolean closed;
+
+    /**
+     * @param fetcher   Lists the page of a token
+     * @param pageToken The token of the first page, or null to start at the beginning
+     */
+    PageIterator(PageFetcher fetcher, String pageToken) {
+        this.fetcher = fetcher;
+        this.next = fetch(pageToken);
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        return !closed && next != null;
+    }
+
+    @Override
+    public synchronized FileList next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (!next.isDone()) {
+            STALLS.inc();
+        }
+
+        FileList page;
+        try {
+            page = next.join();
+        } catch (CompletionException e) {
+            next = null;
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+
+            throw e;
+        }
+
+        next = page.getNextPageToken() == null ? null : fetch(page.getNextPageToken());
+        return page;
+    }
+
+    /**
+     * Stops listing, abandoning the page being listed if there is one.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    private CompletableFuture<FileList> fetch(String pageToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetch(pageToken);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, LIST_EXECUTOR);
+    }
+
+    @FunctionalInterface
+    interface PageFetcher {
+        FileList fetch(String pageToken) throws IOException;
+    }
+}
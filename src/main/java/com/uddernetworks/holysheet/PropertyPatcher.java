@@ -0,0 +1,117 @@
+package com.uddernetworks.holysheet;
+
+import com.google.api.client.util.Data;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends property changes to Drive as patches of only the changed keys, which Drive merges into a file's existing
+ * properties, so no change needs the file's current properties read first and no change overwrites another's keys.
+ * <p>
+ * Each file has at most one patch in flight. Changes made to a file while its patch is in flight are coalesced into the
+ * next patch, which the thread that sent the previous one sends once it completes; every caller returns once a patch
+ * holding its changes has been applied. Files are assigned to lock stripes by ID, so changes to different files don't
+ * contend.
+ */
+class PropertyPatcher {
+
+    private static final int STRIPES = 16;
+
+    private static final Counter PATCHES = Metrics.counter("holysheet_property_patches_total",
+            "Property patches sent to Drive");
+    private static final Counter COALESCED = Metrics.counter("holysheet_property_changes_coalesced_total",
+            "Property changes sent as part of another change's patch");
+
+    private final Drive drive;
+    private final Object[] stripes = new Object[STRIPES];
+    private final Map<String, FileState> states = new ConcurrentHashMap<>();
+
+    PropertyPatcher(Drive drive) {
+        this.drive = drive;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Adds or overwrites properties of a file, returning once they have been applied.
+     *
+     * @param id         The ID of the file
+     * @param properties The properties to add or overwrite, where a null value removes the property
+     * @throws IOException If the patch holding the properties failed
+     */
+    void patch(String id, Map<String, String> properties) throws IOException {
+        var stripe = stripes[(id.hashCode() & 0x7FFFFFFF) % STRIPES];
+        Patch patch;
+        Patch send = null;
+
+        synchronized (stripe) {
+            var state = states.computeIfAbsent(id, $ -> new FileState());
+            if (state.next == null) {
+                state.next = new Patch();
+            } else {
+                COALESCED.inc();
+            }
+
+            patch = state.next;
+            properties.forEach((key, value) -> patch.properties.put(key, value == null ? Data.NULL_STRING : value));
+
+            if (!state.sending) {
+                state.sending = true;
+                state.next = null;
+                send = patch;
+            }
+        }
+
+        // The sending thread keeps sending the changes made meanwhile, so a file's patches are applied in order
+        while (send != null) {
+            try {
+                PATCHES.inc();
+                long start = System.nanoTime();
+                drive.files().update(id, new File().setProperties(send.properties)).setFields("id").execute();
+                Metrics.DRIVE_REQUEST_SECONDS.labels("update").observeSince(start);
+                send.done.complete(null);
+            } catch (IOException | RuntimeException e) {
+                send.done.completeExceptionally(e);
+            }
+
+            synchronized (stripe) {
+                var state = states.get(id);
+                send = state.next;
+                state.next = null;
+                if (send == null) {
+                    states.remove(id);
+                }
+            }
+        }
+
+        try {
+            patch.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private static class FileState {
+        private boolean sending;
+        private Patch next;
+    }
+
+    private static class Patch {
+        private final Map<String, String> properties = new HashMap<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+}
@@ -5,7 +5,9 @@ import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.sheets.v4.Sheets;
+import com.uddernetworks.grpc.HolysheetService.ListRequest.SortKey;
 import com.uddernetworks.holysheet.io.SheetIO;
+import com.uddernetworks.holysheet.utility.Utility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,8 +20,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.uddernetworks.holysheet.utility.Utility.DRIVE_FIELDS;
 import static com.uddernetworks.holysheet.utility.Utility.getCollectionFirst;
@@ -33,12 +39,15 @@ public class SheetManager {
     private final Drive drive;
     private final Sheets sheets;
     private SheetIO sheetIO;
+    private final PropertyPatcher propertyPatcher;
 
     private File sheetStore;
+    private String accountId;
 
     public SheetManager(Drive drive, Sheets sheets) {
         this.drive = drive;
         this.sheets = sheets;
+        this.propertyPatcher = new PropertyPatcher(drive);
         this.sheetIO = new SheetIO(this, drive, sheets);
     }
 
@@ -108,7 +117,8 @@ public class SheetManager {
     }
 
     /**
-     * Returns a list of {@link File}s that match the path, and the properties listed.
+     * Returns a list of {@link File}s that match the path, and the properties listed. Only the newest version of a
+     * versioned file is included, unless listing trashed files.
      *
      * @param path    The path of the file, must be valid and match the regex.
      * @param starred Whether the file must be starred or not.
@@ -121,15 +131,147 @@ public class SheetManager {
                 path = "/";
             }
 
-            var pathQuery = starred ? "" : " and properties has { key='path' and value='" + path + "' }";
+            var pathQuery = starred ? "" : " and properties has { key='path' and value='" + Utility.escapeQuery(path) + "' }";
             var extra = starred ? " and properties has { key='starred' and value='true' }" : "";
-            return getFiles(-1, "properties has { key='directParent' and value='true' }" + pathQuery + " and trashed = " + trashed + extra, Mime.FOLDER);
+            var uploads = getFiles(-1, "properties has { key='directParent' and value='true' }" + pathQuery + " and trashed = " + trashed + extra, Mime.FOLDER);
+            return trashed ? uploads : latestVersions(uploads);
         } catch (IOException e) {
             LOGGER.error("An error occurred while listing uploads", e);
             return Collections.emptyList();
         }
     }
 
+    /**
+     * Lists a single page of the uploads matching a path, passing the page size, token, order and fields through to
+     * Drive so only the requested page is fetched. Older versions of a versioned file are marked {@code superseded} when
+     * a newer one is uploaded, so they are left out by the query rather than by comparing every version.
+     *
+     * @param path       The path of the files, must be valid and match the regex
+     * @param starred    Whether the file must be starred or not, listing every path if so
+     * @param trashed    Whether the file must have been removed
+     * @param namePrefix The prefix of the files' names, or an empty string for any name
+     * @param sort       The order of the files
+     * @param reverse    If the order is reversed
+     * @param pageSize   The most files in the page, at most 1000
+     * @param pageToken  The token of the page, or null for the first page
+     * @param fields     The fields of each file to request
+     * @return The page, which may hold less than {@code pageSize} files when they don't match the name prefix exactly
+     * @throws IOException If the drive request throws an exception
+     */
+    public FileList listUploadsPage(String path, boolean starred, boolean trashed, String namePrefix, SortKey sort, boolean reverse, int pageSize, String pageToken, String fields) throws IOException {
+        if (path.isBlank() || !PATH_REGEX.matcher(path).matches()) {
+            path = "/";
+        }
+
+        var query = "properties has { key='directParent' and value='true' } and trashed = " + trashed;
+        if (starred) {
+            query += " and properties has { key='starred' and value='true' }";
+        } else {
+            query += " and properties has { key='path' and value='" + Utility.escapeQuery(path) + "' }";
+        }
+
+        if (!trashed) {
+            query += " and not properties has { key='superseded' and value='true' }";
+        }
+
+        if (!namePrefix.isEmpty()) {
+            // Drive only matches name prefixes by word, so the exact prefix is checked once listed
+            query += " and name contains '" + Utility.escapeQuery(namePrefix) + "'";
+        }
+
+        var orderBy = sort == SortKey.NAME ? "name" : sort == SortKey.CREATED ? "createdTime" : "modifiedTime";
+        if (sort == SortKey.NAME ? reverse : !reverse) {
+            orderBy += " desc";
+        }
+
+        var page = getPagesFiles(pageToken, Math.min(pageSize, 1000), new Mime[]{Mime.FOLDER}, query, fields, orderBy);
+        var files = page.getFiles() == null ? new ArrayList<File>() : page.getFiles();
+        files.removeIf(file -> !Mime.FOLDER.getMime().equals(file.getMimeType()) || !file.getName().startsWith(namePrefix));
+        return page.setFiles(trashed ? files : latestVersions(files));
+    }
+
+    /**
+     * Lists every upload matching a path, as {@link #listUploadsPage(String, boolean, boolean, String, SortKey, boolean, int, String, String)}
+     * fetching every page.
+     *
+     * @return The uploads, in the given order
+     * @throws IOException If the drive request throws an exception
+     */
+    public List<File> listUploads(String path, boolean starred, boolean trashed, String namePrefix, SortKey sort, boolean reverse, String fields) throws IOException {
+        var uploads = new ArrayList<File>();
+        String pageToken = null;
+        do {
+            var page = listUploadsPage(path, starred, trashed, namePrefix, sort, reverse, 1000, pageToken, fields);
+            uploads.addAll(page.getFiles());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+
+        return trashed ? uploads : latestVersions(uploads);
+    }
+
+    /**
+     * Lazily lists the pages of uploads matching a path, as {@link #listUploadsPage(String, boolean, boolean, String, SortKey, boolean, int, String, String)}.
+     * Each page is listed once the previous one is consumed, and the page after it is requested in the background
+     * straight away. The stream should be closed if not fully consumed, to stop a page being listed for nothing.
+     *
+     * @param pageToken The token of the first page, or null for the first page
+     * @return The pages, each with the token of the page after it
+     */
+    public Stream<FileList> streamUploadPages(String path, boolean starred, boolean trashed, String namePrefix, SortKey sort, boolean reverse, int pageSize, String pageToken, String fields) {
+        var pages = new PageIterator(token -> listUploadsPage(path, starred, trashed, namePrefix, sort, reverse, pageSize, token, fields), pageToken);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pages::close);
+    }
+
+    /**
+     * Lazily lists every upload matching a path, as {@link #streamUploadPages(String, boolean, boolean, String, SortKey, boolean, int, String, String)}
+     * from the first page. Unlike {@link #listUploads(String, boolean, boolean, String, SortKey, boolean, String)}, at
+     * most two pages of uploads are held at once.
+     *
+     * @return The uploads, in the given order
+     */
+    public Stream<File> streamUploads(String path, boolean starred, boolean trashed, String namePrefix, SortKey sort, boolean reverse, int pageSize, String fields) {
+        return streamUploadPages(path, starred, trashed, namePrefix, sort, reverse, pageSize, null, fields)
+                .flatMap(page -> page.getFiles().stream());
+    }
+
+    /**
+     * Returns every finished upload, whatever its path, with the fields needed to download it. Only the newest version
+     * of a versioned file is included.
+     *
+     * @return The uploads
+     * @throws IOException If the drive request throws an exception
+     */
+    public List<File> listAllUploads() throws IOException {
+        var uploads = getFiles(-1, "properties has { key='directParent' and value='true' } and trashed = false", SheetIO.PARENT_FIELDS, Mime.FOLDER);
+        uploads.removeIf(file -> "true".equals(file.getProperties().get("processing")));
+        return latestVersions(uploads);
+    }
+
+    /**
+     * Removes every version of a versioned file but the newest from a list of uploads, keeping their order.
+     *
+     * @param uploads The uploads
+     * @return The uploads without older versions
+     */
+    private static List<File> latestVersions(List<File> uploads) {
+        var latest = new HashMap<String, File>();
+        for (var file : uploads) {
+            if (SheetIO.getVersion(file) > 0) {
+                latest.merge(getVersionKey(file), file,
+                        (first, second) -> SheetIO.getVersion(first) >= SheetIO.getVersion(second) ? first : second);
+            }
+        }
+
+        return uploads.stream()
+                .filter(file -> SheetIO.getVersion(file) == 0 || latest.get(getVersionKey(file)) == file)
+                .collect(Collectors.toList());
+    }
+
+    private static String getVersionKey(File file) {
+        return file.getName() + '\0' + file.getProperties().get("path");
+    }
+
     /**
      * Get all the sheets in the drive, that has a parent.
      *
@@ -193,28 +335,25 @@ public class SheetManager {
     }
 
     /**
-     * Adds or overwrites  properties to the given file.
+     * Adds or overwrites properties of the given file. Only the given properties are sent, as Drive merges them into
+     * the file's existing properties, and changes made to the same file at once are sent together.
      *
      * @param file       The file
-     * @param properties The properties to add or overwrite
+     * @param properties The properties to add or overwrite, where a null value removes the property
      */
     public void addProperties(File file, Map<String, String> properties) throws IOException {
-        var combined = new HashMap<>(file.getProperties() == null ? Collections.emptyMap() : file.getProperties());
-        combined.putAll(properties);
-        setProperties(file, combined);
+        addProperties(file.getId(), properties);
     }
 
     /**
-     * Adds or overwrites  properties to the given file.
+     * Adds or overwrites properties of the given file. Only the given properties are sent, as Drive merges them into
+     * the file's existing properties, and changes made to the same file at once are sent together.
      *
      * @param id         The ID of the file
-     * @param properties The properties to add or overwrite
+     * @param properties The properties to add or overwrite, where a null value removes the property
      */
     public void addProperties(String id, Map<String, String> properties) throws IOException {
-        var file = getFile(id, "id, properties");
-        var combined = new HashMap<>(file.getProperties());
-        combined.putAll(properties);
-        setProperties(file, combined);
+        propertyPatcher.patch(id, properties);
     }
 
     /**
@@ -307,10 +446,18 @@ public class SheetManager {
     }
 
     private FileList getPagesFiles(String pageToken, int pageSize, Mime[] mimes, String query, String fields) throws IOException {
+        return getPagesFiles(pageToken, pageSize, mimes, query, fields, null);
+    }
+
+    private FileList getPagesFiles(String pageToken, int pageSize, Mime[] mimes, String query, String fields, String orderBy) throws IOException {
         var builder = drive.files().list()
                 .setPageSize(pageSize)
                 .setFields("nextPageToken, files(" + fields + ")");
 
+        if (orderBy != null) {
+            builder.setOrderBy(orderBy);
+        }
+
         if (pageToken != null && !pageToken.isBlank()) {
             builder.setPageToken(pageToken);
         }
@@ -377,6 +524,20 @@ public class SheetManager {
         }
     }
 
+    /**
+     * Gets the ID of the account the {@link Drive} is authenticated as, which stays the same across tokens.
+     *
+     * @return The account's permission ID
+     * @throws IOException An exception from the drive request, e.g. if the token is invalid
+     */
+    public String getAccountId() throws IOException {
+        if (accountId == null) {
+            accountId = drive.about().get().setFields("user(permissionId)").execute().getUser().getPermissionId();
+        }
+
+        return accountId;
+    }
+
     public SheetIO getSheetIO() {
         return sheetIO;
     }
@@ -0,0 +1,37 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Entry point of the benchmark scenarios run against {@link FakeDriveTransport}, via {@code gradle benchmark}. The first
+ * argument is the scenario, the rest are passed on to it.
+ */
+public class Benchmark {
+
+    private static final Map<String, Consumer<String[]>> SCENARIOS = Map.of(
+            "layout", LayoutBenchmark::run,
+            "upload", UploadBenchmark::run,
+            "sheetsize", SheetSizeBenchmark::run,
+            "encryption", EncryptionBenchmark::run,
+            "hedging", HedgingBenchmark::run
+    );
+
+    public static void main(String[] args) {
+        var scenario = args.length == 0 ? "layout" : args[0];
+        if (!SCENARIOS.containsKey(scenario)) {
+            System.err.println("Unknown scenario \"" + scenario + "\", expected one of " + SCENARIOS.keySet());
+            System.exit(1);
+        }
+
+        // The transfer pipeline logs every sheet, which drowns out the results
+        LogManager.getRootLogger().setLevel(Level.WARN);
+
+        SCENARIOS.get(scenario).accept(Arrays.copyOfRange(args, Math.min(1, args.length), args.length));
+        System.exit(0);
+    }
+}
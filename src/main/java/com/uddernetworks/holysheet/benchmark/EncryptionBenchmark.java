@@ -0,0 +1,189 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.EncodedChunk;
+import com.uddernetworks.holysheet.encoding.EncodingOutputStream;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.io.SheetCipher;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.NONE;
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.MULTIPART;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.costModel;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.rate;
+
+/**
+ * Measures the cost of encrypting sheets with {@link SheetCipher}: first the throughput of AES-GCM alone, encrypting and
+ * decrypting the file in sheet sized pieces, and of encoding the file with and without encryption, then the time to
+ * upload and download it through the fake Drive with and without encryption.
+ * <p>
+ * Arguments: {@code [size in MB]}. The simulated server cost is set as for {@link LayoutBenchmark}.
+ */
+public class EncryptionBenchmark {
+
+    private static final int SHEET_SIZE = 10_000_000;
+    private static final int ROUNDS = 3;
+
+    private static final String FILE_NONCE = SheetCipher.newFileNonce();
+    private static final File PARENT = new File().setProperties(Map.of("fileNonce", FILE_NONCE));
+
+    public static void run(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+
+        var data = new byte[sizeMb * 1_000_000];
+        new Random(0).nextBytes(data);
+
+        var key = new byte[32];
+        new Random(1).nextBytes(key);
+        var cipher = new SheetCipher(List.of(key));
+
+        var throughput = new ConsoleTableBuilder()
+                .addColumn("Stage", 18)
+                .addColumn("Time", 10)
+                .addColumn("Rate", 11)
+                .setHorizontalSpacing(3);
+
+        System.out.println("Benchmarking AES-GCM...");
+        var rows = new ArrayList<List<String>>();
+        rows.add(timed("encrypt", data.length, () -> encrypt(cipher, data)));
+        var sealed = seal(cipher, data);
+        rows.add(timed("decrypt", data.length, () -> decrypt(cipher, sealed)));
+        rows.add(timed("encode", data.length, () -> encode(null, data)));
+        rows.add(timed("encrypt + encode", data.length, () -> encode(cipher, data)));
+        System.out.println("\n" + throughput.generateTable(rows));
+
+        var transfers = new ConsoleTableBuilder()
+                .addColumn("Encryption", 10)
+                .addColumn("Upload", 10)
+                .addColumn("Up/s", 9)
+                .addColumn("Download", 10)
+                .addColumn("Down/s", 9)
+                .addColumn("Intact", 6)
+                .setHorizontalSpacing(3);
+
+        rows = new ArrayList<>();
+        for (var shared : Arrays.asList(null, cipher)) {
+            System.out.println("Benchmarking transfers " + (shared == null ? "without" : "with") + " encryption...");
+            SheetCipher.setShared(shared);
+            rows.add(transfer(shared != null, data));
+        }
+
+        SheetCipher.setShared(null);
+        System.out.println("\n" + transfers.generateTable(rows));
+    }
+
+    /**
+     * Runs a stage {@value #ROUNDS} times, reporting the fastest.
+     */
+    private static List<String> timed(String name, long bytes, Runnable stage) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            stage.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return List.of(name, (best / 1_000_000) + "ms", rate(bytes, best));
+    }
+
+    private static void encrypt(SheetCipher cipher, byte[] data) {
+        var encryptor = cipher.newEncryptor(FILE_NONCE);
+        for (int offset = 0; offset < data.length; offset += SHEET_SIZE) {
+            encryptor.start(offset / SHEET_SIZE, offset);
+            encryptor.update(data, offset, Math.min(SHEET_SIZE, data.length - offset));
+            encryptor.finish();
+        }
+    }
+
+    /**
+     * Encrypts the data in sheet sized pieces, each as a sheet with the properties needed to decrypt it.
+     */
+    private static Map<File, byte[]> seal(SheetCipher cipher, byte[] data) {
+        var sealed = new LinkedHashMap<File, byte[]>();
+        var encryptor = cipher.newEncryptor(FILE_NONCE);
+        for (int offset = 0; offset < data.length; offset += SHEET_SIZE) {
+            int index = offset / SHEET_SIZE;
+            var properties = new HashMap<>(encryptor.start(index, offset));
+            properties.put("index", String.valueOf(index));
+            properties.put("offset", String.valueOf(offset));
+
+            var ciphertext = new ByteArrayOutputStream();
+            ciphertext.writeBytes(encryptor.update(data, offset, Math.min(SHEET_SIZE, data.length - offset)));
+            ciphertext.writeBytes(encryptor.finish());
+            sealed.put(new File().setId(String.valueOf(index)).setProperties(properties), ciphertext.toByteArray());
+        }
+
+        return sealed;
+    }
+
+    private static void decrypt(SheetCipher cipher, Map<File, byte[]> sealed) {
+        sealed.forEach((sheet, ciphertext) -> {
+            try (var out = cipher.decrypt(PARENT, sheet, NullOutputStream.NULL_OUTPUT_STREAM)) {
+                out.write(ciphertext);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void encode(SheetCipher cipher, byte[] data) {
+        var encodingOut = new EncodingOutputStream(SHEET_SIZE, SheetLayout.DEFAULT, EncodedChunk::release);
+        if (cipher != null) {
+            encodingOut.setEncryptor(cipher.newEncryptor(FILE_NONCE));
+        }
+
+        try {
+            encodingOut.write(data, 0, data.length);
+            encodingOut.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<String> transfer(boolean encrypted, byte[] data) {
+        try {
+            var transport = new FakeDriveTransport(costModel());
+            var sheetIO = new SheetManager(transport.createDrive(), null).getSheetIO();
+
+            long start = System.nanoTime();
+            var parent = sheetIO.uploadDataFile("benchmark", "/", data.length, SHEET_SIZE, SheetLayout.DEFAULT, NONE, MULTIPART, new ByteArrayInputStream(data), null);
+            long uploadNanos = System.nanoTime() - start;
+
+            var destination = java.io.File.createTempFile("encryption-benchmark", ".bin");
+            destination.deleteOnExit();
+
+            start = System.nanoTime();
+            sheetIO.downloadData(destination, parent.getId()).join();
+            long downloadNanos = System.nanoTime() - start;
+
+            var intact = Arrays.equals(data, Files.readAllBytes(destination.toPath()));
+            destination.delete();
+
+            return List.of(
+                    encrypted ? SheetCipher.ALGORITHM : "none",
+                    (uploadNanos / 1_000_000) + "ms",
+                    rate(data.length, uploadNanos),
+                    (downloadNanos / 1_000_000) + "ms",
+                    rate(data.length, downloadNanos),
+                    intact ? "yes" : "NO"
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.User;
+import com.uddernetworks.holysheet.Mime;
+import com.uddernetworks.holysheet.utility.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-memory stand-in for the Drive v3 REST API, used to benchmark HolySheet's transfer pipeline without an account
+ * or quota. It understands the requests {@link com.uddernetworks.holysheet.SheetManager} and
+ * {@link com.uddernetworks.holysheet.io.SheetIO} make: metadata create/get/update/delete/copy, moves between folders,
+ * multipart and resumable media uploads, media downloads, exports and a subset of the list query language.
+ * <p>
+ * Sheets are stored exactly as uploaded and exported back unchanged. Server-side time is simulated with a
+ * {@link CostModel}, so results are only meaningful relative to each other.
+ */
+public class FakeDriveTransport extends HttpTransport {
+
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String BASE_URL = "https://www.googleapis.com/";
+
+    private static final Pattern MIME_QUERY = Pattern.compile("mimeType = '([^']*)'");
+    private static final Pattern NAME_QUERY = Pattern.compile("name = '([^']*)'");
+    private static final Pattern NAME_CONTAINS_QUERY = Pattern.compile("name contains '([^']*)'");
+    private static final Pattern PARENT_QUERY = Pattern.compile("(?:parents in '([^']*)'|'([^']*)' in parents)");
+    private static final Pattern PROPERTY_QUERY = Pattern.compile("(?<!not )properties has \\{ key='([^']*)' and value='([^']*)' }");
+    private static final Pattern NOT_PROPERTY_QUERY = Pattern.compile("not properties has \\{ key='([^']*)' and value='([^']*)' }");
+    private static final Pattern TRASHED_QUERY = Pattern.compile("trashed = (true|false)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final CostModel costModel;
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+    private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong storedCells = new AtomicLong();
+
+    public FakeDriveTransport() {
+        this(CostModel.NONE);
+    }
+
+    public FakeDriveTransport(CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    /**
+     * Creates a {@link Drive} client talking to this transport.
+     *
+     * @return The client
+     */
+    public Drive createDrive() {
+        return new Drive.Builder(this, JSON_FACTORY, null)
+                .setApplicationName("HolySheet-Benchmark")
+                .build();
+    }
+
+    /**
+     * Gets the amount of requests made of each kind, e.g. {@code create}, {@code export} or {@code list}.
+     *
+     * @return An immutable copy of the counts
+     */
+    public Map<String, Long> getRequestCounts() {
+        return requests.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+    }
+
+    /**
+     * Gets the amount of cells in every file uploaded with content, counting tab and newline separated values.
+     *
+     * @return The amount of cells
+     */
+    public long getStoredCells() {
+        return storedCells.get();
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                var override = getFirstHeaderValue("X-HTTP-Method-Override");
+                return handle(override == null ? method : override, new GenericUrl(url), this);
+            }
+        };
+    }
+
+    private LowLevelHttpResponse handle(String method, GenericUrl url, MockLowLevelHttpRequest request) throws IOException {
+        var path = url.getRawPath();
+        var upload = path.startsWith("/upload/");
+        var parts = path.replaceFirst("^/(upload/|download/)?drive/v3/files/?", "").split("/");
+        var id = parts[0];
+
+        if (upload && "PUT".equals(method)) {
+            return continueUpload((String) url.getFirst("upload_id"), request);
+        }
+
+        if (upload) {
+            if ("resumable".equals(url.getFirst("uploadType"))) {
+                return startUpload(request);
+            }
+
+            return multipartUpload(request);
+        }
+
+        switch (method) {
+            case "POST":
+                if (parts.length == 2 && parts[1].equals("copy")) {
+                    return copy(id, request);
+                }
+
+                return json(create(JSON_FACTORY.fromString(readContent(request), File.class), new byte[0], false));
+            case "GET":
+                if (id.isEmpty()) {
+                    return list(url);
+                }
+
+                if (parts.length == 2 && parts[1].equals("export")) {
+                    return media(id, "export");
+                }
+
+                if ("media".equals(url.getFirst("alt"))) {
+                    return media(id, "download");
+                }
+
+                count("get");
+                var file = files.get(id);
+                return file == null ? notFound(id) : json(file);
+            case "PATCH":
+            case "PUT":
+                return update(id, JSON_FACTORY.fromString(readContent(request), File.class), url);
+            case "DELETE":
+                count("delete");
+                if (!files.containsKey(id)) {
+                    return notFound(id);
+                }
+
+                delete(id);
+                return new MockLowLevelHttpResponse().setStatusCode(204);
+            default:
+                return new MockLowLevelHttpResponse().setStatusCode(405);
+        }
+    }
+
+    private File create(File metadata, byte[] content, boolean transferred) {
+        count("create");
+        long cells = simulate(content, transferred);
+        if (content.length > 0) {
+            storedCells.addAndGet(cells);
+        }
+
+        var id = "fake-" + nextId.incrementAndGet();
+        var file = metadata.clone()
+                .setId(id)
+                .setTrashed(false)
+                .setStarred(false)
+                .setModifiedTime(new DateTime(System.currentTimeMillis()))
+                .setWebViewLink(BASE_URL + "fake/" + id)
+                .setOwners(new ArrayList<>(List.of(new User().setMe(true).setDisplayName("HolySheet Benchmark"))));
+
+        if (file.getProperties() == null) {
+            file.setProperties(new HashMap<>());
+        }
+
+        if (file.getMimeType() == null) {
+            file.setMimeType("application/octet-stream");
+        }
+
+        files.put(id, file);
+        contents.put(id, content);
+        return file;
+    }
+
+    private LowLevelHttpResponse update(String id, File patch, GenericUrl url) throws IOException {
+        count("update");
+        var file = files.get(id);
+        if (file == null) {
+            return notFound(id);
+        }
+
+        synchronized (file) {
+            if (patch.getProperties() != null) {
+                var properties = new HashMap<>(file.getProperties());
+                patch.getProperties().forEach((key, value) -> {
+                    if (value == null || Data.isNull(value)) {
+                        properties.remove(key);
+                    } else {
+                        properties.put(key, value);
+                    }
+                });
+                file.setProperties(properties);
+            }
+
+            if (patch.getName() != null) {
+                file.setName(patch.getName());
+            }
+
+            if (patch.getDescription() != null) {
+                file.setDescription(patch.getDescription());
+            }
+
+            if (patch.getTrashed() != null) {
+                file.setTrashed(patch.getTrashed());
+            }
+
+            var addParents = (String) url.getFirst("addParents");
+            var removeParents = (String) url.getFirst("removeParents");
+            if (addParents != null || removeParents != null) {
+                var parents = new ArrayList<>(file.getParents() == null ? List.<String>of() : file.getParents());
+                if (removeParents != null) {
+                    parents.removeAll(List.of(removeParents.split(",")));
+                }
+
+                if (addParents != null) {
+                    parents.addAll(List.of(addParents.split(",")));
+                }
+
+                file.setParents(parents);
+            }
+
+            file.setModifiedTime(new DateTime(System.currentTimeMillis()));
+            return json(file);
+        }
+    }
+
+    private LowLevelHttpResponse copy(String id, MockLowLevelHttpRequest request) throws IOException {
+        var source = files.get(id);
+        if (source == null) {
+            return notFound(id);
+        }
+
+        var metadata = JSON_FACTORY.fromString(readContent(request), File.class);
+        var copy = source.clone().setId(null);
+        copy.setProperties(new HashMap<>(source.getProperties()));
+        if (metadata.getName() != null) {
+            copy.setName(metadata.getName());
+        }
+
+        if (metadata.getParents() != null) {
+            copy.setParents(metadata.getParents());
+        }
+
+        if (metadata.getProperties() != null) {
+            copy.getProperties().putAll(metadata.getProperties());
+        }
+
+        count("copy");
+        return json(create(copy, contents.get(id), false));
+    }
+
+    private void delete(String id) {
+        files.remove(id);
+        contents.remove(id);
+        files.values().stream()
+                .filter(file -> file.getParents() != null && file.getParents().contains(id))
+                .map(File::getId)
+                .collect(Collectors.toList())
+                .forEach(this::delete);
+    }
+
+    private LowLevelHttpResponse list(GenericUrl url) throws IOException {
+        count("list");
+        var query = (String) url.getFirst("q");
+        var pageSize = Utility.tryParse((String) url.getFirst("pageSize"), 100);
+        var offset = Utility.tryParse((String) url.getFirst("pageToken"), 0);
+
+        var matching = files.values().stream()
+                .filter(file -> matches(file, query == null ? "" : query))
+                .sorted(getOrder((String) url.getFirst("orderBy")))
+                .collect(Collectors.toList());
+
+        var page = new FileList().setFiles(matching.subList(Math.min(offset, matching.size()), Math.min(offset + pageSize, matching.size())));
+        if (offset + pageSize < matching.size()) {
+            page.setNextPageToken(String.valueOf(offset + pageSize));
+        }
+
+        return json(page);
+    }
+
+    /**
+     * Orders files by the first key of a Drive {@code orderBy}, of {@code name}, {@code modifiedTime} or
+     * {@code createdTime} (treated as the modified time). Files are listed newest first when there is no order.
+     */
+    private static Comparator<File> getOrder(String orderBy) {
+        if (orderBy == null || orderBy.isBlank()) {
+            return Comparator.comparing((File file) -> file.getModifiedTime().getValue()).reversed();
+        }
+
+        var key = orderBy.split(",")[0].trim().split(" ");
+        Comparator<File> order = key[0].equals("name")
+                ? Comparator.comparing(File::getName)
+                : Comparator.comparing(file -> file.getModifiedTime().getValue());
+        return key.length > 1 && key[1].equals("desc") ? order.reversed() : order;
+    }
+
+    /**
+     * Evaluates the subset of the Drive query language HolySheet uses. Every recognised clause must match, except
+     * mimeType clauses of which any may match.
+     */
+    private boolean matches(File file, String query) {
+        var mimes = MIME_QUERY.matcher(query).results().map(result -> result.group(1)).collect(Collectors.toSet());
+        if (!mimes.isEmpty() && !mimes.contains(file.getMimeType())) {
+            return false;
+        }
+
+        var properties = file.getProperties();
+        return NAME_QUERY.matcher(query).results().allMatch(result -> result.group(1).equals(file.getName()))
+                && NAME_CONTAINS_QUERY.matcher(query).results().allMatch(result -> file.getName().contains(result.group(1)))
+                && PARENT_QUERY.matcher(query).results().allMatch(result -> file.getParents() != null
+                && file.getParents().contains(result.group(1) != null ? result.group(1) : result.group(2)))
+                && PROPERTY_QUERY.matcher(query).results().allMatch(result -> result.group(2).equals(properties.get(result.group(1))))
+                && NOT_PROPERTY_QUERY.matcher(query).results().noneMatch(result -> properties != null && result.group(2).equals(properties.get(result.group(1))))
+                && TRASHED_QUERY.matcher(query).results().allMatch(result -> Boolean.parseBoolean(result.group(1)) == file.getTrashed());
+    }
+
+    private LowLevelHttpResponse media(String id, String kind) throws IOException {
+        count(kind);
+        var content = contents.get(id);
+        if (content == null) {
+            return notFound(id);
+        }
+
+        simulate(content);
+        return new MockLowLevelHttpResponse()
+                .setContentType("text/tab-separated-values")
+                .setContent(content);
+    }
+
+    private LowLevelHttpResponse multipartUpload(MockLowLevelHttpRequest request) throws IOException {
+        var boundary = request.getContentType().replaceFirst(".*boundary=\"?([^\";]+)\"?.*", "$1");
+        var body = new String(readBytes(request, true), StandardCharsets.ISO_8859_1);
+
+        var parts = new ArrayList<String>();
+        for (var part : body.split("--" + Pattern.quote(boundary))) {
+            int headerEnd = part.indexOf("\r\n\r\n");
+            if (headerEnd != -1) {
+                parts.add(part.substring(headerEnd + 4, part.length() - 2));
+            }
+        }
+
+        var metadata = JSON_FACTORY.fromString(parts.get(0), File.class);
+        return json(create(metadata, parts.size() > 1 ? parts.get(1).getBytes(StandardCharsets.ISO_8859_1) : new byte[0], true));
+    }
+
+    private LowLevelHttpResponse startUpload(MockLowLevelHttpRequest request) throws IOException {
+        var uploadId = String.valueOf(nextId.incrementAndGet());
+        uploads.put(uploadId, new PendingUpload(JSON_FACTORY.fromString(readContent(request), File.class)));
+        return new MockLowLevelHttpResponse()
+                .addHeader("Location", BASE_URL + "upload/drive/v3/files?uploadType=resumable&upload_id=" + uploadId);
+    }
+
+    private LowLevelHttpResponse continueUpload(String uploadId, MockLowLevelHttpRequest request) throws IOException {
+        var upload = uploads.get(uploadId);
+        if (upload == null) {
+            return notFound(uploadId);
+        }
+
+        upload.content.write(readBytes(request, true));
+
+        var range = request.getFirstHeaderValue("Content-Range");
+        var matcher = range == null ? null : CONTENT_RANGE.matcher(range);
+        if (matcher != null && matcher.matches() && (matcher.group(3).equals("*") || Long.parseLong(matcher.group(2)) + 1 < Long.parseLong(matcher.group(3)))) {
+            return new MockLowLevelHttpResponse()
+                    .setStatusCode(308)
+                    .addHeader("Range", "bytes=0-" + matcher.group(2));
+        }
+
+        uploads.remove(uploadId);
+        return json(create(upload.metadata, upload.content.toByteArray(), true));
+    }
+
+    private long simulate(byte[] content) {
+        return simulate(content, false);
+    }
+
+    /**
+     * Simulates the server time of handling content.
+     *
+     * @param content     The content
+     * @param transferred If the content's transfer time was already spent while reading the request
+     * @return The amount of cells in the content
+     */
+    private long simulate(byte[] content, boolean transferred) {
+        long cells = 1;
+        for (byte b : content) {
+            if (b == '\t' || b == '\n') {
+                cells++;
+            }
+        }
+
+        Utility.sleep(costModel.getMillis(transferred ? 0 : content.length, cells));
+        return cells;
+    }
+
+    private void count(String kind) {
+        requests.computeIfAbsent(kind, $ -> new AtomicLong()).incrementAndGet();
+    }
+
+    private String readContent(MockLowLevelHttpRequest request) throws IOException {
+        return new String(readBytes(request, false), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a request's body, optionally at the bandwidth of the cost model so a body still being produced by the
+     * client overlaps with its transfer.
+     */
+    private byte[] readBytes(MockLowLevelHttpRequest request, boolean throttle) throws IOException {
+        var content = request.getStreamingContent();
+        if (content == null) {
+            return new byte[0];
+        }
+
+        var out = new ByteArrayOutputStream();
+        content.writeTo(throttle ? new ThrottledOutputStream(out) : out);
+
+        if ("gzip".equals(request.getContentEncoding())) {
+            try (var in = new GZIPInputStream(new java.io.ByteArrayInputStream(out.toByteArray()))) {
+                return in.readAllBytes();
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private static LowLevelHttpResponse json(Object object) throws IOException {
+        return new MockLowLevelHttpResponse()
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(JSON_FACTORY.toString(object));
+    }
+
+    private static LowLevelHttpResponse notFound(String id) {
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(404)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent("{\"error\": {\"code\": 404, \"message\": \"File not found: " + id + "\"}}");
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        private double pendingNanos;
+
+        private ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            throttle(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            throttle(len);
+        }
+
+        private void throttle(int bytes) {
+            pendingNanos += costModel.getTransferNanos(bytes);
+            if (pendingNanos >= 1_000_000) {
+                Utility.sleep((long) (pendingNanos / 1_000_000));
+                pendingNanos %= 1_000_000;
+            }
+        }
+    }
+
+    private static class PendingUpload {
+        private final File metadata;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private PendingUpload(File metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * The simulated server time of a request carrying or returning sheet content: a fixed latency, plus a transfer time
+     * per byte and a processing time per cell. Optionally a fraction of requests are stragglers, taking several times
+     * as long.
+     */
+    public static class CostModel {
+
+        public static final CostModel NONE = new CostModel(0, 0, 0);
+
+        private final long latencyMillis;
+        private final double nanosPerByte;
+        private final double nanosPerCell;
+        private final double stragglerRate;
+        private final double stragglerFactor;
+        private final Random random = new Random(0);
+
+        public CostModel(long latencyMillis, double nanosPerByte, double nanosPerCell) {
+            this(latencyMillis, nanosPerByte, nanosPerCell, 0, 1);
+        }
+
+        private CostModel(long latencyMillis, double nanosPerByte, double nanosPerCell, double stragglerRate, double stragglerFactor) {
+            this.latencyMillis = latencyMillis;
+            this.nanosPerByte = nanosPerByte;
+            this.nanosPerCell = nanosPerCell;
+            this.stragglerRate = stragglerRate;
+            this.stragglerFactor = stragglerFactor;
+        }
+
+        /**
+         * @param rate   The fraction of requests that straggle
+         * @param factor How many times longer a straggling request takes
+         * @return A copy of this model with stragglers
+         */
+        public CostModel withStragglers(double rate, double factor) {
+            return new CostModel(latencyMillis, nanosPerByte, nanosPerCell, rate, factor);
+        }
+
+        public double getTransferNanos(long bytes) {
+            return bytes * nanosPerByte;
+        }
+
+        public long getMillis(long bytes, long cells) {
+            long millis = latencyMillis + (long) ((bytes * nanosPerByte + cells * nanosPerCell) / 1_000_000D);
+            return isStraggler() ? (long) (millis * stragglerFactor) : millis;
+        }
+
+        private boolean isStraggler() {
+            if (stragglerRate <= 0) {
+                return false;
+            }
+
+            synchronized (random) {
+                return random.nextDouble() < stragglerRate;
+            }
+        }
+    }
+}
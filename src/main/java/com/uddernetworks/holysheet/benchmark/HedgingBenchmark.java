@@ -0,0 +1,111 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.io.ExportHedger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.NONE;
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.MULTIPART;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.costModel;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.rate;
+
+/**
+ * Downloads the same file repeatedly from a fake Drive where a fraction of requests straggle, without hedging and with
+ * a range of hedging budgets (see {@link ExportHedger}), reporting the mean and slowest download along with the extra
+ * exports issued and how many of them won. Each budget starts with one untimed download to time its first exports.
+ * <p>
+ * Arguments: {@code [size in MB] [straggler rate] [straggler factor]}, defaulting to 1 in 20 requests taking 10 times
+ * as long. The simulated server cost is otherwise set as for {@link LayoutBenchmark}.
+ */
+public class HedgingBenchmark {
+
+    private static final long SHEET_SIZE = 1_000_000;
+    private static final int ROUNDS = 5;
+    private static final List<Double> BUDGETS = List.of(0D, 0.05, 0.2);
+
+    public static void run(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        double stragglerRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.05;
+        double stragglerFactor = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        var data = new byte[sizeMb * 1_000_000];
+        new Random(0).nextBytes(data);
+
+        var table = new ConsoleTableBuilder()
+                .addColumn("Budget", 6)
+                .addColumn("Mean", 10)
+                .addColumn("Slowest", 10)
+                .addColumn("Down/s", 9)
+                .addColumn("Exports", 7)
+                .addColumn("Hedges", 6)
+                .addColumn("Wins", 6)
+                .addColumn("Intact", 6)
+                .setHorizontalSpacing(3);
+
+        try {
+            var transport = new FakeDriveTransport(costModel().withStragglers(stragglerRate, stragglerFactor));
+            var sheetIO = new SheetManager(transport.createDrive(), null).getSheetIO();
+
+            System.out.println("Uploading " + sizeMb + "MB...");
+            var parent = sheetIO.uploadDataFile("benchmark", "/", data.length, SHEET_SIZE, SheetLayout.DEFAULT, NONE, MULTIPART, new ByteArrayInputStream(data), null);
+
+            var destination = java.io.File.createTempFile("hedging-benchmark", ".bin");
+            destination.deleteOnExit();
+
+            var rows = new ArrayList<List<String>>();
+            for (var budget : BUDGETS) {
+                System.out.println("Benchmarking downloads " + (budget == 0 ? "without hedging" : "with a hedging budget of " + percent(budget)) + "...");
+                ExportHedger.setShared(budget == 0 ? null : new ExportHedger(budget));
+                sheetIO.downloadData(destination, parent.getId()).join();
+
+                long exports = transport.getRequestCounts().getOrDefault("export", 0L);
+                long hedges = ExportHedger.HEDGES.labels().get();
+                long wins = ExportHedger.HEDGE_WINS.labels().get();
+
+                long total = 0;
+                long slowest = 0;
+                boolean intact = true;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    sheetIO.downloadData(destination, parent.getId()).join();
+                    long nanos = System.nanoTime() - start;
+
+                    total += nanos;
+                    slowest = Math.max(slowest, nanos);
+                    intact &= Arrays.equals(data, Files.readAllBytes(destination.toPath()));
+                }
+
+                rows.add(List.of(
+                        budget == 0 ? "none" : percent(budget),
+                        (total / ROUNDS / 1_000_000) + "ms",
+                        (slowest / 1_000_000) + "ms",
+                        rate(data.length * (long) ROUNDS, total),
+                        String.valueOf(transport.getRequestCounts().getOrDefault("export", 0L) - exports),
+                        String.valueOf(ExportHedger.HEDGES.labels().get() - hedges),
+                        String.valueOf(ExportHedger.HEDGE_WINS.labels().get() - wins),
+                        intact ? "yes" : "NO"
+                ));
+            }
+
+            ExportHedger.setShared(new ExportHedger(ExportHedger.DEFAULT_BUDGET));
+            destination.delete();
+            System.out.println("\n" + table.generateTable(rows));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String percent(double fraction) {
+        return Math.round(fraction * 100) + "%";
+    }
+}
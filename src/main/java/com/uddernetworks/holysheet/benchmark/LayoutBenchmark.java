@@ -0,0 +1,115 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.NONE;
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.MULTIPART;
+import static com.uddernetworks.holysheet.utility.Utility.humanReadableByteCountSI;
+
+/**
+ * Uploads and downloads the same random file with a range of {@link SheetLayout}s, reporting the sheet/cell counts and
+ * throughput of each.
+ * <p>
+ * Arguments: {@code [size in MB] [layouts...]}. The simulated server cost is set with the {@code benchmark.latency}
+ * (ms per request), {@code benchmark.nsPerByte} and {@code benchmark.nsPerCell} system properties.
+ */
+public class LayoutBenchmark {
+
+    private static final int SHEET_SIZE = 10_000_000;
+
+    private static final List<String> DEFAULT_LAYOUTS = List.of(
+            "32766x1x0",
+            "49900x1x0",
+            "16382x1x0",
+            "32766x4x0",
+            "32766x16x0",
+            "8190x64x0",
+            "32766x1x200"
+    );
+
+    public static void run(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        var layouts = (args.length > 1 ? Arrays.asList(args).subList(1, args.length) : DEFAULT_LAYOUTS).stream()
+                .map(SheetLayout::parse)
+                .collect(Collectors.toList());
+
+        var data = new byte[sizeMb * 1_000_000];
+        new Random(0).nextBytes(data);
+
+        var table = new ConsoleTableBuilder()
+                .addColumn("Layout", 12)
+                .addColumn("Sheets", 6)
+                .addColumn("Cells", 8)
+                .addColumn("Upload", 10)
+                .addColumn("Up/s", 9)
+                .addColumn("Download", 10)
+                .addColumn("Down/s", 9)
+                .addColumn("Intact", 6)
+                .setHorizontalSpacing(3);
+
+        var rows = new ArrayList<List<String>>();
+        for (var layout : layouts) {
+            System.out.println("Benchmarking " + layout + "...");
+            rows.add(benchmark(layout, data));
+        }
+
+        System.out.println("\n" + table.generateTable(rows));
+    }
+
+    private static List<String> benchmark(SheetLayout layout, byte[] data) {
+        try {
+            var transport = new FakeDriveTransport(costModel());
+            var sheetIO = new SheetManager(transport.createDrive(), null).getSheetIO();
+
+            long start = System.nanoTime();
+            var parent = sheetIO.uploadDataFile("benchmark", "/", data.length, SHEET_SIZE, layout, NONE, MULTIPART, new ByteArrayInputStream(data), null);
+            long uploadNanos = System.nanoTime() - start;
+
+            var destination = java.io.File.createTempFile("layout-benchmark", ".bin");
+            destination.deleteOnExit();
+
+            start = System.nanoTime();
+            sheetIO.downloadData(destination, parent.getId()).join();
+            long downloadNanos = System.nanoTime() - start;
+
+            var intact = Arrays.equals(data, Files.readAllBytes(destination.toPath()));
+            destination.delete();
+
+            return List.of(
+                    layout.toString(),
+                    String.valueOf(transport.getRequestCounts().getOrDefault("export", 0L)),
+                    String.valueOf(transport.getStoredCells()),
+                    (uploadNanos / 1_000_000) + "ms",
+                    rate(data.length, uploadNanos),
+                    (downloadNanos / 1_000_000) + "ms",
+                    rate(data.length, downloadNanos),
+                    intact ? "yes" : "NO"
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static FakeDriveTransport.CostModel costModel() {
+        return new FakeDriveTransport.CostModel(
+                Long.getLong("benchmark.latency", 150),
+                Double.parseDouble(System.getProperty("benchmark.nsPerByte", "20")),
+                Double.parseDouble(System.getProperty("benchmark.nsPerCell", "20000")));
+    }
+
+    static String rate(long bytes, long nanos) {
+        return humanReadableByteCountSI((long) (bytes / (nanos / 1e9))) + "/s";
+    }
+}
@@ -0,0 +1,122 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.io.SheetSizeTuner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.NONE;
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.MULTIPART;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.costModel;
+import static com.uddernetworks.holysheet.benchmark.LayoutBenchmark.rate;
+import static com.uddernetworks.holysheet.utility.Utility.humanReadableByteCountSI;
+
+/**
+ * Uploads and downloads the same random file with a range of sheet sizes, then once more with the size picked by the
+ * {@link SheetSizeTuner} from the requests timed in the earlier runs, reporting the throughput curve along with the
+ * tuner's final estimate of the time each size takes.
+ * <p>
+ * Arguments: {@code [size in MB] [sheet sizes in MB...]}. The simulated server cost is set as for
+ * {@link LayoutBenchmark}.
+ */
+public class SheetSizeBenchmark {
+
+    private static final List<Double> DEFAULT_SIZES = List.of(1D, 2D, 4D, 6D, 8D, 10D);
+
+    public static void run(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        var sizes = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length).stream().map(Double::parseDouble).collect(Collectors.toList())
+                : DEFAULT_SIZES;
+
+        var data = new byte[sizeMb * 1_000_000];
+        new Random(0).nextBytes(data);
+
+        var table = new ConsoleTableBuilder()
+                .addColumn("Sheet size", 14)
+                .addColumn("Sheets", 6)
+                .addColumn("Upload", 10)
+                .addColumn("Up/s", 9)
+                .addColumn("Download", 10)
+                .addColumn("Down/s", 9)
+                .addColumn("Total/s", 9)
+                .addColumn("Estimate", 9)
+                .addColumn("Intact", 6)
+                .setHorizontalSpacing(3);
+
+        var results = new ArrayList<Result>();
+        for (var size : sizes) {
+            var sheetSize = (long) (size * 1_000_000);
+            System.out.println("Benchmarking sheets of " + humanReadableByteCountSI(sheetSize) + "...");
+            results.add(benchmark(sheetSize, data));
+        }
+
+        System.out.println("Benchmarking automatic sheet size...");
+        results.add(benchmark(0, data));
+
+        var rows = new ArrayList<List<String>>();
+        for (var result : results) {
+            var estimate = SheetSizeTuner.getShared().estimateSeconds(result.sheetSize, data.length, 1, 4);
+            var row = new ArrayList<>(result.columns);
+            row.add(row.size() - 1, String.format("%.0fms", estimate * 1000));
+            rows.add(row);
+        }
+
+        System.out.println("\n" + table.generateTable(rows));
+    }
+
+    private static Result benchmark(long sheetSize, byte[] data) {
+        try {
+            var transport = new FakeDriveTransport(costModel());
+            var sheetIO = new SheetManager(transport.createDrive(), null).getSheetIO();
+
+            long start = System.nanoTime();
+            var parent = sheetIO.uploadDataFile("benchmark", "/", data.length, sheetSize, SheetLayout.DEFAULT, NONE, MULTIPART, new ByteArrayInputStream(data), null);
+            long uploadNanos = System.nanoTime() - start;
+
+            var destination = java.io.File.createTempFile("sheet-size-benchmark", ".bin");
+            destination.deleteOnExit();
+
+            start = System.nanoTime();
+            sheetIO.downloadData(destination, parent.getId()).join();
+            long downloadNanos = System.nanoTime() - start;
+
+            var intact = Arrays.equals(data, Files.readAllBytes(destination.toPath()));
+            destination.delete();
+
+            var used = Long.parseLong(parent.getProperties().get("sheetSize"));
+            return new Result(used, List.of(
+                    (sheetSize > 0 ? "" : "auto ") + humanReadableByteCountSI(used),
+                    String.valueOf(transport.getRequestCounts().getOrDefault("export", 0L)),
+                    (uploadNanos / 1_000_000) + "ms",
+                    rate(data.length, uploadNanos),
+                    (downloadNanos / 1_000_000) + "ms",
+                    rate(data.length, downloadNanos),
+                    rate(data.length, uploadNanos + downloadNanos),
+                    intact ? "yes" : "NO"
+            ));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Result {
+        private final long sheetSize;
+        private final List<String> columns;
+
+        private Result(long sheetSize, List<String> columns) {
+            this.sheetSize = sheetSize;
+            this.columns = columns;
+        }
+    }
+}
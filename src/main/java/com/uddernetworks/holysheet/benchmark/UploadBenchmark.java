@@ -0,0 +1,82 @@
+package com.uddernetworks.holysheet.benchmark;
+
+import com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload;
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.NONE;
+
+/**
+ * Uploads the same random file with each {@link Upload} type, comparing sending complete sheets with streaming them
+ * while they are encoded.
+ * <p>
+ * Arguments: {@code [size in MB]}. The simulated server cost is set as in {@link LayoutBenchmark}.
+ */
+public class UploadBenchmark {
+
+    private static final int SHEET_SIZE = 10_000_000;
+
+    public static void run(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+
+        var data = new byte[sizeMb * 1_000_000];
+        new Random(0).nextBytes(data);
+
+        var table = new ConsoleTableBuilder()
+                .addColumn("Upload", 10)
+                .addColumn("Time", 10)
+                .addColumn("Rate", 9)
+                .addColumn("Requests", 8)
+                .addColumn("Intact", 6)
+                .setHorizontalSpacing(3);
+
+        var rows = new ArrayList<List<String>>();
+        for (var upload : List.of(Upload.MULTIPART, Upload.DIRECT, Upload.STREAMING)) {
+            System.out.println("Benchmarking " + upload + "...");
+            rows.add(benchmark(upload, data));
+        }
+
+        System.out.println("\n" + table.generateTable(rows));
+    }
+
+    private static List<String> benchmark(Upload upload, byte[] data) {
+        try {
+            var transport = new FakeDriveTransport(LayoutBenchmark.costModel());
+            var sheetIO = new SheetManager(transport.createDrive(), null).getSheetIO();
+
+            long start = System.nanoTime();
+            var parent = sheetIO.uploadDataFile("benchmark", "/", data.length, SHEET_SIZE, SheetLayout.DEFAULT, NONE, upload, new ByteArrayInputStream(data), null);
+            long uploadNanos = System.nanoTime() - start;
+
+            long requests = transport.getRequestCounts().values().stream().mapToLong(Long::longValue).sum();
+
+            var destination = File.createTempFile("upload-benchmark", ".bin");
+            destination.deleteOnExit();
+            sheetIO.downloadData(destination, parent.getId()).join();
+
+            var intact = Arrays.equals(data, Files.readAllBytes(destination.toPath()));
+            destination.delete();
+
+            return List.of(
+                    upload.toString(),
+                    (uploadNanos / 1_000_000) + "ms",
+                    LayoutBenchmark.rate(data.length, uploadNanos),
+                    String.valueOf(requests),
+                    intact ? "yes" : "NO"
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -5,7 +5,15 @@ import com.uddernetworks.grpc.HolysheetService;
 import com.uddernetworks.holysheet.HolySheet;
 import com.uddernetworks.holysheet.SheetManager;
 import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.io.Cancellation;
+import com.uddernetworks.holysheet.io.ChunkCache;
+import com.uddernetworks.holysheet.io.ExportHedger;
+import com.uddernetworks.holysheet.io.ParityScheme;
+import com.uddernetworks.holysheet.io.SheetCipher;
 import com.uddernetworks.holysheet.io.SheetIO;
+import com.uddernetworks.holysheet.tracing.Tracing;
+import com.uddernetworks.holysheet.utility.Utility;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -25,6 +33,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
@@ -33,10 +42,11 @@ import java.util.stream.Collectors;
 
 import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Compression.*;
 import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.MULTIPART;
+import static com.uddernetworks.grpc.HolysheetService.UploadRequest.Upload.STREAMING;
 import static com.uddernetworks.holysheet.utility.Utility.humanReadableByteCountSI;
 
 @CommandLine.Command(name = "example", mixinStandardHelpOptions = true, version = "DriveStore 1.0.0", customSynopsis = {
-        "([-cm] -u=<file>... | [-cm] -e=<id> | -d=<name/id>... |  -r=<name/id>...) [-agphlzV]"
+        "([-cm] -u=<file>... | [-cm] -e=<id> | -d=<name/id>... |  -r=<name/id>... | -v=<name/id>... | -o=<name/id>...) [-agphlzV]"
 })
 public class CommandHandler implements Runnable {
 
@@ -60,15 +70,54 @@ public class CommandHandler implements Runnable {
     @Option(names = {"-g", "--grpc"}, description = "Starts the gRPC server on the given port, used to interface with other apps")
     int grpc = -1;
 
+    @Option(names = {"--metrics"}, description = "Exposes Prometheus metrics on the given port alongside the gRPC server", paramLabel = "<port>")
+    int metrics = -1;
+
     @Option(names = {"-p", "--parent"}, description = "Kills the process (When running with socket) when the given PID is killed")
     int parent = -1;
 
     @Option(names = {"-c", "--compress"}, description = "Compressed before uploading, currently uses Zip format")
     boolean compression;
 
-    @Option(names = {"-m", "--sheetSize"}, defaultValue = "10000000", description = "The maximum size in bytes a single sheet can be. Defaults to 10MB")
+    @Option(names = {"-m", "--sheetSize"}, defaultValue = "10000000", description = "The maximum size in bytes a single sheet can be, or 0 to pick one from the file size and recent request times. Defaults to 10MB")
     int sheetSize;
 
+    @Option(names = {"--layout"}, description = "The layout of each sheet as <cellWidth>x<columns>x<rows>, where 0 rows only limits sheets by size. Defaults to 32766x1x0", paramLabel = "<layout>")
+    String layout;
+
+    @Option(names = {"--trace"}, description = "Writes a trace of every transfer to the given directory, in the Chrome trace event format", paramLabel = "<directory>")
+    File traceDirectory;
+
+    @Option(names = {"--timings"}, description = "Prints the time spent in each stage after every transfer")
+    boolean timings;
+
+    @Option(names = {"--stream"}, description = "Sends each sheet while it is being encoded, instead of once it is complete")
+    boolean stream;
+
+    @Option(names = {"--delta"}, description = "Only uploads the blocks that changed since the last upload with the same name, reusing the sheets of the rest")
+    boolean delta;
+
+    @Option(names = {"--keep-versions"}, description = "With --delta, deletes all but the given amount of newest versions once uploaded, keeping sheets they still use", paramLabel = "<count>")
+    int keepVersions;
+
+    @Option(names = {"--parity"}, description = "Uploads <k>+<m> parity, adding m Reed-Solomon parity sheets to every k sheets so any k of them restore the data, at m/k extra storage. Not supported with --delta", paramLabel = "<k>+<m>")
+    String parity;
+
+    @Option(names = {"--file-version"}, description = "Downloads the given version of the file instead of the newest", paramLabel = "<version>")
+    int fileVersion;
+
+    @Option(names = {"--cache"}, description = "Keeps downloaded sheets in the given directory, so downloading them again is served locally", paramLabel = "<directory>")
+    File cacheDirectory;
+
+    @Option(names = {"--cache-size"}, defaultValue = "1000000000", description = "The most bytes --cache may use before the least recently used sheets are removed. Defaults to 1GB", paramLabel = "<bytes>")
+    long cacheSize;
+
+    @Option(names = {"--key"}, description = "Encrypts uploaded sheets with the AES key in the given file (raw or Base64), and decrypts sheets encrypted with it. May be given more than once, where the first key encrypts and any may decrypt", paramLabel = "<file>")
+    List<File> keys;
+
+    @Option(names = {"--hedge-budget"}, defaultValue = "5", description = "Duplicates sheet exports slower than the recent 95th percentile, using whichever finishes first, with at most the given percent of extra exports. 0 disables hedging. Defaults to 5", paramLabel = "<percent>")
+    double hedgeBudget;
+
     @ArgGroup(multiplicity = "0..1")
     RequiresParam param;
 
@@ -87,17 +136,53 @@ public class CommandHandler implements Runnable {
         @Option(names = {"-e", "--clone"}, arity = "1..*", description = "Clones the remote file ID to Google Sheets", paramLabel = "<id/name>")
         List<String> clone;
 
+        @Option(names = {"-o", "--copy"}, arity = "1..*", description = "Copies the remote file on Drive's side, without re-encoding it", paramLabel = "<id/name>")
+        List<String> copy;
+
         @Option(names = {"-u", "--upload"}, arity = "1..*", description = "Upload the local file", paramLabel = "<file>")
         File[] upload;
+
+        @Option(names = {"-v", "--verify"}, arity = "1..*", description = "Verifies the checksums of the remote file without saving it", paramLabel = "<id/name>")
+        List<String> verify;
+
+        @Option(names = {"--versions"}, arity = "1..*", description = "Lists the versions of the remote file", paramLabel = "<id/name>")
+        List<String> versions;
     }
 
     @Override
     public void run() {
         suicideForParent(parent);
 
+        Tracing.setExportDirectory(traceDirectory == null ? null : traceDirectory.toPath());
+        Tracing.setPrintSummary(timings);
+
+        if (cacheDirectory != null) {
+            try {
+                ChunkCache.setShared(new ChunkCache(cacheDirectory.toPath(), cacheSize));
+            } catch (IOException e) {
+                LOGGER.error("Unable to open the chunk cache at " + cacheDirectory.getAbsolutePath(), e);
+            }
+        }
+
+        if (hedgeBudget < 0 || hedgeBudget > 100) {
+            LOGGER.error("--hedge-budget must be between 0 and 100, not {}", hedgeBudget);
+            return;
+        }
+
+        ExportHedger.setShared(hedgeBudget == 0 ? null : new ExportHedger(hedgeBudget / 100));
+
+        if (keys != null && !keys.isEmpty()) {
+            try {
+                SheetCipher.setShared(SheetCipher.load(keys.stream().map(File::toPath).collect(Collectors.toList())));
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.error("Unable to load the encryption keys", e);
+                return;
+            }
+        }
+
         if (grpc > 0) {
             holySheet.init(localAuth ? credentials : null);
-            holySheet.getGrpcClient().start(grpc);
+            holySheet.getGrpcClient().start(grpc, metrics);
             return;
         }
 
@@ -130,6 +215,21 @@ public class CommandHandler implements Runnable {
             cloneFiles();
             return;
         }
+
+        if (param.verify != null) {
+            verify();
+            return;
+        }
+
+        if (param.copy != null) {
+            copyFiles();
+            return;
+        }
+
+        if (param.versions != null) {
+            listVersions();
+            return;
+        }
     }
 
     private void list() {
@@ -150,14 +250,14 @@ public class CommandHandler implements Runnable {
                 .map(file -> List.of(
                         file.getName(),
                         humanReadableByteCountSI(Long.parseLong(file.getProperties().get("size"))),
-                        String.valueOf(getSheetCount(file)),
+                        String.valueOf(SheetIO.getSheetCount(file)),
                         file.getOwners().stream().map(User::getDisplayName).collect(Collectors.joining(",")),
                         DATE_FORMAT.format(new Date(file.getModifiedTime().getValue())),
                         file.getId()
                 )).collect(Collectors.toList()), List.of(
                 "Total",
                 humanReadableByteCountSI(uploads.stream().mapToLong(file -> Long.parseLong(file.getProperties().get("size"))).sum()),
-                String.valueOf(uploads.stream().mapToInt(CommandHandler::getSheetCount).sum()),
+                String.valueOf(uploads.stream().mapToInt(SheetIO::getSheetCount).sum()),
                 "",
                 "",
                 ""
@@ -179,13 +279,39 @@ public class CommandHandler implements Runnable {
             return;
         }
 
+        ParityScheme parityScheme = null;
+        if (parity != null) {
+            if (delta) {
+                LOGGER.error("--parity can not be used with --delta");
+                return;
+            }
+
+            try {
+                parityScheme = ParityScheme.parse(parity);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error(e.getMessage());
+                return;
+            }
+        }
+
         LOGGER.info("Uploading {}...", file.getName());
 
         try {
             long start = System.currentTimeMillis();
             var name = FilenameUtils.getName(file.getAbsolutePath());
 
-            var ups = sheetIO.uploadDataFile(name, "/", file.length(), sheetSize, compression ? ZIP : NONE, MULTIPART, new FileInputStream(file));
+            com.google.api.services.drive.model.File ups;
+            if (delta) {
+                ups = sheetIO.uploadDeltaFile(name, "/", file.length(), sheetSize, SheetLayout.parse(layout), compression ? ZIP : NONE, stream ? STREAMING : MULTIPART, new FileInputStream(file), null, new Cancellation());
+            } else if (parityScheme != null) {
+                ups = sheetIO.uploadParityFile(name, "/", file.length(), sheetSize, SheetLayout.parse(layout), compression ? ZIP : NONE, stream ? STREAMING : MULTIPART, parityScheme, new FileInputStream(file), null, new Cancellation());
+            } else {
+                ups = sheetIO.uploadDataFile(name, "/", file.length(), sheetSize, SheetLayout.parse(layout), compression ? ZIP : NONE, stream ? STREAMING : MULTIPART, new FileInputStream(file), null);
+            }
+
+            if (delta) {
+                sheetIO.pruneVersions(ups, keepVersions);
+            }
 
             LOGGER.info("Uploaded {} in {}ms", ups.getId(), System.currentTimeMillis() - start);
         } catch (IOException e) {
@@ -207,13 +333,24 @@ public class CommandHandler implements Runnable {
             }
 
             long start = System.currentTimeMillis();
-            var sheet = sheetManager.getFile(idName);
+            var sheet = sheetManager.getFile(idName, Utility.DRIVE_FIELDS);
 
             if (sheet == null) { // probably won't return null, will just throw
                 LOGGER.info("Couldn't find file with id/name of {}", idName);
                 return CompletableFuture.completedFuture(null);
             }
 
+            if (fileVersion > 0) {
+                var version = sheetIO.findVersion(sheet, fileVersion);
+                if (version.isEmpty()) {
+                    LOGGER.info("Couldn't find version {} of {}", fileVersion, idName);
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                sheet = version.get();
+                idName = sheet.getId();
+            }
+
             return sheetIO.downloadData(new File(sheet.getName()), idName).exceptionally(t -> {
                 LOGGER.error("An error occurred while downloading file", t);
                 return null;
@@ -224,6 +361,25 @@ public class CommandHandler implements Runnable {
         }
     }
 
+    private void verify() {
+        param.verify.forEach(idName -> {
+            if (!ID_PATTERN.matcher(idName).matches()) {
+                idName = sheetManager.getIdOfName(idName).orElse(idName);
+            }
+
+            try {
+                var corrupt = sheetIO.verifyData(idName).join();
+                if (corrupt.isEmpty()) {
+                    LOGGER.info("{} is intact", idName);
+                } else {
+                    LOGGER.error("{} has {} missing or corrupt sheet{}: {}", idName, corrupt.size(), corrupt.size() == 1 ? "" : "s", corrupt);
+                }
+            } catch (CompletionException e) {
+                LOGGER.error("An error occurred while verifying file " + idName, e.getCause());
+            }
+        });
+    }
+
     private void remove() {
         param.remove.forEach(idName -> {
             try {
@@ -232,7 +388,7 @@ public class CommandHandler implements Runnable {
                 }
 
                 sheetIO.deleteData(idName, false, false);
-            } catch (IOException e) {
+            } catch (IOException | IllegalStateException e) {
                 LOGGER.error("An error has occurred while deleting the file " + idName, e);
             }
         });
@@ -250,6 +406,56 @@ public class CommandHandler implements Runnable {
         }
     }
 
+    private void copyFiles() {
+        param.copy.forEach(idName -> {
+            if (!ID_PATTERN.matcher(idName).matches()) {
+                idName = sheetManager.getIdOfName(idName).orElse(idName);
+            }
+
+            try {
+                long start = System.currentTimeMillis();
+                var source = sheetManager.getFile(idName, Utility.DRIVE_FIELDS);
+                var copy = sheetIO.copyData(source, source.getName(), SheetIO.getPath(source), null, new Cancellation());
+
+                LOGGER.info("Copied {} to {} in {}ms", idName, copy.getId(), System.currentTimeMillis() - start);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("An error occurred while copying file " + idName, e);
+            }
+        });
+    }
+
+    private void listVersions() {
+        param.versions.forEach(idName -> {
+            if (!ID_PATTERN.matcher(idName).matches()) {
+                idName = sheetManager.getIdOfName(idName).orElse(idName);
+            }
+
+            try {
+                var versions = sheetIO.listVersions(sheetManager.getFile(idName, Utility.DRIVE_FIELDS));
+                var table = new ConsoleTableBuilder()
+                        .addColumn("Version", 7)
+                        .addColumn("Size", 8)
+                        .addColumn("Sheets", 6)
+                        .addColumn("Date", 10)
+                        .addColumn("Id", 33)
+                        .setHorizontalSpacing(3);
+
+                System.out.println("\n");
+                System.out.println(table.generateTable(versions
+                        .stream()
+                        .map(file -> List.of(
+                                String.valueOf(SheetIO.getVersion(file)),
+                                humanReadableByteCountSI(getSize(file)),
+                                String.valueOf(SheetIO.getSheetCount(file)),
+                                DATE_FORMAT.format(new Date(file.getModifiedTime().getValue())),
+                                file.getId()
+                        )).collect(Collectors.toList())));
+            } catch (IOException e) {
+                LOGGER.error("An error occurred while listing the versions of file " + idName, e);
+            }
+        });
+    }
+
     private void suicideForParent(int parent) {
         if (parent == -1) {
             return;
@@ -264,24 +470,6 @@ public class CommandHandler implements Runnable {
         }, 1, 3, TimeUnit.SECONDS);
     }
 
-    public static int getSheetCount(com.google.api.services.drive.model.File file) {
-        var string = file.getProperties().get("sheets");
-        if (!StringUtils.isNumeric(string)) {
-            return 0;
-        }
-
-        return Integer.parseInt(string);
-    }
-
-    public static String getPath(com.google.api.services.drive.model.File file) {
-        var path = file.getProperties().get("path");
-        if (path == null) {
-            return "";
-        }
-
-        return path;
-    }
-
     public static boolean isStarred(com.google.api.services.drive.model.File file) {
         var string = file.getProperties().get("starred");
         return string != null && string.equals("true");
@@ -0,0 +1,260 @@
+package com.uddernetworks.holysheet.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A growable byte buffer made of {@link ChunkBufferPool} segments, replacing a {@link java.io.ByteArrayOutputStream}
+ * for chunk assembly without the copies of growing and {@code toByteArray()}.
+ * <p>
+ * A buffer is written once by a single thread, then {@link #seal() sealed}, after which it may be read through
+ * {@link #openStream()} views any number of times (e.g. once per upload attempt). While it is still being written, a
+ * single {@link #openLiveStream() live} view may follow the writer, blocking until more bytes are available. Its
+ * segments go back to the pool on {@link #release()}, after which it must no longer be read.
+ */
+public class ChunkBuffer {
+
+    // How many bytes are written between publishing them to a live reader
+    private static final int PUBLISH_INTERVAL = 0x10000;
+
+    private final ChunkBufferPool pool;
+    private final byte[][] segments;
+    private int segmentCount;
+    private int reserved;
+    private long length;
+
+    private volatile long published;
+    private volatile boolean sealed;
+    private volatile boolean released;
+
+    ChunkBuffer(ChunkBufferPool pool, int reserved) {
+        this.pool = pool;
+        this.reserved = reserved;
+        this.segments = new byte[reserved][];
+    }
+
+    void write(int b) {
+        if (sealed) {
+            throw new IllegalStateException("Buffer has been sealed");
+        }
+
+        int position = (int) (length % ChunkBufferPool.SEGMENT_SIZE);
+        if (position == 0) {
+            if (segmentCount == reserved) {
+                throw new IllegalStateException("Buffer is over its reserved " + reserved + " segments");
+            }
+
+            segments[segmentCount++] = pool.takeSegment();
+        }
+
+        segments[segmentCount - 1][position] = (byte) b;
+
+        if (++length - published >= PUBLISH_INTERVAL) {
+            publish();
+        }
+    }
+
+    /**
+     * Makes the buffer read-only, handing reserved segments that were never written to back to the pool.
+     */
+    void seal() {
+        int unused = reserved - segmentCount;
+        if (unused > 0) {
+            pool.release(unused);
+            reserved -= unused;
+        }
+
+        sealed = true;
+        publish();
+    }
+
+    private void publish() {
+        published = length;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Opens a read-only view over the buffer's bytes.
+     *
+     * @return The stream
+     */
+    public InputStream openStream() {
+        checkReadable();
+        return new ChunkBufferInputStream(false);
+    }
+
+    /**
+     * Opens a read-only view that may be read while the buffer is being written, blocking until more bytes are written
+     * or the buffer is sealed. If the buffer is released before being sealed, reads fail with an {@link IOException}.
+     *
+     * @return The stream
+     */
+    public InputStream openLiveStream() {
+        if (released) {
+            throw new IllegalStateException("Buffer has been released");
+        }
+
+        return new ChunkBufferInputStream(true);
+    }
+
+    /**
+     * Writes the buffer's bytes to the given stream.
+     *
+     * @param out The stream to write to
+     * @throws IOException If the stream could not be written to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        checkReadable();
+
+        long remaining = length;
+        for (int i = 0; i < segmentCount; i++) {
+            int count = (int) Math.min(remaining, ChunkBufferPool.SEGMENT_SIZE);
+            out.write(segments[i], 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Returns the buffer's segments to its pool. Releasing a buffer more than once has no effect.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+
+        released = true;
+        for (int i = 0; i < segmentCount; i++) {
+            pool.giveSegment(segments[i]);
+            segments[i] = null;
+        }
+
+        pool.release(reserved);
+        notifyAll();
+    }
+
+    private void checkReadable() {
+        if (!sealed || released) {
+            throw new IllegalStateException(released ? "Buffer has been released" : "Buffer has not been sealed");
+        }
+    }
+
+    /**
+     * Waits until bytes past the given position are readable.
+     *
+     * @param position The position to read from
+     * @return The amount of readable bytes, or 0 once the buffer is sealed and fully read
+     */
+    private synchronized long awaitReadable(long position) throws IOException {
+        try {
+            while (published <= position && !sealed && !released) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for encoded data");
+        }
+
+        if (released) {
+            throw new IOException("Buffer was released before it was sealed");
+        }
+
+        return published - position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    private class ChunkBufferInputStream extends InputStream {
+
+        private final boolean live;
+        private long position;
+        private long mark;
+
+        ChunkBufferInputStream(boolean live) {
+            this.live = live;
+        }
+
+        private long readable() throws IOException {
+            if (live) {
+                return awaitReadable(position);
+            }
+
+            if (released) {
+                throw new IOException("Buffer has been released");
+            }
+
+            return length - position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (readable() <= 0) {
+                return -1;
+            }
+
+            var segment = segments[(int) (position / ChunkBufferPool.SEGMENT_SIZE)];
+            return segment[(int) (position++ % ChunkBufferPool.SEGMENT_SIZE)] & 255;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            long readable = readable();
+            if (readable <= 0) {
+                return -1;
+            }
+
+            var segment = segments[(int) (position / ChunkBufferPool.SEGMENT_SIZE)];
+            int segmentPosition = (int) (position % ChunkBufferPool.SEGMENT_SIZE);
+            int count = (int) Math.min(len, Math.min(readable, ChunkBufferPool.SEGMENT_SIZE - segmentPosition));
+
+            System.arraycopy(segment, segmentPosition, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, readable()));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, (live ? published : length) - position));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.uddernetworks.holysheet.encoding;
+
+import com.uddernetworks.holysheet.metrics.Metrics;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded arena of fixed-size byte segments that {@link ChunkBuffer}s are assembled from. Segments are allocated
+ * lazily and reused once released, so the heap used for chunk assembly never exceeds {@link #getCapacity()} bytes no
+ * matter how many uploads run at once.
+ * <p>
+ * A buffer reserves every segment it may need up front, so a buffer that has been acquired can always be filled; when
+ * the pool is exhausted {@link #acquire(long)} blocks until another buffer is released.
+ */
+public class ChunkBufferPool {
+
+    public static final int SEGMENT_SIZE = 0x100000; // 1MB
+
+    // 256MB, enough for 25 concurrent 10MB sheets
+    private static final ChunkBufferPool SHARED = new ChunkBufferPool(Integer.getInteger("holysheet.bufferPoolSegments", 256));
+
+    static {
+        Metrics.gauge("holysheet_buffer_pool_available_bytes", "Bytes of the shared chunk buffer pool not reserved by a chunk", SHARED::getAvailable);
+    }
+
+    private final int segments;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<byte[]> free = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Creates a pool.
+     *
+     * @param segments The maximum amount of {@link #SEGMENT_SIZE} segments the pool may hold
+     */
+    public ChunkBufferPool(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("A pool must have at least one segment, was " + segments);
+        }
+
+        this.segments = segments;
+        this.permits = new Semaphore(segments, true);
+    }
+
+    /**
+     * Gets the pool shared by every upload in the process. Its size in segments is set with the
+     * {@code holysheet.bufferPoolSegments} system property.
+     *
+     * @return The shared pool
+     */
+    public static ChunkBufferPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Acquires an empty buffer able to hold the given amount of bytes, blocking until enough segments are free.
+     *
+     * @param capacity The maximum amount of bytes that will be written to the buffer
+     * @return The buffer
+     */
+    public ChunkBuffer acquire(long capacity) {
+        int reserved = getSegmentCount(capacity);
+        if (reserved > segments) {
+            throw new IllegalArgumentException("A buffer of " + capacity + " bytes is larger than the pool's " + getCapacity() + " bytes");
+        }
+
+        permits.acquireUninterruptibly(reserved);
+        return new ChunkBuffer(this, reserved);
+    }
+
+    /**
+     * Gets the amount of segments needed to hold the given amount of bytes.
+     *
+     * @param length The amount of bytes
+     * @return The amount of segments
+     */
+    public static int getSegmentCount(long length) {
+        return (int) Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    byte[] takeSegment() {
+        var segment = free.poll();
+        return segment == null ? new byte[SEGMENT_SIZE] : segment;
+    }
+
+    void giveSegment(byte[] segment) {
+        free.push(segment);
+    }
+
+    void release(int reserved) {
+        permits.release(reserved);
+    }
+
+    /**
+     * @return The maximum amount of bytes held by all buffers of the pool
+     */
+    public long getCapacity() {
+        return (long) segments * SEGMENT_SIZE;
+    }
+
+    /**
+     * @return The amount of bytes not reserved by any buffer
+     */
+    public long getAvailable() {
+        return (long) permits.availablePermits() * SEGMENT_SIZE;
+    }
+}
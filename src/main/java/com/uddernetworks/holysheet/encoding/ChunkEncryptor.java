@@ -0,0 +1,42 @@
+package com.uddernetworks.holysheet.encoding;
+
+import java.util.Map;
+
+/**
+ * Encrypts the original bytes of every chunk an {@link EncodingOutputStream} emits before they are encoded. Each chunk
+ * is encrypted on its own, with whatever is needed to decrypt it returned by {@link #start(int, long)} and stored with
+ * the chunk's sheet, so sheets may still be decoded independently and in any order.
+ */
+public interface ChunkEncryptor {
+
+    /**
+     * Starts encrypting a chunk.
+     *
+     * @param index  The index of the chunk
+     * @param offset The offset of the chunk's first original byte
+     * @return The properties needed to decrypt the chunk
+     */
+    Map<String, String> start(int index, long offset);
+
+    /**
+     * Encrypts more of the current chunk.
+     *
+     * @param data   The original bytes
+     * @param offset The offset of the first byte to encrypt
+     * @param length The amount of bytes to encrypt
+     * @return The ciphertext produced so far, which may be shorter than the input
+     */
+    byte[] update(byte[] data, int offset, int length);
+
+    /**
+     * Finishes the current chunk.
+     *
+     * @return The rest of the chunk's ciphertext, at most {@link #getOverhead()} bytes
+     */
+    byte[] finish();
+
+    /**
+     * @return The most bytes {@link #finish()} may return, which a chunk must leave room for
+     */
+    int getOverhead();
+}
@@ -6,7 +6,7 @@ import java.nio.charset.StandardCharsets;
 
 /**
  * An OutputStream (Backed by a BufferArrayOutputStream) that decodes the written data from a slightly altered Base91,
- * ignoring newline/carriage returns.
+ * ignoring any characters outside of the alphabet (Newlines, carriage returns and chunk escapes).
  *
  * Base91 decoding comes primarily from bwaldvogel
  * @see <a href="http://github.com/bwaldvogel/base91">bwaldvogel/base91</a>
@@ -47,12 +47,13 @@ public class DecodingOutputStream<T extends OutputStream> extends ByteArrayFilte
 
     @Override
     public void write(int b) throws IOException {
-        if (b == 10 || b == 13) return;
+        var decoded = DECODING_TABLE[b & 255];
+        if (decoded == -1) return;
 
         if (dv == -1) {
-            dv = DECODING_TABLE[b];
+            dv = decoded;
         } else {
-            dv += DECODING_TABLE[b] * BASE;
+            dv += decoded * BASE;
             dbq |= dv << dn;
             dn += (dv & 8191) > 88 ? 13 : 14;
             do {
@@ -66,7 +67,7 @@ public class DecodingOutputStream<T extends OutputStream> extends ByteArrayFilte
 
     @Override
     public void write(byte[] data, int offset, int length) throws IOException {
-        for (int i = offset; i < length; ++i) {
+        for (int i = offset; i < offset + length; ++i) {
             write(data[i]);
         }
     }
@@ -0,0 +1,88 @@
+package com.uddernetworks.holysheet.encoding;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A single sheet's worth of encoded data emitted by an {@link EncodingOutputStream}. Each chunk is a self-contained
+ * Base91 stream, so it may be decoded on its own and written at {@link #getOffset()} of the original file.
+ * <p>
+ * The encoded characters are held in a pooled {@link ChunkBuffer}, which must be {@link #release() released} once the
+ * chunk has been uploaded.
+ */
+public class EncodedChunk {
+
+    private final int index;
+    private final ChunkBuffer buffer;
+    private final long offset;
+    private final long decodedLength;
+    private final long checksum;
+    private final Map<String, String> properties;
+
+    public EncodedChunk(int index, ChunkBuffer buffer, long offset, long decodedLength, long checksum) {
+        this(index, buffer, offset, decodedLength, checksum, Map.of());
+    }
+
+    public EncodedChunk(int index, ChunkBuffer buffer, long offset, long decodedLength, long checksum, Map<String, String> properties) {
+        this.index = index;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.decodedLength = decodedLength;
+        this.checksum = checksum;
+        this.properties = properties;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return A new read-only stream of the encoded characters
+     */
+    public InputStream openStream() {
+        return buffer.openStream();
+    }
+
+    /**
+     * @return The amount of encoded characters
+     */
+    public long getLength() {
+        return buffer.getLength();
+    }
+
+    /**
+     * Returns the chunk's buffer to its pool. The chunk may not be read afterwards.
+     */
+    public void release() {
+        buffer.release();
+    }
+
+    /**
+     * @return The offset of the chunk's first decoded byte in the original file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The amount of original (decoded) bytes this chunk holds
+     */
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    /**
+     * @return The CRC32C of the chunk's original (decoded) bytes
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return The properties needed to decrypt the chunk, given by its {@link ChunkEncryptor}, or an empty map if it
+     * isn't encrypted
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+}
@@ -1,19 +1,37 @@
 package com.uddernetworks.holysheet.encoding;
 
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.tracing.Span;
+import com.uddernetworks.holysheet.tracing.Trace;
+import com.uddernetworks.holysheet.utility.ChecksumUtils;
 import org.apache.commons.io.IOUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
 import static com.uddernetworks.holysheet.encoding.DecodingOutputStream.BASE;
 import static com.uddernetworks.holysheet.encoding.DecodingOutputStream.ENCODING_TABLE;
 
 /**
- * An OutputStream (Backed by a BufferArrayOutputStream) that encodes the written data to a slightly altered Base91,
- * adding a newline every 0x7FFF bytes (Due to Google Sheets' restrictions)
+ * An OutputStream (Backed by pooled {@link ChunkBuffer}s) that encodes the written data to a slightly altered Base91,
+ * split into cells of a {@link SheetLayout} (By default a newline every 0x7FFF bytes, due to Google Sheets' restrictions)
+ * <p>
+ * Every emitted chunk is a complete Base91 stream of its own (The bit queue is flushed at chunk boundaries), so sheets
+ * may be decoded independently and in any order. A CRC32C of the original bytes is kept for every chunk and for the
+ * whole stream.
+ * <p>
+ * With a {@link ChunkEncryptor}, each chunk's bytes are encrypted on their own before being encoded, while the lengths
+ * and checksums are still those of the original bytes.
+ * <p>
+ * Chunks are assembled in buffers from a {@link ChunkBufferPool} and handed to the chunk consumer as read-only views,
+ * which the consumer must {@link EncodedChunk#release() release} once it has uploaded them.
  *
  * Base91 encoding comes primarily from bwaldvogel
  * @see <a href="http://github.com/bwaldvogel/base91">bwaldvogel/base91</a>
@@ -24,34 +42,148 @@ public class EncodingOutputStream extends FilterOutputStream {
 //    public static final int CELL_WIDTH = 0x7FFF; // Half of 0xFFFF
 //    public static final int CELL_WIDTH = 5; // Half of 0xFFFF
 
+    /**
+     * Written before a chunk starting with a character Sheets would treat as a formula or quote prefix. This is not in
+     * the Base91 alphabet, so it is skipped when decoding.
+     */
+    public static final byte ESCAPE = '\\';
+
+    // The most characters a single write may add past the maximum length, plus those written when finishing a chunk
+    private static final int CHUNK_SLACK = 8;
+
     private final long maxLength;
+    private final SheetLayout layout;
+    private final int cellPairs;
+    private final ChunkBufferPool pool;
+    private final double perByte;
     private int chunkIndex = 0;
 
-    private BiConsumer<Integer, byte[]> chunkConsumer;
+    private Consumer<EncodedChunk> chunkConsumer;
+    private BiConsumer<Integer, ChunkBuffer> chunkStartConsumer;
     private Runnable onClose;
 
+    private ChunkEncryptor encryptor;
+    private Map<String, String> chunkProperties;
+
     private long length = 0;
+    private long decodedLength = 0;
+    private long chunkOffset = 0;
     private int bufferLength = 0;
     private int lineIndex = 0;
+    private int column = 0;
+    private long chunkStartNanos;
+
+    private Trace trace = Trace.NOOP;
+    private Span chunkSpan;
 
     private int ebq = 0;
     private int en = 0;
 
-    private ByteArrayOutputStream buffer;
+    private final CRC32C chunkChecksum = new CRC32C();
+
+    // The CRC32C of every chunk before the current one, combined as each is finished
+    private long checksum = 0;
+
+    private ChunkBuffer buffer;
+    private boolean discarded;
 
     public EncodingOutputStream(long maxLength) {
-        this(maxLength, null);
+        this(maxLength, SheetLayout.DEFAULT, null);
     }
 
-    public EncodingOutputStream(long maxLength, BiConsumer<Integer, byte[]> chunkConsumer) {
-        super(new ByteArrayOutputStream());
-        this.maxLength = maxLength;
+    public EncodingOutputStream(long maxLength, Consumer<EncodedChunk> chunkConsumer) {
+        this(maxLength, SheetLayout.DEFAULT, chunkConsumer);
+    }
+
+    public EncodingOutputStream(long maxLength, SheetLayout layout) {
+        this(maxLength, layout, null);
+    }
+
+    public EncodingOutputStream(long maxLength, SheetLayout layout, Consumer<EncodedChunk> chunkConsumer) {
+        this(maxLength, layout, ChunkBufferPool.getShared(), chunkConsumer);
+    }
+
+    public EncodingOutputStream(long maxLength, SheetLayout layout, ChunkBufferPool pool, Consumer<EncodedChunk> chunkConsumer) {
+        super(OutputStream.nullOutputStream());
+        this.maxLength = layout.getMaxLength(maxLength);
+        this.layout = layout;
+        this.cellPairs = layout.getCellWidth() / 2;
+        this.pool = pool;
         this.chunkConsumer = chunkConsumer;
-        this.buffer = new ByteArrayOutputStream();
+
+        // Base91 needs at most 16 bits per 13, and a separator follows every cellPairs pairs of characters
+        this.perByte = 16 / 13D * (cellPairs * 2 + 1) / (cellPairs * 2);
+
+        if (this.maxLength + CHUNK_SLACK > pool.getCapacity()) {
+            throw new IllegalArgumentException("Sheets of " + this.maxLength + " characters do not fit in the " + pool.getCapacity() + " byte buffer pool");
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        checkDiscarded();
+        if (encryptor != null) {
+            encrypt(new byte[]{(byte) b}, 0, 1);
+        } else {
+            encode(b);
+        }
     }
 
     @Override
-    public void write(int b) {
+    public synchronized void write(byte[] data, int offset, int length) {
+        checkDiscarded();
+        if (encryptor != null) {
+            encrypt(data, offset, length);
+            return;
+        }
+
+        for (int i = offset; i < offset + length; ++i) {
+            encode(data[i]);
+        }
+    }
+
+    private void encode(int b) {
+        if (bufferLength >= maxLength) {
+            finishChunk();
+        }
+
+        chunkChecksum.update(b);
+        decodedLength++;
+        encodeBits(b);
+    }
+
+    /**
+     * Encrypts and encodes original bytes, in runs that are sure to fit in the current chunk along with the rest of its
+     * ciphertext.
+     */
+    private void encrypt(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int room = (int) Math.min(length, (maxLength - getEncryptionSlack() - bufferLength) / perByte);
+            if (room <= 0) {
+                finishChunk();
+                continue;
+            }
+
+            if (chunkProperties == null) {
+                chunkProperties = encryptor.start(chunkIndex, decodedLength);
+            }
+
+            chunkChecksum.update(data, offset, room);
+            decodedLength += room;
+
+            var encrypted = encryptor.update(data, offset, room);
+            if (encrypted != null) {
+                for (var b : encrypted) {
+                    encodeBits(b);
+                }
+            }
+
+            offset += room;
+            length -= room;
+        }
+    }
+
+    private void encodeBits(int b) {
         ebq |= (b & 255) << en;
         en += 8;
         if (en > 13) {
@@ -69,64 +201,226 @@ public class EncodingOutputStream extends FilterOutputStream {
             var first = ENCODING_TABLE[ev % BASE];
             var second = ENCODING_TABLE[ev / BASE];
 
-            if (++lineIndex % CELL_WIDTH == 0) {
+            if (++lineIndex % cellPairs == 0) {
                 if (first != '=' && first != '\'') {
                     lineIndex = 0;
 
-                    if (bufferLength >= maxLength) {
-                        bufferLength = 0;
-                        chunkConsumer.accept(chunkIndex++, buffer.toByteArray());
-                        buffer.reset();
+                    if (++column == layout.getColumns()) {
+                        column = 0;
+                        writeEncoded('\n');
                     } else {
-                        buffer.write('\n');
-                        length++;
-                        bufferLength++;
+                        writeEncoded('\t');
                     }
                 } else {
                     lineIndex--;
                 }
             }
 
-            buffer.write(first);
-            buffer.write(second);
-            length += 2;
-            bufferLength += 2;
+            writeLeading(first);
+            writeEncoded(second);
         }
     }
 
     @Override
-    public void write(byte[] data, int offset, int length) throws IOException {
-        for (int i = offset; i < length; ++i) {
-            write(data[i]);
+    public synchronized void flush() throws IOException {
+        checkDiscarded();
+        if (decodedLength > chunkOffset) {
+            finishChunk();
+        }
+
+        super.flush();
+
+        if (onClose != null) {
+            onClose.run();
         }
     }
 
-    @Override
-    public void flush() throws IOException {
+    /**
+     * Writes the remaining bits of the current chunk, hands it to the chunk consumer and resets the encoder so the next
+     * chunk starts a fresh Base91 stream.
+     */
+    private void finishChunk() {
+        if (chunkProperties != null) {
+            var encrypted = encryptor.finish();
+            if (encrypted != null) {
+                for (var b : encrypted) {
+                    encodeBits(b);
+                }
+            }
+        }
+
         if (en > 0) {
-            buffer.write(ENCODING_TABLE[ebq % BASE]);
-            length++;
+            writeLeading(ENCODING_TABLE[ebq % BASE]);
             if (en > 7 || ebq > 90) {
-                buffer.write(ENCODING_TABLE[ebq / BASE]);
-                length++;
+                writeEncoded(ENCODING_TABLE[ebq / BASE]);
             }
         }
 
-        if (en > 0 || lineIndex > 0) {
-            chunkConsumer.accept(chunkIndex++, buffer.toByteArray());
+        buffer.seal();
+        Metrics.CHUNK_ENCODE_SECONDS.observeNanos(System.nanoTime() - chunkStartNanos);
+        chunkSpan.close();
+        var chunk = new EncodedChunk(chunkIndex++, buffer, chunkOffset, decodedLength - chunkOffset, chunkChecksum.getValue(),
+                chunkProperties == null ? Map.of() : chunkProperties);
+        checksum = ChecksumUtils.combine(checksum, chunk.getChecksum(), chunk.getDecodedLength());
+        buffer = null;
+        chunkProperties = null;
+        chunkChecksum.reset();
+
+        try {
+            chunkConsumer.accept(chunk);
+        } catch (RuntimeException e) {
+            chunk.release();
+            throw e;
         }
 
-        super.flush();
+        chunkOffset = decodedLength;
+        bufferLength = 0;
+        lineIndex = 0;
+        column = 0;
+        ebq = 0;
+        en = 0;
+    }
 
-        if (onClose != null) {
-            onClose.run();
+    /**
+     * Writes an encoded character, escaping it if it is the first of the chunk and would not survive a Sheets import.
+     */
+    private void writeLeading(byte first) {
+        if (bufferLength == 0 && (first == '=' || first == '\'')) {
+            writeEncoded(ESCAPE);
         }
+
+        writeEncoded(first);
     }
 
-    public void setChunkConsumer(BiConsumer<Integer, byte[]> chunkConsumer) {
+    private void writeEncoded(int b) {
+        if (buffer == null) {
+            buffer = pool.acquire(maxLength + CHUNK_SLACK);
+            chunkStartNanos = System.nanoTime();
+            chunkSpan = trace.span("encode", chunkIndex);
+
+            if (chunkStartConsumer != null) {
+                chunkStartConsumer.accept(chunkIndex, buffer);
+            }
+        }
+
+        buffer.write(b);
+        length++;
+        bufferLength++;
+    }
+
+    /**
+     * Finishes the chunk being written, if any, so the next write starts a new one.
+     */
+    public synchronized void endChunk() {
+        checkDiscarded();
+        if (decodedLength > chunkOffset) {
+            finishChunk();
+        }
+    }
+
+    /**
+     * Skips a chunk that is already stored (e.g. unchanged since a previous upload), advancing the stream's index,
+     * lengths and checksum as if its bytes had been written. This may only be called between chunks.
+     *
+     * @param decodedLength The amount of original bytes in the chunk
+     * @param length        The amount of encoded characters in the chunk
+     * @param chunkChecksum The CRC32C of the chunk's original bytes
+     */
+    public synchronized void skipChunk(long decodedLength, long length, long chunkChecksum) {
+        checkDiscarded();
+        if (this.decodedLength > chunkOffset) {
+            throw new IllegalStateException("A chunk may only be skipped between chunks");
+        }
+
+        checksum = ChecksumUtils.combine(checksum, chunkChecksum, decodedLength);
+        chunkIndex++;
+        this.decodedLength += decodedLength;
+        this.length += length;
+        chunkOffset = this.decodedLength;
+    }
+
+    /**
+     * Gets the most original bytes that are guaranteed to fit in a single chunk, however they encode. Writing blocks of
+     * at most this length and calling {@link #endChunk()} after each produces exactly one chunk per block.
+     *
+     * @return The length of the largest block
+     */
+    public long getMaxBlockLength() {
+        return (long) ((maxLength - CHUNK_SLACK - getEncryptionSlack()) / perByte);
+    }
+
+    /**
+     * @return The characters each chunk leaves for the ciphertext its encryptor emits when it is finished
+     */
+    private int getEncryptionSlack() {
+        return encryptor == null ? 0 : (int) Math.ceil(encryptor.getOverhead() * perByte);
+    }
+
+    /**
+     * Abandons the stream, releasing the chunk currently being assembled without passing it to the chunk consumer.
+     * Later writes fail with a {@link CancellationException}. This may be called from any thread, but waits for a write
+     * in progress, so anything the chunk consumer is blocked on should be cancelled first.
+     */
+    public synchronized void discard() {
+        discarded = true;
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    private void checkDiscarded() {
+        if (discarded) {
+            throw new CancellationException("The stream has been discarded");
+        }
+    }
+
+    /**
+     * Sets the encryptor every chunk is encrypted with from the next chunk on. This should be set before anything is
+     * written, and before {@link #getMaxBlockLength()} is used.
+     *
+     * @param encryptor The encryptor, or null to leave chunks unencrypted
+     */
+    public synchronized void setEncryptor(ChunkEncryptor encryptor) {
+        if (chunkProperties != null) {
+            throw new IllegalStateException("The encryptor can not be changed within a chunk");
+        }
+
+        this.encryptor = encryptor;
+    }
+
+    public ChunkEncryptor getEncryptor() {
+        return encryptor;
+    }
+
+    public void setChunkConsumer(Consumer<EncodedChunk> chunkConsumer) {
         this.chunkConsumer = chunkConsumer;
     }
 
+    /**
+     * Sets a consumer given the index and buffer of every chunk as soon as its first character is written, so the
+     * buffer may be read through {@link ChunkBuffer#openLiveStream()} while the chunk is still being encoded. The same
+     * buffer is later passed to the chunk consumer in a complete {@link EncodedChunk}.
+     *
+     * @param chunkStartConsumer The consumer
+     */
+    public void setChunkStartConsumer(BiConsumer<Integer, ChunkBuffer> chunkStartConsumer) {
+        this.chunkStartConsumer = chunkStartConsumer;
+    }
+
+    /**
+     * Sets the trace the encoding of each chunk is recorded in as an {@code encode} span.
+     *
+     * @param trace The trace
+     */
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
     public void setOnClose(Runnable onClose) {
         this.onClose = onClose;
     }
@@ -135,6 +429,20 @@ public class EncodingOutputStream extends FilterOutputStream {
         return length;
     }
 
+    /**
+     * @return The amount of original (unencoded) bytes written so far
+     */
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    /**
+     * @return The CRC32C of all original bytes written so far
+     */
+    public long getChecksum() {
+        return ChecksumUtils.combine(checksum, chunkChecksum.getValue(), decodedLength - chunkOffset);
+    }
+
     public int getChunkIndex() {
         return chunkIndex;
     }
@@ -143,8 +451,16 @@ public class EncodingOutputStream extends FilterOutputStream {
         return bufferLength;
     }
 
-    public static EncodingOutputStream encode(InputStream inputStream, long maxLength, BiConsumer<Integer, byte[]> chunkConsumer) throws IOException {
-        var encodingOut = new EncodingOutputStream(maxLength, chunkConsumer);
+    public SheetLayout getLayout() {
+        return layout;
+    }
+
+    public static EncodingOutputStream encode(InputStream inputStream, long maxLength, Consumer<EncodedChunk> chunkConsumer) throws IOException {
+        return encode(inputStream, maxLength, SheetLayout.DEFAULT, chunkConsumer);
+    }
+
+    public static EncodingOutputStream encode(InputStream inputStream, long maxLength, SheetLayout layout, Consumer<EncodedChunk> chunkConsumer) throws IOException {
+        var encodingOut = new EncodingOutputStream(maxLength, layout, chunkConsumer);
         IOUtils.copy(inputStream, encodingOut);
         encodingOut.flush();
         return encodingOut;
@@ -0,0 +1,208 @@
+package com.uddernetworks.holysheet.encoding;
+
+/**
+ * A systematic Reed-Solomon erasure code over GF(2^8), extending k data shards with m parity shards so that any k of the
+ * k + m shards restore the data. The parity coefficients form a Cauchy matrix, every square submatrix of which is
+ * invertible, so whichever shards are missing the remaining ones can be solved for the data.
+ * <p>
+ * Parity is built one data shard at a time with {@link #addDataShard(int, byte[], int, int, byte[][])}, so the data
+ * shards of a stripe never need to be held at once. Shards shorter than the others are treated as padded with zeros.
+ */
+public class ReedSolomon {
+
+    public static final int MAX_SHARDS = 256;
+
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= POLYNOMIAL;
+            }
+        }
+
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final int[][] coefficients;
+
+    /**
+     * @param dataShards   The amount of data shards in a stripe
+     * @param parityShards The amount of parity shards in a stripe
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("A stripe needs at least one data and parity shard and at most " + MAX_SHARDS + " shards, not " + dataShards + "+" + parityShards);
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.coefficients = new int[parityShards][dataShards];
+
+        // Cauchy matrix of 1 / (x_i + y_j), with x_i = k + i and y_j = j all distinct
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                coefficients[i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    /**
+     * Adds a data shard to the parity shards of its stripe, which start out zeroed.
+     *
+     * @param row    The index of the data shard in its stripe
+     * @param data   The bytes of the shard
+     * @param offset The offset of the shard in the array
+     * @param length The length of the shard, at most that of the parity shards
+     * @param parity The parity shards of the stripe
+     */
+    public void addDataShard(int row, byte[] data, int offset, int length, byte[][] parity) {
+        for (int i = 0; i < parityShards; i++) {
+            multiplyAdd(coefficients[i][row], data, offset, parity[i], length);
+        }
+    }
+
+    /**
+     * Restores the missing data shards of a stripe from any {@code k} of its shards.
+     *
+     * @param shards The data shards followed by the parity shards, null where missing. Data shards may be shorter than
+     *               the given length, and the restored ones are of the full length.
+     * @param length The length of the longest shard, which is that of the parity shards
+     * @throws IllegalArgumentException If fewer than {@code k} shards are present
+     */
+    public void reconstruct(byte[][] shards, int length) {
+        var rows = new int[dataShards];
+        int present = 0;
+        for (int i = 0; i < shards.length && present < dataShards; i++) {
+            if (shards[i] != null) {
+                rows[present++] = i;
+            }
+        }
+
+        if (present < dataShards) {
+            throw new IllegalArgumentException("Only " + present + " of the " + dataShards + " shards needed are present");
+        }
+
+        // The rows of the present shards in the encoding matrix, whose inverse maps them back to the data
+        var matrix = new int[dataShards][dataShards];
+        for (int r = 0; r < dataShards; r++) {
+            if (rows[r] < dataShards) {
+                matrix[r][rows[r]] = 1;
+            } else {
+                matrix[r] = coefficients[rows[r] - dataShards].clone();
+            }
+        }
+
+        var decode = invert(matrix);
+        for (int d = 0; d < dataShards; d++) {
+            if (shards[d] != null) {
+                continue;
+            }
+
+            var restored = new byte[length];
+            for (int c = 0; c < dataShards; c++) {
+                var shard = shards[rows[c]];
+                multiplyAdd(decode[d][c], shard, 0, restored, Math.min(length, shard.length));
+            }
+
+            shards[d] = restored;
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    private static void multiplyAdd(int coefficient, byte[] in, int offset, byte[] out, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+
+        var table = MULTIPLY[coefficient];
+        for (int n = 0; n < length; n++) {
+            out[n] ^= table[in[offset + n] & 0xFF];
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return MULTIPLY[a][b] & 0xFF;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("Zero has no inverse");
+        }
+
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Inverts a matrix by Gauss-Jordan elimination.
+     */
+    private static int[][] invert(int[][] matrix) {
+        int size = matrix.length;
+        var work = new int[size][];
+        var result = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (work[pivot][column] == 0) {
+                if (++pivot == size) {
+                    throw new IllegalArgumentException("The matrix is singular");
+                }
+            }
+
+            swap(work, column, pivot);
+            swap(result, column, pivot);
+
+            int scale = inverse(work[column][column]);
+            for (int j = 0; j < size; j++) {
+                work[column][j] = multiply(work[column][j], scale);
+                result[column][j] = multiply(result[column][j], scale);
+            }
+
+            for (int row = 0; row < size; row++) {
+                int factor = work[row][column];
+                if (row == column || factor == 0) {
+                    continue;
+                }
+
+                for (int j = 0; j < size; j++) {
+                    work[row][j] ^= multiply(factor, work[column][j]);
+                    result[row][j] ^= multiply(factor, result[column][j]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void swap(int[][] matrix, int a, int b) {
+        var row = matrix[a];
+        matrix[a] = matrix[b];
+        matrix[b] = row;
+    }
+}
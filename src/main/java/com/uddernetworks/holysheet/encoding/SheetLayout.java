@@ -0,0 +1,119 @@
+package com.uddernetworks.holysheet.encoding;
+
+/**
+ * The geometry encoded data is laid out in on a sheet: the characters in each cell, the amount of tab-separated cells
+ * in each row, and optionally the maximum rows of a single sheet. A layout is stored in a parent's {@code layout}
+ * property as {@code <cellWidth>x<columns>x<rows>}, where 0 rows means sheets are only bounded by their size.
+ */
+public class SheetLayout {
+
+    // Google Sheets' own limits
+    public static final int MAX_CELL_CHARACTERS = 50000;
+    public static final int MAX_COLUMNS = 18278;
+    public static final long MAX_CELLS = 10_000_000;
+
+    // Room for the characters a cell may grow by when a line break is delayed past a '=' or '\''
+    private static final int CELL_SLACK = 64;
+
+    public static final SheetLayout DEFAULT = new SheetLayout(EncodingOutputStream.CELL_WIDTH * 2, 1, 0);
+
+    private final int cellWidth;
+    private final int columns;
+    private final int rows;
+
+    /**
+     * Creates a layout, validating it against Sheets' limits.
+     *
+     * @param cellWidth The amount of encoded characters in a cell
+     * @param columns   The amount of cells in a row
+     * @param rows      The maximum amount of rows in a sheet, or 0 for no limit
+     */
+    public SheetLayout(int cellWidth, int columns, int rows) {
+        if (cellWidth < 16 || cellWidth > MAX_CELL_CHARACTERS - CELL_SLACK) {
+            throw new IllegalArgumentException("Cell width must be between 16 and " + (MAX_CELL_CHARACTERS - CELL_SLACK) + ", was " + cellWidth);
+        }
+
+        if (columns < 1 || columns > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Columns must be between 1 and " + MAX_COLUMNS + ", was " + columns);
+        }
+
+        if (rows < 0 || (long) rows * columns > MAX_CELLS) {
+            throw new IllegalArgumentException("Rows must be positive and make up at most " + MAX_CELLS + " cells, was " + rows);
+        }
+
+        this.cellWidth = cellWidth & ~1;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Creates a layout from request values, where any value of 0 falls back to {@link #DEFAULT}.
+     *
+     * @param cellWidth The amount of encoded characters in a cell, or 0
+     * @param columns   The amount of cells in a row, or 0
+     * @param rows      The maximum amount of rows in a sheet, or 0 for no limit
+     * @return The layout
+     */
+    public static SheetLayout of(int cellWidth, int columns, int rows) {
+        if (cellWidth == 0 && columns == 0 && rows == 0) {
+            return DEFAULT;
+        }
+
+        return new SheetLayout(cellWidth == 0 ? DEFAULT.cellWidth : cellWidth, columns == 0 ? DEFAULT.columns : columns, rows);
+    }
+
+    /**
+     * Parses a layout in the form of {@code <cellWidth>x<columns>x<rows>}. A blank or null string is {@link #DEFAULT}.
+     *
+     * @param layout The layout string
+     * @return The layout
+     */
+    public static SheetLayout parse(String layout) {
+        if (layout == null || layout.isBlank()) {
+            return DEFAULT;
+        }
+
+        var parts = layout.trim().split("x");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Layouts are in the form of <cellWidth>x<columns>x<rows>, got \"" + layout + "\"");
+        }
+
+        try {
+            return of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Layouts are in the form of <cellWidth>x<columns>x<rows>, got \"" + layout + "\"", e);
+        }
+    }
+
+    /**
+     * Gets the largest encoded length a sheet may have under this layout, no larger than the requested size. A sheet of
+     * this length never exceeds the layout's rows, nor Sheets' cell limit.
+     *
+     * @param maxLength The requested maximum encoded length of a sheet
+     * @return The maximum length to cut sheets at
+     */
+    public long getMaxLength(long maxLength) {
+        long cells = rows > 0 ? (long) rows * columns : MAX_CELLS;
+
+        // The final cell may be partially filled when a sheet is cut, so leave it out
+        long cellsLength = cells == 1 ? cellWidth - 8 : (cells - 1) * cellWidth;
+        return Math.min(maxLength, cellsLength);
+    }
+
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return cellWidth + "x" + columns + "x" + rows;
+    }
+}
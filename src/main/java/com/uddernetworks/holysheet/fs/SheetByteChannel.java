@@ -0,0 +1,114 @@
+package com.uddernetworks.holysheet.fs;
+
+import com.uddernetworks.holysheet.io.SheetInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only channel over a stored file. Reads go through a {@link SheetInputStream}, so sequential reads have the
+ * following sheets fetched ahead of them and a new position only fetches the sheet containing it.
+ */
+class SheetByteChannel implements SeekableByteChannel {
+
+    private static final int COPY_SIZE = 0x10000;
+
+    private final SheetFileSystem fileSystem;
+    private final SheetInputStream in;
+    private long position;
+    private boolean open = true;
+
+    SheetByteChannel(SheetFileSystem fileSystem, SheetInputStream in) {
+        this.fileSystem = fileSystem;
+        this.in = in;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= in.getLength()) {
+            return -1;
+        }
+
+        // The position only moves the stream once read from, so seeking around without reading fetches nothing
+        if (in.getPosition() != position) {
+            in.seek(position);
+        }
+
+        int read;
+        if (dst.hasArray()) {
+            read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+        } else {
+            var buffer = new byte[Math.min(dst.remaining(), COPY_SIZE)];
+            read = in.read(buffer);
+            if (read > 0) {
+                dst.put(buffer, 0, read);
+            }
+        }
+
+        if (read > 0) {
+            position += read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SheetByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return in.getLength();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (open) {
+            open = false;
+            in.close();
+            fileSystem.closed(this);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.uddernetworks.holysheet.fs;
+
+import com.google.api.services.drive.model.File;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes of a stored file, or of a directory implied by the {@code path} of the files under it. A file's size
+ * is its original (decoded) size, and its key is the ID of its parent folder.
+ */
+public class SheetFileAttributes implements BasicFileAttributes {
+
+    private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+    private final File upload;
+
+    /**
+     * @param upload The parent folder of a file, or null for a directory
+     */
+    SheetFileAttributes(File upload) {
+        this.upload = upload;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return upload == null || upload.getModifiedTime() == null ? EPOCH : FileTime.fromMillis(upload.getModifiedTime().getValue());
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return lastModifiedTime();
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return lastModifiedTime();
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return upload != null;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return upload == null;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        if (upload == null) {
+            return 0;
+        }
+
+        var properties = upload.getProperties();
+        return NumberUtils.toLong(properties.get("decodedSize"), NumberUtils.toLong(properties.get("size")));
+    }
+
+    @Override
+    public Object fileKey() {
+        return upload == null ? null : upload.getId();
+    }
+
+    /**
+     * @return Every attribute by its name in the {@code basic} view
+     */
+    Map<String, Object> toMap() {
+        var attributes = new LinkedHashMap<String, Object>();
+        attributes.put("lastModifiedTime", lastModifiedTime());
+        attributes.put("lastAccessTime", lastAccessTime());
+        attributes.put("creationTime", creationTime());
+        attributes.put("size", size());
+        attributes.put("isRegularFile", isRegularFile());
+        attributes.put("isDirectory", isDirectory());
+        attributes.put("isSymbolicLink", isSymbolicLink());
+        attributes.put("isOther", isOther());
+        attributes.put("fileKey", fileKey());
+        return attributes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.uddernetworks.holysheet.fs;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+
+/**
+ * The single, read-only store of a {@link SheetFileSystem}. Its total space is the original size of every stored file.
+ */
+class SheetFileStore extends FileStore {
+
+    private final SheetFileSystem fileSystem;
+
+    SheetFileStore(SheetFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    @Override
+    public String name() {
+        return SheetFileSystemProvider.SCHEME + "://" + fileSystem.getName();
+    }
+
+    @Override
+    public String type() {
+        return SheetFileSystemProvider.SCHEME;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public long getTotalSpace() throws IOException {
+        return fileSystem.getTotalSize();
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return 0;
+    }
+
+    @Override
+    public long getUnallocatedSpace() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+        return type == BasicFileAttributeView.class;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(String name) {
+        return name.equals("basic");
+    }
+
+    @Override
+    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) {
+        throw new UnsupportedOperationException("'" + attribute + "' is not supported");
+    }
+}
@@ -0,0 +1,344 @@
+package com.uddernetworks.holysheet.fs;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.SheetManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A read-only view of every file stored by HolySheet, laid out by their {@code path} property. Directories are not
+ * stored, but implied by the paths of the files under them. Only the newest version of a versioned file is shown.
+ * <p>
+ * The layout is listed from Drive when first needed, and listed again once older than the file system's refresh
+ * interval. Files are read through {@link SheetByteChannel}s, which only fetch the sheets they read (through the shared
+ * {@link com.uddernetworks.holysheet.io.ChunkCache} if there is one).
+ */
+public class SheetFileSystem extends FileSystem {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SheetFileSystem.class);
+
+    private final SheetFileSystemProvider provider;
+    private final String name;
+    private final SheetManager sheetManager;
+    private final int readAhead;
+    private final long refreshMillis;
+    private final SheetFileStore fileStore = new SheetFileStore(this);
+    private final Set<SheetByteChannel> channels = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean open = true;
+    private Layout layout;
+    private long listedAt;
+
+    SheetFileSystem(SheetFileSystemProvider provider, String name, SheetManager sheetManager, int readAhead, long refreshMillis) {
+        this.provider = provider;
+        this.name = name;
+        this.sheetManager = sheetManager;
+        this.readAhead = readAhead;
+        this.refreshMillis = refreshMillis;
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Closes the file system and every channel still open on it.
+     */
+    @Override
+    public void close() {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+        provider.closed(this);
+        for (var channel : List.copyOf(channels)) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(new SheetPath(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return List.of(fileStore);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public SheetPath getPath(String first, String... more) {
+        return new SheetPath(this, more.length == 0 ? first : first + "/" + String.join("/", more));
+    }
+
+    /**
+     * Supports the {@code glob} and {@code regex} syntaxes of {@link FileSystem#getPathMatcher(String)}.
+     */
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected <syntax>:<pattern>, got " + syntaxAndPattern);
+        }
+
+        var syntax = syntaxAndPattern.substring(0, colon);
+        var pattern = syntaxAndPattern.substring(colon + 1);
+        Pattern compiled;
+        if (syntax.equalsIgnoreCase("glob")) {
+            compiled = Pattern.compile(globToRegex(pattern));
+        } else if (syntax.equalsIgnoreCase("regex")) {
+            compiled = Pattern.compile(pattern);
+        } else {
+            throw new UnsupportedOperationException("Unsupported path matcher syntax " + syntax);
+        }
+
+        return path -> compiled.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("HolySheet files have no owners to look up");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("HolySheet paths can not be watched");
+    }
+
+    /**
+     * @return The authority of the file system's URIs, empty for {@code holysheet:///}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Discards the listed layout, so the next access lists the stored files again.
+     */
+    public synchronized void refresh() {
+        layout = null;
+    }
+
+    boolean exists(SheetPath path) {
+        try {
+            var layout = getLayout();
+            var key = getKey(path);
+            return layout.files.containsKey(key) || layout.directories.containsKey(key);
+        } catch (IOException e) {
+            LOGGER.error("An error occurred while listing uploads", e);
+            return false;
+        }
+    }
+
+    SheetFileAttributes readAttributes(SheetPath path) throws IOException {
+        var layout = getLayout();
+        var key = getKey(path);
+        var upload = layout.files.get(key);
+        if (upload == null && !layout.directories.containsKey(key)) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        return new SheetFileAttributes(upload);
+    }
+
+    List<Path> list(SheetPath directory) throws IOException {
+        var layout = getLayout();
+        var key = getKey(directory);
+        var children = layout.directories.get(key);
+        if (children == null) {
+            if (layout.files.containsKey(key)) {
+                throw new NotDirectoryException(directory.toString());
+            }
+
+            throw new NoSuchFileException(directory.toString());
+        }
+
+        var paths = new ArrayList<Path>(children.size());
+        for (var child : children) {
+            paths.add(directory.resolve(child));
+        }
+
+        return paths;
+    }
+
+    SeekableByteChannel newByteChannel(SheetPath path) throws IOException {
+        var layout = getLayout();
+        var key = getKey(path);
+        var upload = layout.files.get(key);
+        if (upload == null) {
+            if (layout.directories.containsKey(key)) {
+                throw new IOException(path + " is a directory");
+            }
+
+            throw new NoSuchFileException(path.toString());
+        }
+
+        try {
+            var channel = new SheetByteChannel(this, sheetManager.getSheetIO().openStream(upload, readAhead));
+            channels.add(channel);
+            return channel;
+        } catch (IllegalStateException e) {
+            throw new IOException("Unable to open " + path, e);
+        }
+    }
+
+    void closed(SheetByteChannel channel) {
+        channels.remove(channel);
+    }
+
+    long getTotalSize() throws IOException {
+        long total = 0;
+        for (var upload : getLayout().files.values()) {
+            total += new SheetFileAttributes(upload).size();
+        }
+
+        return total;
+    }
+
+    private String getKey(SheetPath path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private synchronized Layout getLayout() throws IOException {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+
+        if (layout == null || System.currentTimeMillis() - listedAt > refreshMillis) {
+            layout = new Layout(sheetManager.listAllUploads());
+            listedAt = System.currentTimeMillis();
+        }
+
+        return layout;
+    }
+
+    /**
+     * Converts a glob to a regular expression matching the same paths, where {@code *} and {@code ?} don't cross
+     * directories and {@code **} does.
+     */
+    static String globToRegex(String glob) {
+        var regex = new StringBuilder();
+        boolean inGroup = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(')');
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        throw new PatternSyntaxException("Unclosed bracket expression", glob, i);
+                    }
+
+                    var set = glob.substring(i + 1, end);
+                    regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = end;
+                    break;
+                case '\\':
+                    if (++i < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    }
+                    break;
+                default:
+                    regex.append(Character.isLetterOrDigit(c) ? String.valueOf(c) : Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * A listing of the stored files, by their absolute path, and of the names in every directory.
+     */
+    private class Layout {
+        private final Map<String, File> files = new HashMap<>();
+        private final Map<String, SortedSet<String>> directories = new HashMap<>();
+
+        private Layout(List<File> uploads) {
+            directories.put("/", new TreeSet<>());
+
+            for (var upload : uploads) {
+                var path = new SheetPath(SheetFileSystem.this, upload.getProperties().getOrDefault("path", "/"))
+                        .toAbsolutePath()
+                        .resolve(new SheetPath(SheetFileSystem.this, upload.getName()));
+
+                // Uploads of the same name and path which aren't versions of each other show as the newest one
+                files.merge(path.toString(), upload, (first, second) -> getModified(first) >= getModified(second) ? first : second);
+
+                for (var child = path; child.getParent() != null; child = child.getParent()) {
+                    directories.computeIfAbsent(child.getParent().toString(), $ -> new TreeSet<>()).add(child.getFileName().toString());
+                }
+            }
+        }
+
+        private long getModified(File upload) {
+            return upload.getModifiedTime() == null ? 0 : upload.getModifiedTime().getValue();
+        }
+    }
+}
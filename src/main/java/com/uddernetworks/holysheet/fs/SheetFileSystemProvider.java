@@ -0,0 +1,278 @@
+package com.uddernetworks.holysheet.fs;
+
+import com.uddernetworks.holysheet.SheetManager;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides read-only {@link SheetFileSystem}s over the files stored by HolySheet, with URIs of the form
+ * {@code holysheet://<name>/<path>/<file>}. A file system is created for a signed in {@link SheetManager}:
+ * <pre>
+ * var fileSystem = FileSystems.newFileSystem(URI.create("holysheet:///"), Map.of("sheetManager", sheetManager));
+ * try (var channel = Files.newByteChannel(fileSystem.getPath("/backups/site.zip"))) {
+ *     ...
+ * }
+ * </pre>
+ * The environment may also set {@value #READ_AHEAD} (the most sheets fetched ahead of sequential reads, by default
+ * {@value #DEFAULT_READ_AHEAD}) and {@value #REFRESH_MILLIS} (how long a listing of the stored files is used, by default
+ * {@value #DEFAULT_REFRESH_MILLIS}).
+ */
+public class SheetFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "holysheet";
+
+    public static final String SHEET_MANAGER = "sheetManager";
+    public static final String READ_AHEAD = "readAhead";
+    public static final String REFRESH_MILLIS = "refreshMillis";
+
+    private static final int DEFAULT_READ_AHEAD = 4;
+    private static final long DEFAULT_REFRESH_MILLIS = 30_000;
+
+    private final Map<String, SheetFileSystem> fileSystems = new ConcurrentHashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public SheetFileSystem newFileSystem(URI uri, Map<String, ?> env) {
+        var name = getName(uri);
+        if (!(env.get(SHEET_MANAGER) instanceof SheetManager)) {
+            throw new IllegalArgumentException("The environment must contain a SheetManager as '" + SHEET_MANAGER + "'");
+        }
+
+        var readAhead = env.get(READ_AHEAD) instanceof Number ? ((Number) env.get(READ_AHEAD)).intValue() : DEFAULT_READ_AHEAD;
+        var refreshMillis = env.get(REFRESH_MILLIS) instanceof Number ? ((Number) env.get(REFRESH_MILLIS)).longValue() : DEFAULT_REFRESH_MILLIS;
+        var fileSystem = new SheetFileSystem(this, name, (SheetManager) env.get(SHEET_MANAGER), readAhead, refreshMillis);
+        if (fileSystems.putIfAbsent(name, fileSystem) != null) {
+            throw new FileSystemAlreadyExistsException(uri.toString());
+        }
+
+        return fileSystem;
+    }
+
+    @Override
+    public SheetFileSystem getFileSystem(URI uri) {
+        var fileSystem = fileSystems.get(getName(uri));
+        if (fileSystem == null) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+
+        return fileSystem;
+    }
+
+    @Override
+    public SheetPath getPath(URI uri) {
+        return getFileSystem(uri).getPath(uri.getPath().isEmpty() ? "/" : uri.getPath());
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        for (var option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND || option == StandardOpenOption.CREATE
+                    || option == StandardOpenOption.CREATE_NEW || option == StandardOpenOption.TRUNCATE_EXISTING
+                    || option == StandardOpenOption.DELETE_ON_CLOSE) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+
+        var sheetPath = checkPath(path);
+        return sheetPath.getFileSystem().newByteChannel(sheetPath);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        var sheetPath = checkPath(dir);
+        var entries = new ArrayList<Path>();
+        for (var entry : sheetPath.getFileSystem().list(sheetPath)) {
+            if (filter.accept(entry)) {
+                entries.add(entry);
+            }
+        }
+
+        return new DirectoryStream<>() {
+            private boolean iterated;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("The directory stream has already been iterated");
+                }
+
+                iterated = true;
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        return checkPath(path).toAbsolutePath().normalize().equals(checkPath(path2).toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        return checkPath(path).getFileSystem().getFileStores().iterator().next();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        var sheetPath = checkPath(path);
+        if (!sheetPath.getFileSystem().exists(sheetPath)) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        for (var mode : modes) {
+            if (mode != AccessMode.READ) {
+                throw new AccessDeniedException(path.toString(), null, "HolySheet files are read-only");
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+
+        var sheetPath = checkPath(path);
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return sheetPath.getFileSystem().readAttributes(sheetPath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (!type.isAssignableFrom(SheetFileAttributes.class)) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+
+        var sheetPath = checkPath(path);
+        return (A) sheetPath.getFileSystem().readAttributes(sheetPath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        int colon = attributes.indexOf(':');
+        if (colon >= 0 && !attributes.substring(0, colon).equals("basic")) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+
+        var sheetPath = checkPath(path);
+        var all = sheetPath.getFileSystem().readAttributes(sheetPath).toMap();
+        var names = List.of(attributes.substring(colon + 1).split(","));
+        if (names.contains("*")) {
+            return all;
+        }
+
+        var selected = new LinkedHashMap<String, Object>();
+        for (var name : names) {
+            if (!all.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown attribute '" + name + "'");
+            }
+
+            selected.put(name, all.get(name));
+        }
+
+        return selected;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    void closed(SheetFileSystem fileSystem) {
+        fileSystems.remove(fileSystem.getName(), fileSystem);
+    }
+
+    private static String getName(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("Expected a " + SCHEME + " URI, got " + uri);
+        }
+
+        return uri.getAuthority() == null ? "" : uri.getAuthority();
+    }
+
+    private static SheetPath checkPath(Path path) {
+        if (!(path instanceof SheetPath)) {
+            throw new ProviderMismatchException();
+        }
+
+        return (SheetPath) path;
+    }
+}
@@ -0,0 +1,231 @@
+package com.uddernetworks.holysheet.fs;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A path in a {@link SheetFileSystem}, made of names separated by {@code /}. Absolute paths start at the root of the
+ * store, where uploads with the {@code path} property {@code /} are.
+ */
+public class SheetPath implements Path {
+
+    private final SheetFileSystem fileSystem;
+    private final boolean absolute;
+    private final List<String> names;
+
+    SheetPath(SheetFileSystem fileSystem, String path) {
+        this(fileSystem, path.startsWith("/"), Arrays.stream(path.split("/")).filter(name -> !name.isEmpty()).toArray(String[]::new));
+    }
+
+    private SheetPath(SheetFileSystem fileSystem, boolean absolute, String... names) {
+        this(fileSystem, absolute, List.of(names));
+    }
+
+    private SheetPath(SheetFileSystem fileSystem, boolean absolute, List<String> names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = List.copyOf(names);
+    }
+
+    @Override
+    public SheetFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public SheetPath getRoot() {
+        return absolute ? new SheetPath(fileSystem, true) : null;
+    }
+
+    @Override
+    public SheetPath getFileName() {
+        return names.isEmpty() ? null : new SheetPath(fileSystem, false, names.get(names.size() - 1));
+    }
+
+    @Override
+    public SheetPath getParent() {
+        if (names.isEmpty() || (names.size() == 1 && !absolute)) {
+            return null;
+        }
+
+        return new SheetPath(fileSystem, absolute, names.subList(0, names.size() - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.size();
+    }
+
+    @Override
+    public SheetPath getName(int index) {
+        return new SheetPath(fileSystem, false, names.get(index));
+    }
+
+    @Override
+    public SheetPath subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.size() || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Invalid subpath " + beginIndex + " to " + endIndex + " of " + this);
+        }
+
+        return new SheetPath(fileSystem, false, names.subList(beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        var path = checkPath(other);
+        return path.absolute == absolute && path.names.size() <= names.size()
+                && names.subList(0, path.names.size()).equals(path.names);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        var path = checkPath(other);
+        if (path.absolute) {
+            return equals(path);
+        }
+
+        return path.names.size() <= names.size()
+                && names.subList(names.size() - path.names.size(), names.size()).equals(path.names);
+    }
+
+    @Override
+    public SheetPath normalize() {
+        var normalized = new ArrayList<String>(names.size());
+        for (var name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+
+            if (name.equals("..") && !normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                normalized.remove(normalized.size() - 1);
+            } else if (!name.equals("..") || !absolute) {
+                normalized.add(name);
+            }
+        }
+
+        return new SheetPath(fileSystem, absolute, normalized);
+    }
+
+    @Override
+    public SheetPath resolve(Path other) {
+        var path = checkPath(other);
+        if (path.absolute) {
+            return path;
+        }
+
+        var resolved = new ArrayList<>(names);
+        resolved.addAll(path.names);
+        return new SheetPath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public SheetPath resolve(String other) {
+        return resolve(new SheetPath(fileSystem, other));
+    }
+
+    @Override
+    public SheetPath relativize(Path other) {
+        var path = checkPath(other);
+        if (path.absolute != absolute) {
+            throw new IllegalArgumentException("Only paths of the same type can be relativized");
+        }
+
+        int common = 0;
+        while (common < names.size() && common < path.names.size() && names.get(common).equals(path.names.get(common))) {
+            common++;
+        }
+
+        var relative = new ArrayList<String>();
+        for (int i = common; i < names.size(); i++) {
+            relative.add("..");
+        }
+
+        relative.addAll(path.names.subList(common, path.names.size()));
+        return new SheetPath(fileSystem, false, relative);
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(SheetFileSystemProvider.SCHEME, fileSystem.getName(), toAbsolutePath().toString(), null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Unable to create a URI for " + this, e);
+        }
+    }
+
+    @Override
+    public SheetPath toAbsolutePath() {
+        return absolute ? this : new SheetPath(fileSystem, true, names);
+    }
+
+    @Override
+    public SheetPath toRealPath(LinkOption... options) throws NoSuchFileException {
+        var real = toAbsolutePath().normalize();
+        if (!fileSystem.exists(real)) {
+            throw new NoSuchFileException(toString());
+        }
+
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("HolySheet paths can not be watched");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(checkPath(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof SheetPath)) {
+            return false;
+        }
+
+        var path = (SheetPath) other;
+        return fileSystem == path.fileSystem && absolute == path.absolute && names.equals(path.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return (absolute ? "/" : "") + String.join("/", names);
+    }
+
+    List<String> getNames() {
+        return names;
+    }
+
+    private SheetPath checkPath(Path path) {
+        if (!(path instanceof SheetPath)) {
+            throw new ProviderMismatchException();
+        }
+
+        return (SheetPath) path;
+    }
+}
@@ -3,6 +3,7 @@ package com.uddernetworks.holysheet.grpc;
 import com.uddernetworks.holysheet.AuthManager;
 import com.uddernetworks.holysheet.HolySheet;
 import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.metrics.MetricsServer;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerProvider;
@@ -18,6 +19,7 @@ public class GRPCClient {
 
     private final HolySheetServiceImpl service;
     private final SheetyGUIServiceImpl sheetyGUIService;
+    private final MetricsServer metricsServer = new MetricsServer();
     private Server server;
 
     public GRPCClient(AuthManager authManager) {
@@ -26,7 +28,21 @@ public class GRPCClient {
     }
 
     public void start(int port) {
+        start(port, -1);
+    }
+
+    /**
+     * Starts the gRPC server, and blocks until it is terminated.
+     *
+     * @param port        The port of the gRPC server
+     * @param metricsPort The port to expose Prometheus metrics on, or -1 to not expose them
+     */
+    public void start(int port, int metricsPort) {
         try {
+            if (metricsPort > 0) {
+                metricsServer.start(metricsPort);
+            }
+
             server = ServerBuilder.forPort(port)
                     .addService(service)
                     .addService(sheetyGUIService)
@@ -60,6 +76,8 @@ public class GRPCClient {
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+
+        metricsServer.stop();
     }
 
     public HolySheetServiceImpl getService() {
@@ -5,17 +5,29 @@ import com.google.protobuf.GeneratedMessageV3;
 import com.uddernetworks.grpc.HolySheetServiceGrpc.HolySheetServiceImplBase;
 import com.uddernetworks.grpc.HolysheetService;
 import com.uddernetworks.grpc.HolysheetService.ChunkResponse;
+import com.uddernetworks.grpc.HolysheetService.CopyFileRequest;
+import com.uddernetworks.grpc.HolysheetService.CopyFileResponse;
 import com.uddernetworks.grpc.HolysheetService.CreateFolderRequest;
 import com.uddernetworks.grpc.HolysheetService.DownloadRequest;
 import com.uddernetworks.grpc.HolysheetService.DownloadResponse;
 import com.uddernetworks.grpc.HolysheetService.DownloadResponse.DownloadStatus;
 import com.uddernetworks.grpc.HolysheetService.FileChunk;
 import com.uddernetworks.grpc.HolysheetService.FolderResponse;
+import com.uddernetworks.grpc.HolysheetService.JobListRequest;
+import com.uddernetworks.grpc.HolysheetService.JobListResponse;
+import com.uddernetworks.grpc.HolysheetService.JobRequest;
+import com.uddernetworks.grpc.HolysheetService.JobStatus;
+import com.uddernetworks.grpc.HolysheetService.JobStatus.JobType;
+import com.uddernetworks.grpc.HolysheetService.JobWatchRequest;
+import com.uddernetworks.grpc.HolysheetService.ListFoldersRequest;
+import com.uddernetworks.grpc.HolysheetService.ListFoldersResponse;
+import com.uddernetworks.grpc.HolysheetService.ListFoldersResponse.FolderItem;
 import com.uddernetworks.grpc.HolysheetService.ListItem;
 import com.uddernetworks.grpc.HolysheetService.ListRequest;
 import com.uddernetworks.grpc.HolysheetService.ListResponse;
 import com.uddernetworks.grpc.HolysheetService.MoveFileRequest;
 import com.uddernetworks.grpc.HolysheetService.MoveFileResponse;
+import com.uddernetworks.grpc.HolysheetService.MoveFolderRequest;
 import com.uddernetworks.grpc.HolysheetService.RemoveRequest;
 import com.uddernetworks.grpc.HolysheetService.RemoveResponse;
 import com.uddernetworks.grpc.HolysheetService.RenameRequest;
@@ -27,14 +39,29 @@ import com.uddernetworks.grpc.HolysheetService.StarResponse;
 import com.uddernetworks.grpc.HolysheetService.UploadRequest;
 import com.uddernetworks.grpc.HolysheetService.UploadResponse;
 import com.uddernetworks.grpc.HolysheetService.UploadResponse.UploadStatus;
+import com.uddernetworks.grpc.HolysheetService.VersionsRequest;
+import com.uddernetworks.grpc.HolysheetService.VersionsResponse;
 import com.uddernetworks.holysheet.AuthManager;
 import com.uddernetworks.holysheet.HolySheet;
 import com.uddernetworks.holysheet.RemoteAuthManager;
 import com.uddernetworks.holysheet.SheetManager;
 import com.uddernetworks.holysheet.command.CommandHandler;
 import com.uddernetworks.holysheet.encoding.EncodingOutputStream;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.io.Cancellation;
+import com.uddernetworks.holysheet.io.ParityScheme;
 import com.uddernetworks.holysheet.io.SheetIO;
+import com.uddernetworks.holysheet.job.Job;
+import com.uddernetworks.holysheet.job.JobRegistry;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.utility.Utility;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,13 +69,24 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -56,8 +94,40 @@ import java.util.stream.Collectors;
 public class HolySheetServiceImpl extends HolySheetServiceImplBase {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HolySheetServiceImpl.class);
+    private static final JobRegistry jobs = new JobRegistry();
+    // Uploads waiting on data from sendFile(), by the processing ID given by their client
     private static final Map<String, Processor> processing = new ConcurrentHashMap<>();
 
+    // The account every job of a server using its own credentials belongs to
+    private static final String LOCAL_ACCOUNT = "";
+    // The accounts of recently seen tokens, so polling a job doesn't ask Drive whose token it is every time
+    private static final int MAX_ACCOUNTS = 1024;
+    private static final Map<String, String> accounts = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ACCOUNTS;
+        }
+    });
+
+    // The Drive fields of the ListItem fields not read from an upload's id, name or properties
+    private static final Map<String, String> LIST_ITEM_DRIVE_FIELDS = Map.of(
+            "date", "modifiedTime",
+            "selfOwned", "owners",
+            "owner", "owners",
+            "driveLink", "webViewLink",
+            "trashed", "trashed");
+    // The page size of streamFiles() when the request doesn't set one
+    private static final int STREAM_PAGE_SIZE = 100;
+    private static final ScheduledExecutorService WATCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "HolySheet-watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Metrics.gauge("holysheet_jobs_active", "Uploads and downloads that have not ended", jobs::getActiveCount);
+    }
+
     private final AuthManager authManager;
     private final SheetManager localSheetManager;
 
@@ -95,33 +165,215 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
         return new SheetManager(authManager.getDrive(), authManager.getSheets());
     }
 
+    /**
+     * Gets the account jobs started with the given token belong to.
+     *
+     * @param sheetManager The {@link SheetManager} of the token
+     * @param token        The token
+     * @return The account's ID
+     * @throws IOException If the account couldn't be found, e.g. as the token is invalid
+     */
+    private String getAccount(SheetManager sheetManager, String token) throws IOException {
+        if (sheetManager == localSheetManager) {
+            return LOCAL_ACCOUNT;
+        }
+
+        var account = accounts.get(token);
+        if (account == null) {
+            account = sheetManager.getAccountId();
+            accounts.put(token, account);
+        }
+
+        return account;
+    }
+
+    /**
+     * Gets the account making a job request, sending an error if it can't be found.
+     *
+     * @return The account's ID, or null if an error was sent
+     */
+    private String getJobOwner(GeneratedMessageV3 request, String token, StreamObserver<? extends GeneratedMessageV3> response) {
+        try {
+            return getAccount(getSheetManager(request, response), token);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't find the account of a job request", e);
+            response.onError(Status.UNAUTHENTICATED.withDescription("The account of the given token could not be found").withCause(e).asRuntimeException());
+            return null;
+        }
+    }
+
     @Override
     public void listFiles(ListRequest request, StreamObserver<ListResponse> response) {
         var sheetManager = getSheetManager(request, response);
         var sheetIO = sheetManager.getSheetIO();
 
-        var files = sheetManager.listUploads(request.getPath(), request.getStarred(), request.getTrashed())
-                .stream()
-                .map(this::getListItem)
-                .collect(Collectors.toUnmodifiableList());
+        var fields = Set.copyOf(request.getFieldsList());
+        if (!checkListFields(fields, response)) {
+            return;
+        }
+
+        var driveFields = getListFields(fields);
+        var pageToken = request.getPageToken().isEmpty() ? null : request.getPageToken();
 
-        response.onNext(ListResponse.newBuilder()
-                .addAllItems(files)
-                .addAllFolders(sheetIO.getFolders())
-                .build());
+        try {
+            var builder = ListResponse.newBuilder();
+            List<com.google.api.services.drive.model.File> files;
+            if (request.getPageSize() > 0) {
+                var page = sheetManager.listUploadsPage(request.getPath(), request.getStarred(), request.getTrashed(), request.getNamePrefix(),
+                        request.getSort(), request.getReverse(), request.getPageSize(), pageToken, driveFields);
+                files = page.getFiles();
+                if (page.getNextPageToken() != null) {
+                    builder.setNextPageToken(page.getNextPageToken());
+                }
+            } else {
+                files = sheetManager.listUploads(request.getPath(), request.getStarred(), request.getTrashed(), request.getNamePrefix(),
+                        request.getSort(), request.getReverse(), driveFields);
+            }
 
-        response.onCompleted();
+            for (var file : files) {
+                builder.addItems(getListItem(file, fields));
+            }
+
+            if (pageToken == null) {
+                builder.addAllFolders(sheetIO.getFolders());
+            }
+
+            response.onNext(builder.build());
+            response.onCompleted();
+        } catch (IOException e) {
+            LOGGER.error("An error occurred while listing uploads", e);
+            response.onError(e);
+        }
+    }
+
+    @Override
+    public void streamFiles(ListRequest request, StreamObserver<ListResponse> response) {
+        var sheetManager = getSheetManager(request, response);
+        var sheetIO = sheetManager.getSheetIO();
+        var observer = (ServerCallStreamObserver<ListResponse>) response;
+
+        var fields = Set.copyOf(request.getFieldsList());
+        if (!checkListFields(fields, response)) {
+            return;
+        }
+
+        var driveFields = getListFields(fields);
+        var pageToken = request.getPageToken().isEmpty() ? null : request.getPageToken();
+        var pageSize = request.getPageSize() > 0 ? request.getPageSize() : STREAM_PAGE_SIZE;
+
+        var pages = sheetManager.streamUploadPages(request.getPath(), request.getStarred(), request.getTrashed(), request.getNamePrefix(),
+                request.getSort(), request.getReverse(), pageSize, pageToken, driveFields);
+        var iterator = pages.iterator();
+        var first = new AtomicBoolean(pageToken == null);
+        var done = new AtomicBoolean();
+
+        // Pages are only fetched while the client keeps up, continuing whenever the call is ready for more. gRPC runs
+        // the handlers of a call one at a time, so this never runs twice at once.
+        Runnable sendPages = () -> {
+            try {
+                while (!done.get() && observer.isReady()) {
+                    if (!iterator.hasNext()) {
+                        if (done.compareAndSet(false, true)) {
+                            pages.close();
+                            observer.onCompleted();
+                        }
+
+                        return;
+                    }
+
+                    var page = iterator.next();
+                    var builder = ListResponse.newBuilder();
+                    for (var file : page.getFiles()) {
+                        builder.addItems(getListItem(file, fields));
+                    }
+
+                    if (page.getNextPageToken() != null) {
+                        builder.setNextPageToken(page.getNextPageToken());
+                    }
+
+                    if (first.getAndSet(false)) {
+                        builder.addAllFolders(sheetIO.getFolders());
+                    }
+
+                    observer.onNext(builder.build());
+                }
+            } catch (UncheckedIOException e) {
+                if (done.compareAndSet(false, true)) {
+                    pages.close();
+                    LOGGER.error("An error occurred while listing uploads", e);
+                    observer.onError(e.getCause());
+                }
+            }
+        };
+
+        observer.setOnCancelHandler(() -> {
+            if (done.compareAndSet(false, true)) {
+                pages.close();
+            }
+        });
+
+        observer.setOnReadyHandler(sendPages);
+        sendPages.run();
+    }
+
+    private static boolean checkListFields(Set<String> fields, StreamObserver<ListResponse> response) {
+        for (var field : fields) {
+            if (ListItem.getDescriptor().findFieldByName(field) == null) {
+                response.onError(Status.INVALID_ARGUMENT.withDescription("Unknown ListItem field \"" + field + "\"").asRuntimeException());
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the Drive fields needed to fill the given {@link ListItem} fields. The id, name and properties are always
+     * requested, as listing leaves out older versions by them.
+     *
+     * @param fields The names of the {@link ListItem} fields, or empty for every field
+     * @return The Drive fields
+     */
+    private static String getListFields(Set<String> fields) {
+        if (fields.isEmpty()) {
+            return Utility.DRIVE_FIELDS;
+        }
+
+        var driveFields = new LinkedHashSet<>(List.of("id", "mimeType", "name", "properties"));
+        for (var field : fields) {
+            var driveField = LIST_ITEM_DRIVE_FIELDS.get(field);
+            if (driveField != null) {
+                driveFields.add(driveField);
+            }
+        }
+
+        return String.join(", ", driveFields);
     }
 
-    static class Processor {
+    /**
+     * An upload job receiving its data through sendFile().
+     */
+    static class Processor extends Job {
         private final String processingId;
         private final EncodingOutputStream encodingOut;
+        private final Cancellation cancellation = new Cancellation();
         private final Consumer<com.google.api.services.drive.model.File> onComplete;
 
-        public Processor(String processingId, long maxLength, Consumer<com.google.api.services.drive.model.File> onComplete) {
+        public Processor(String id, String owner, String processingId, String name, long maxLength, SheetLayout layout, Consumer<com.google.api.services.drive.model.File> onComplete) {
+            super(id, owner, JobType.UPLOAD, name);
             this.processingId = processingId;
-            this.encodingOut = new EncodingOutputStream(maxLength);
+            this.encodingOut = new EncodingOutputStream(maxLength, layout);
             this.onComplete = onComplete;
+
+            trackBytes(encodingOut::getDecodedLength);
+
+            // Uploads are aborted first, as discarding waits for any write blocked on one
+            onCancel(cancellation::cancel);
+            onCancel(encodingOut::discard);
+        }
+
+        public Cancellation getCancellation() {
+            return cancellation;
         }
 
         public String getProcessingId() {
@@ -133,6 +385,7 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
         }
 
         public void complete(com.google.api.services.drive.model.File file) {
+            complete(file.getId());
             onComplete.accept(file);
         }
     }
@@ -148,55 +401,96 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
 
         LOGGER.info("Uploading {}...", name);
 
+        // Job IDs are apart from the processing ID, which is all sendFile() needs to add to an upload
+        var jobId = UUID.randomUUID().toString();
+        Job job = null;
+
         try {
+            var owner = getAccount(sheetManager, request.getToken());
+            var layout = SheetLayout.of(request.getCellWidth(), request.getColumns(), request.getRows());
             var localPathString = request.getLocalPath();
             var localFile = localPathString == null ? null : new File(localPathString);
             var cloneId = request.getId();
 
+            var parity = request.getParitySheets() > 0 ? new ParityScheme(request.getDataSheets(), request.getParitySheets()) : null;
+            if (parity != null && (request.getDelta() || (cloneId != null && !cloneId.isBlank()) || localFile == null || localPathString.isBlank() || !localFile.exists())) {
+                response.onError(Status.INVALID_ARGUMENT.withDescription("Parity is only supported for localPath uploads without delta").asRuntimeException());
+                return;
+            }
+
             if (cloneId != null && !cloneId.isBlank()) {
                 LOGGER.info("Cloning file");
 
-                var dataOptional = sheetIO.downloadFile(cloneId);
-                if (dataOptional.isPresent()) {
-                    var fileData = dataOptional.get();
-                    var data = fileData.getIn();
-                    var fileSize = fileData.getSize();
+                var source = sheetManager.getFile(cloneId, Utility.DRIVE_FIELDS);
+                long fileSize = SheetIO.getOriginalSize(source);
 
-                    long start = System.currentTimeMillis();
+                job = jobs.register(new Job(jobId, owner, JobType.UPLOAD, name));
+                job.setBytesTotal(fileSize);
+                var cancellation = cancelWithCall(job);
+                job.start();
 
-                    var uploaded = sheetIO.uploadDataFile(name, path, fileSize, request.getSheetSize(), request.getCompression(), request.getUpload(), data);
+                long start = System.currentTimeMillis();
 
-                    LOGGER.info("Uploaded cloned file {} in {}ms", uploaded.getId(), System.currentTimeMillis() - start);
+                var progressJob = job;
+                var uploaded = sheetIO.cloneData(source, name, path, request.getSheetSize(), layout, request.getCompression(), request.getUpload(),
+                        percentage -> progressJob.setBytesDone((long) (percentage * fileSize)), cancellation);
 
-                    sheetIO.createFolder(path);
+                LOGGER.info("Uploaded cloned file {} in {}ms", uploaded.getId(), System.currentTimeMillis() - start);
+
+                sheetIO.createFolder(path);
+                job.setBytesDone(fileSize);
+                job.complete(uploaded.getId());
 
-                    response.onNext(UploadResponse.newBuilder()
-                            .setItem(getListItem(uploaded))
-                            .build());
+                response.onNext(UploadResponse.newBuilder()
+                        .setItem(getListItem(uploaded))
+                        .setJobId(jobId)
+                        .build());
 
-                    response.onCompleted();
-                    return;
-                }
+                response.onCompleted();
+                return;
             } else if (localFile != null && !localPathString.isBlank() && localFile.exists()) {
                 LOGGER.info("Uploading local file");
 
+                var data = new CountingInputStream(new FileInputStream(localFile));
+
+                job = jobs.register(new Job(jobId, owner, JobType.UPLOAD, name));
+                job.setBytesTotal(localFile.length());
+                job.trackBytes(data::getByteCount);
+                var cancellation = cancelWithCall(job);
+                job.start();
+
                 long start = System.currentTimeMillis();
 
-                var uploaded = sheetIO.uploadDataFile(name, path, localFile.length(), request.getSheetSize(), request.getCompression(), request.getUpload(), new FileInputStream(localFile));
+                com.google.api.services.drive.model.File uploaded;
+                if (request.getDelta()) {
+                    uploaded = sheetIO.uploadDeltaFile(name, path, localFile.length(), request.getSheetSize(), layout, request.getCompression(), request.getUpload(), data, null, cancellation);
+                } else if (parity != null) {
+                    uploaded = sheetIO.uploadParityFile(name, path, localFile.length(), request.getSheetSize(), layout, request.getCompression(), request.getUpload(), parity, data, null, cancellation);
+                } else {
+                    uploaded = sheetIO.uploadDataFile(name, path, localFile.length(), request.getSheetSize(), layout, request.getCompression(), request.getUpload(), data, null, cancellation);
+                }
+
+                if (request.getDelta()) {
+                    sheetIO.pruneVersions(uploaded, request.getKeepVersions());
+                }
 
                 LOGGER.info("Uploaded local file \"{}\" in {}ms", localPathString, System.currentTimeMillis() - start);
 
                 sheetIO.createFolder(path);
+                job.complete(uploaded.getId());
 
                 response.onNext(UploadResponse.newBuilder()
                         .setItem(getListItem(uploaded))
+                        .setJobId(jobId)
                         .build());
 
                 response.onCompleted();
                 return;
             }
 
-            var processor = new Processor(request.getProcessingId(), request.getSheetSize(), file -> {
+            var sheetSize = sheetIO.getSheetSize(request.getSheetSize(), request.getFileSize());
+            var processingId = request.getProcessingId();
+            var processor = new Processor(jobId, owner, processingId, name, sheetSize, layout, file -> {
                 try {
                     sheetIO.createFolder(path);
                 } catch (IOException e) {
@@ -206,38 +500,85 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
                 response.onNext(UploadResponse.newBuilder()
                         .setUploadStatus(UploadStatus.COMPLETE)
                         .setItem(getListItem(file))
+                        .setJobId(jobId)
                         .build());
                 response.onCompleted();
             });
 
-            processing.put(request.getProcessingId(), processor);
+            job = jobs.register(processor);
+            if (processing.putIfAbsent(processingId, processor) != null) {
+                throw new IllegalStateException("An upload with the processing ID " + processingId + " is already running");
+            }
+
+            processor.addStateListener(ended -> {
+                if (ended.isFinished()) {
+                    processing.remove(processingId, processor);
+                }
+            });
+            processor.setBytesTotal(request.getFileSize());
+            Context.current().addListener(context -> processor.cancel(), Runnable::run);
 
-            sheetIO.uploadDataStream(name, path, request.getFileSize(), request.getSheetSize(), request.getCompression(), request.getUpload(), processor.getEncodingOut())
-                    .thenAccept(processor::complete);
+            sheetIO.uploadDataStream(name, path, request.getFileSize(), sheetSize, request.getCompression(), request.getUpload(), processor.getEncodingOut(), processor.getCancellation())
+                    .thenAccept(processor::complete)
+                    .exceptionally(t -> {
+                        processor.fail(t);
+                        response.onError(processor.isCancelled() ? cancelled(processor) : t);
+                        return null;
+                    });
 
             response.onNext(UploadResponse.newBuilder()
                     .setUploadStatus(UploadStatus.READY)
+                    .setJobId(jobId)
                     .build());
 
-        } catch (IOException e) {
+        } catch (CancellationException e) {
+            LOGGER.info("Upload of {} cancelled", name);
+            response.onError(cancelled(job));
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             LOGGER.error("An error has occurred while uploading a file", e);
+            if (job != null) {
+                job.fail(e);
+            }
+
             response.onError(e);
         }
     }
 
+    /**
+     * Cancels the given job if the current call is cancelled, e.g. by the client disconnecting.
+     *
+     * @param job The job of the call
+     * @return A {@link Cancellation} cancelled along with the job
+     */
+    private static Cancellation cancelWithCall(Job job) {
+        var cancellation = new Cancellation();
+        job.onCancel(cancellation::cancel);
+        Context.current().addListener(context -> job.cancel(), Runnable::run);
+        return cancellation;
+    }
+
+    private static StatusRuntimeException cancelled(Job job) {
+        return Status.CANCELLED.withDescription("The job \"" + job.getId() + "\" has been cancelled").asRuntimeException();
+    }
+
     @Override
     public StreamObserver<FileChunk> sendFile(StreamObserver<ChunkResponse> response) {
         AtomicReference<Processor> processor = new AtomicReference<>();
         return new StreamObserver<>() {
             @Override
             public void onNext(FileChunk chunk) {
-                if (!processing.containsKey(chunk.getProcessingId())) {
-                    LOGGER.error("Unknown processing ID: {}", chunk.getProcessingId());
+                var job = processing.get(chunk.getProcessingId());
+                if (job == null || job.isFinished()) {
+                    LOGGER.error("Unknown or ended processing ID: {}", chunk.getProcessingId());
                     return;
                 }
 
-                processor.set(processing.get(chunk.getProcessingId()));
+                processor.set(job);
+                job.start();
 
+                var trace = processor.get().getEncodingOut().getTrace();
+                var scope = trace.activate();
+                var span = trace.span("grpc_receive");
                 try {
                     processor.get().getEncodingOut().write(chunk.getContent().toByteArray());
 
@@ -249,14 +590,28 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
                                 .setCurrentBuffer(processor.get().getEncodingOut().getBufferLength())
                                 .build());
                     }
-                } catch (IOException e) {
+                } catch (CancellationException e) {
+                    LOGGER.info("Discarding data sent to cancelled job {}", job.getId());
+                    response.onError(cancelled(job));
+                } catch (IOException | RuntimeException e) {
+                    // Failing the job doesn't cancel it, so the upload is stopped and its parent deleted separately
                     LOGGER.error("An error occurred while writing data", e);
+                    job.fail(e);
+                    job.getCancellation().cancel();
+                    response.onError(e);
+                } finally {
+                    span.close();
+                    scope.close();
                 }
             }
 
             @Override
             public void onError(Throwable t) {
                 LOGGER.error("An error has occurred while sending file", t);
+                if (processor.get() != null) {
+                    processor.get().cancel();
+                }
+
                 response.onError(t);
             }
 
@@ -277,43 +632,74 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
             var id = request.getId();
 
             long start = System.currentTimeMillis();
-            var sheet = sheetManager.getFile(id);
+            var sheet = sheetManager.getFile(id, Utility.DRIVE_FIELDS);
 
             if (sheet == null) {
-                response.onError(new FileNotFoundException("No file could be found with the given ID \"" + id + "\""));
+                response.onError(Status.NOT_FOUND.withDescription("No file could be found with the given ID \"" + id + "\"").asRuntimeException());
                 return;
             }
 
+            if (request.getVersion() > 0) {
+                sheet = sheetIO.findVersion(sheet, request.getVersion()).orElse(null);
+                if (sheet == null) {
+                    response.onError(Status.NOT_FOUND.withDescription("No version " + request.getVersion() + " of the file \"" + id + "\" could be found").asRuntimeException());
+                    return;
+                }
+
+                id = sheet.getId();
+            }
+
             var destination = new File(request.getPath());
             var parent = destination.getParentFile();
 
             if (!parent.exists() && !parent.mkdirs()) {
-                response.onError(new FileNotFoundException("Couldn't find or create parent of \"" + destination.getAbsolutePath() + "\""));
+                response.onError(Status.NOT_FOUND.withDescription("Couldn't find or create parent of \"" + destination.getAbsolutePath() + "\"").asRuntimeException());
                 return;
             }
 
+            var owner = getAccount(sheetManager, request.getToken());
+            var job = jobs.register(new Job(UUID.randomUUID().toString(), owner, JobType.DOWNLOAD, sheet.getName()));
+            var properties = sheet.getProperties();
+            long total = properties == null ? 0 : NumberUtils.toLong(properties.get("decodedSize"));
+            job.setBytesTotal(total);
+            var cancellation = cancelWithCall(job);
+            job.start();
+
             response.onNext(DownloadResponse.newBuilder()
                     .setStatus(DownloadStatus.PENDING)
                     .setPercentage(0)
+                    .setJobId(job.getId())
                     .build());
 
-            sheetManager.getSheetIO().downloadData(destination, id, percentage ->
-                    response.onNext(DownloadResponse.newBuilder()
-                            .setStatus(DownloadStatus.DOWNLOADING)
-                            .setPercentage(percentage)
-                            .build()))
+            sheetManager.getSheetIO().downloadData(destination, id, percentage -> {
+                job.setBytesDone((long) (percentage * total));
+                response.onNext(DownloadResponse.newBuilder()
+                        .setStatus(DownloadStatus.DOWNLOADING)
+                        .setPercentage(percentage)
+                        .setJobId(job.getId())
+                        .build());
+            }, cancellation)
                     .thenAccept(file -> {
                         LOGGER.info("Downloaded in {}ms", System.currentTimeMillis() - start);
+                        job.setBytesDone(destination.length());
+                        job.complete(file.getId());
 
                         response.onNext(DownloadResponse.newBuilder()
                                 .setStatus(DownloadStatus.COMPLETE)
                                 .setPercentage(1)
                                 .setItem(getListItem(file))
+                                .setJobId(job.getId())
                                 .build());
 
                         response.onCompleted();
                     }).exceptionally(t -> {
+                if (job.isCancelled()) {
+                    response.onError(cancelled(job));
+                    return null;
+                }
+
                 LOGGER.error("An error has occurred!", t);
+                job.fail(t);
                 response.onError(new RuntimeException(t));
                 return null;
             });
@@ -386,6 +772,57 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
         }
     }
 
+    @Override
+    public void copyFile(CopyFileRequest request, StreamObserver<CopyFileResponse> response) {
+        var sheetManager = getSheetManager(request, response);
+        var sheetIO = sheetManager.getSheetIO();
+        Job job = null;
+
+        try {
+            var source = sheetManager.getFile(request.getId(), Utility.DRIVE_FIELDS);
+            if (!SheetIO.isDirectParent(source)) {
+                response.onError(Status.NOT_FOUND.withDescription("No stored file could be found with the given ID \"" + request.getId() + "\"").asRuntimeException());
+                return;
+            }
+
+            var name = request.getName().isBlank() ? source.getName() : request.getName();
+            var path = request.getPath().isBlank() ? SheetIO.getPath(source) : request.getPath();
+            long size = SheetIO.getOriginalSize(source);
+
+            var owner = getAccount(sheetManager, request.getToken());
+            job = jobs.register(new Job(UUID.randomUUID().toString(), owner, JobType.COPY, name));
+            job.setBytesTotal(size);
+            var cancellation = cancelWithCall(job);
+            job.start();
+
+            long start = System.currentTimeMillis();
+
+            var progressJob = job;
+            var copy = sheetIO.copyData(source, name, path, percentage -> progressJob.setBytesDone((long) (percentage * size)), cancellation);
+
+            LOGGER.info("Copied {} to {} in {}ms", source.getId(), copy.getId(), System.currentTimeMillis() - start);
+
+            sheetIO.createFolder(sheetIO.cleanPath(path));
+            job.complete(copy.getId());
+
+            response.onNext(CopyFileResponse.newBuilder()
+                    .setItem(getListItem(copy))
+                    .setJobId(job.getId())
+                    .build());
+            response.onCompleted();
+        } catch (CancellationException e) {
+            LOGGER.info("Copy of {} cancelled", request.getId());
+            response.onError(cancelled(job));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("An error has occurred while copying file \"" + request.getId() + "\"", e);
+            if (job != null) {
+                job.fail(e);
+            }
+
+            response.onError(e);
+        }
+    }
+
     @Override
     public void createFolder(CreateFolderRequest request, StreamObserver<FolderResponse> response) {
         var sheetManager = getSheetManager(request, response);
@@ -401,6 +838,48 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
         }
     }
 
+    @Override
+    public void moveFolder(MoveFolderRequest request, StreamObserver<FolderResponse> response) {
+        var sheetManager = getSheetManager(request, response);
+        var sheetIO = sheetManager.getSheetIO();
+
+        try {
+            sheetIO.moveFolder(request.getFrom(), request.getTo());
+            response.onNext(FolderResponse.newBuilder().build());
+            response.onCompleted();
+        } catch (IllegalArgumentException e) {
+            response.onError(Status.FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+        } catch (IOException e) {
+            LOGGER.error("An error has occurred while moving folder \"" + request.getFrom() + "\"", e);
+            response.onError(e);
+        }
+    }
+
+    @Override
+    public void listFolders(ListFoldersRequest request, StreamObserver<ListFoldersResponse> response) {
+        var sheetManager = getSheetManager(request, response);
+        var sheetIO = sheetManager.getSheetIO();
+        var folderIndex = sheetIO.getFolderIndex();
+
+        try {
+            var path = sheetIO.cleanPath(request.getPath());
+            var paths = request.getRecursive() ? folderIndex.listSubtree(path) : folderIndex.getChildren(path);
+
+            var builder = ListFoldersResponse.newBuilder();
+            for (var folder : paths) {
+                builder.addFolders(FolderItem.newBuilder()
+                        .setPath(folder)
+                        .setChildCount(folderIndex.getChildCount(folder)));
+            }
+
+            response.onNext(builder.build());
+            response.onCompleted();
+        } catch (IOException e) {
+            LOGGER.error("An error has occurred while listing folder \"" + request.getPath() + "\"", e);
+            response.onError(e);
+        }
+    }
+
     @Override
     public void renameFile(RenameRequest request, StreamObserver<RenameResponse> response) {
         var sheetManager = getSheetManager(request, response);
@@ -410,7 +889,7 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
             var file = sheetManager.getFile(request.getId());
 
             if (file == null) {
-                response.onError(new FileNotFoundException("No file could be found with the given ID \"" + request.getId() + "\""));
+                response.onError(Status.NOT_FOUND.withDescription("No file could be found with the given ID \"" + request.getId() + "\"").asRuntimeException());
                 return;
             }
 
@@ -423,21 +902,192 @@ public class HolySheetServiceImpl extends HolySheetServiceImplBase {
         }
     }
 
+    @Override
+    public void listVersions(VersionsRequest request, StreamObserver<VersionsResponse> response) {
+        var sheetManager = getSheetManager(request, response);
+        var sheetIO = sheetManager.getSheetIO();
+
+        try {
+            var file = sheetManager.getFile(request.getId(), Utility.DRIVE_FIELDS);
+
+            if (!SheetIO.isDirectParent(file)) {
+                response.onError(Status.NOT_FOUND.withDescription("No stored file could be found with the given ID \"" + request.getId() + "\"").asRuntimeException());
+                return;
+            }
+
+            response.onNext(VersionsResponse.newBuilder()
+                    .addAllItems(sheetIO.listVersions(file).stream()
+                            .map(this::getListItem)
+                            .collect(Collectors.toUnmodifiableList()))
+                    .build());
+            response.onCompleted();
+        } catch (IOException e) {
+            LOGGER.error("An error has occurred while listing the versions of file \"" + request.getId() + "\"", e);
+            response.onError(e);
+        }
+    }
+
+    @Override
+    public void listJobs(JobListRequest request, StreamObserver<JobListResponse> response) {
+        var owner = getJobOwner(request, request.getToken(), response);
+        if (owner == null) {
+            return;
+        }
+
+        response.onNext(JobListResponse.newBuilder()
+                .addAllJobs(jobs.list(owner, request.getIncludeFinished()).stream()
+                        .map(Job::toStatus)
+                        .collect(Collectors.toUnmodifiableList()))
+                .build());
+        response.onCompleted();
+    }
+
+    @Override
+    public void getJob(JobRequest request, StreamObserver<JobStatus> response) {
+        var owner = getJobOwner(request, request.getToken(), response);
+        if (owner == null) {
+            return;
+        }
+
+        jobs.get(owner, request.getJobId()).ifPresentOrElse(job -> {
+            response.onNext(job.toStatus());
+            response.onCompleted();
+        }, () -> response.onError(unknownJob(request.getJobId())));
+    }
+
+    @Override
+    public void cancelJob(JobRequest request, StreamObserver<JobStatus> response) {
+        var owner = getJobOwner(request, request.getToken(), response);
+        if (owner == null) {
+            return;
+        }
+
+        jobs.cancel(owner, request.getJobId()).ifPresentOrElse(job -> {
+            LOGGER.info("Cancelled job {} ({})", job.getId(), job.getName());
+            response.onNext(job.toStatus());
+            response.onCompleted();
+        }, () -> response.onError(unknownJob(request.getJobId())));
+    }
+
+    @Override
+    public void watchJob(JobWatchRequest request, StreamObserver<JobStatus> response) {
+        var owner = getJobOwner(request, request.getToken(), response);
+        if (owner == null) {
+            return;
+        }
+
+        var jobOptional = jobs.get(owner, request.getJobId());
+        if (jobOptional.isEmpty()) {
+            response.onError(unknownJob(request.getJobId()));
+            return;
+        }
+
+        var job = jobOptional.get();
+        var observer = (ServerCallStreamObserver<JobStatus>) response;
+        long interval = request.getIntervalMillis() > 0 ? request.getIntervalMillis() : 1000;
+
+        var task = new AtomicReference<ScheduledFuture<?>>();
+        var stateListener = new AtomicReference<Consumer<Job>>();
+        Runnable send = () -> {
+            synchronized (observer) {
+                if (observer.isCancelled() || task.get() == null) {
+                    return;
+                }
+
+                var status = job.toStatus();
+                observer.onNext(status);
+
+                if (job.isFinished()) {
+                    task.getAndSet(null).cancel(false);
+                    job.removeStateListener(stateListener.get());
+                    observer.onCompleted();
+                }
+            }
+        };
+
+        // Ended jobs are sent straight away instead of waiting for the next interval
+        stateListener.set($ -> {
+            if (job.isFinished()) {
+                WATCH_EXECUTOR.execute(send);
+            }
+        });
+
+        // Added before the first send, which removes it again if the job has already ended
+        job.addStateListener(stateListener.get());
+        synchronized (observer) {
+            task.set(WATCH_EXECUTOR.scheduleAtFixedRate(send, 0, interval, TimeUnit.MILLISECONDS));
+        }
+
+        observer.setOnCancelHandler(() -> {
+            job.removeStateListener(stateListener.get());
+            var scheduled = task.getAndSet(null);
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        });
+    }
+
+    private static StatusRuntimeException unknownJob(String id) {
+        return Status.NOT_FOUND.withDescription("No job exists with the ID \"" + id + "\"").asRuntimeException();
+    }
+
     ListItem getListItem(com.google.api.services.drive.model.File file) {
-        var owner = file.getOwners().get(0);
-        return ListItem.newBuilder()
-                .setName(file.getName())
-                .setId(file.getId())
-                .setPath(CommandHandler.getPath(file))
-                .setSize(CommandHandler.getSize(file))
-                .setSheets(CommandHandler.getSheetCount(file))
-                .setDate(file.getModifiedTime().getValue())
-                .setSelfOwned(owner.getMe())
-                .setOwner(owner.getDisplayName())
-                .setDriveLink(file.getWebViewLink())
-                .setStarred(CommandHandler.isStarred(file))
-                .setTrashed(file.getTrashed())
-                .build();
+        return getListItem(file, Set.of());
+    }
+
+    /**
+     * Creates the {@link ListItem} of an upload, filling only the requested fields.
+     *
+     * @param file   The parent of the upload, with the Drive fields of {@link #getListFields(Set)}
+     * @param fields The names of the fields to fill, or empty for every field
+     * @return The item
+     */
+    ListItem getListItem(com.google.api.services.drive.model.File file, Set<String> fields) {
+        var all = fields.isEmpty();
+        var item = ListItem.newBuilder().setId(file.getId());
+        if (all || fields.contains("name")) {
+            item.setName(file.getName());
+        }
+
+        if (all || fields.contains("path")) {
+            item.setPath(SheetIO.getPath(file));
+        }
+
+        if (all || fields.contains("size")) {
+            item.setSize(CommandHandler.getSize(file));
+        }
+
+        if (all || fields.contains("sheets")) {
+            item.setSheets(SheetIO.getSheetCount(file));
+        }
+
+        if (all || fields.contains("date")) {
+            item.setDate(file.getModifiedTime().getValue());
+        }
+
+        if (all || fields.contains("selfOwned") || fields.contains("owner")) {
+            var owner = file.getOwners().get(0);
+            item.setSelfOwned(owner.getMe());
+            item.setOwner(owner.getDisplayName());
+        }
+
+        if (all || fields.contains("driveLink")) {
+            item.setDriveLink(file.getWebViewLink());
+        }
+
+        if (all || fields.contains("starred")) {
+            item.setStarred(CommandHandler.isStarred(file));
+        }
+
+        if (all || fields.contains("trashed")) {
+            item.setTrashed(file.getTrashed());
+        }
+
+        if (all || fields.contains("version")) {
+            item.setVersion(SheetIO.getVersion(file));
+        }
+
+        return item.build();
     }
 
     static class AuthException extends RuntimeException {
@@ -0,0 +1,145 @@
+package com.uddernetworks.holysheet.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A flag shared by everything working on a single transfer, so it may be stopped cooperatively from another thread.
+ * Work checks the flag between steps, and anything blocked in I/O (e.g. a sheet export) registers a handler aborting it.
+ * <p>
+ * Once cancelled, work in progress ends with a {@link CancellationException}.
+ */
+public class Cancellation {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Cancellation.class);
+
+    private final List<Runnable> handlers = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+
+    /**
+     * Cancels the transfer, running every registered handler. Cancelling more than once has no effect.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            notifyAll();
+        }
+
+        // Handlers are removed as they are run, so one added concurrently is never run twice
+        for (var handler : handlers) {
+            if (!handlers.remove(handler)) {
+                continue;
+            }
+
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("An error occurred while cancelling a transfer", e);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException If the transfer has been cancelled
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("The transfer has been cancelled");
+        }
+    }
+
+    /**
+     * Adds a handler run when the transfer is cancelled, or immediately if it already has been.
+     *
+     * @param handler The handler
+     * @return A registration removing the handler when closed, for handlers only needed around a single call
+     */
+    public Registration onCancel(Runnable handler) {
+        handlers.add(handler);
+        if (cancelled && handlers.remove(handler)) {
+            handler.run();
+        }
+
+        return () -> handlers.remove(handler);
+    }
+
+    /**
+     * Sleeps for the given time, waking early if the transfer is cancelled.
+     *
+     * @param millis The time to sleep for
+     * @throws CancellationException If the transfer is cancelled before or while sleeping
+     */
+    public synchronized void sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        try {
+            for (long remaining = millis; remaining > 0 && !cancelled; remaining = end - System.currentTimeMillis()) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting");
+        }
+
+        throwIfCancelled();
+    }
+
+    /**
+     * Wraps a stream so that reads fail once the transfer is cancelled, aborting any request it is the content of.
+     *
+     * @param in The stream to wrap
+     * @return The wrapped stream
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check();
+                return super.read(b, off, len);
+            }
+
+            private void check() throws InterruptedIOException {
+                if (cancelled) {
+                    throw new InterruptedIOException("The transfer has been cancelled");
+                }
+            }
+        };
+    }
+
+    public interface Registration extends AutoCloseable {
+
+        /**
+         * Removes the handler unless it has already been run.
+         *
+         * @return If the handler was removed, otherwise the transfer has been cancelled and the handler has been or is
+         * being run
+         */
+        boolean unregister();
+
+        @Override
+        default void close() {
+            unregister();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A size-bounded local cache of decoded sheets, so files downloaded repeatedly are read from disk instead of being
+ * exported from Drive again. Each sheet is stored as {@code <id>-<revision>.chunk}, where the revision is the sheet's
+ * {@code modifiedTime} or, for sheets read from a manifest (which has no times), its {@code crc32c}. Sheets with neither
+ * are not cached.
+ * <p>
+ * Entries are read through a read-only memory map and checked against the sheet's size and checksum before use, so a
+ * damaged entry is dropped and fetched again. Once the cache grows past its limit, the least recently used entries are
+ * deleted. Entries left by an earlier run are picked up in order of their last use, which is kept as the files'
+ * modification time.
+ */
+public class ChunkCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkCache.class);
+
+    private static final String EXTENSION = ".chunk";
+
+    private static final Counter HITS = Metrics.counter("holysheet_chunk_cache_hits_total",
+            "Sheets read from the local chunk cache");
+
+    private static final Counter MISSES = Metrics.counter("holysheet_chunk_cache_misses_total",
+            "Sheets not in the local chunk cache, and exported from Drive");
+
+    private static final Counter EVICTIONS = Metrics.counter("holysheet_chunk_cache_evictions_total",
+            "Sheets deleted from the local chunk cache to stay within its size");
+
+    private static volatile ChunkCache shared;
+
+    static {
+        Metrics.gauge("holysheet_chunk_cache_bytes", "Size of the local chunk cache", () -> {
+            var cache = shared;
+            return cache == null ? 0 : cache.getSize();
+        });
+    }
+
+    private final Path directory;
+    private final long maxSize;
+
+    // Entry lengths by key, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private long size;
+
+    /**
+     * Opens a cache, creating its directory or loading the entries already in it.
+     *
+     * @param directory The directory entries are stored in
+     * @param maxSize   The most bytes the entries may take up
+     * @throws IOException If the directory could not be created or listed
+     */
+    public ChunkCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            for (var path : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                // Left by a write that never finished
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        try (var files = Files.list(directory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .sorted(Comparator.comparing(ChunkCache::getLastUse))
+                    .forEach(path -> {
+                        var name = path.getFileName().toString();
+                        long length = path.toFile().length();
+                        entries.put(name.substring(0, name.length() - EXTENSION.length()), length);
+                        size += length;
+                    });
+        }
+
+        synchronized (this) {
+            evict();
+        }
+
+        LOGGER.info("Opened the chunk cache at {} with {} sheets ({} bytes)", directory, entries.size(), size);
+    }
+
+    /**
+     * @return The cache used for downloads, or null if caching is disabled
+     */
+    public static ChunkCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Sets the cache used for downloads.
+     *
+     * @param shared The cache, or null to disable caching
+     */
+    public static void setShared(ChunkCache shared) {
+        ChunkCache.shared = shared;
+    }
+
+    /**
+     * Reads a sheet from the cache.
+     *
+     * @param sheet The sheet, with its properties and if listed its {@code modifiedTime}
+     * @return A read-only buffer of the sheet's decoded bytes, or null if it isn't cached
+     */
+    public ByteBuffer get(File sheet) {
+        var key = getKey(sheet);
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                MISSES.inc();
+                return null;
+            }
+        }
+
+        var path = getPath(key);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!SheetDigest.of(buffer).matches(sheet)) {
+                LOGGER.warn("The cached copy of sheet {} is corrupt, dropping it", sheet.getId());
+                remove(key);
+                MISSES.inc();
+                return null;
+            }
+
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            HITS.inc();
+            return buffer;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the cached copy of sheet {}", sheet.getId(), e);
+            remove(key);
+            MISSES.inc();
+            return null;
+        }
+    }
+
+    /**
+     * Adds a sheet to the cache, evicting the least recently used entries if it no longer fits. Failing to write the
+     * entry is logged and otherwise ignored, as the sheet can always be exported again.
+     *
+     * @param sheet The sheet
+     * @param data  The sheet's verified decoded bytes
+     */
+    public void put(File sheet, byte[] data) {
+        var key = getKey(sheet);
+        if (key == null || data.length > maxSize) {
+            return;
+        }
+
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+        }
+
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, getPath(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to cache sheet {}", sheet.getId(), e);
+            deleteQuietly(temp);
+            return;
+        }
+
+        synchronized (this) {
+            var previous = entries.put(key, (long) data.length);
+            size += data.length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * @return The total length of every entry
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private synchronized void remove(String key) {
+        var length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+            deleteQuietly(getPath(key));
+        }
+    }
+
+    private void evict() {
+        var iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            deleteQuietly(getPath(eldest.getKey()));
+            EVICTIONS.inc();
+        }
+    }
+
+    private Path getPath(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    /**
+     * @return The key of a sheet's current content, or null if its revision isn't known
+     */
+    private static String getKey(File sheet) {
+        if (sheet.getModifiedTime() != null) {
+            return sheet.getId() + "-" + sheet.getModifiedTime().getValue();
+        }
+
+        var properties = sheet.getProperties();
+        var crc32c = properties == null ? null : properties.get("crc32c");
+        return crc32c == null ? null : sheet.getId() + "-" + crc32c;
+    }
+
+    private static FileTime getLastUse(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.uddernetworks.holysheet.encoding.EncodedChunk;
+
+import java.io.InputStream;
+
+/**
+ * Upload content reading directly from an {@link EncodedChunk}'s pooled buffer, in place of copying it into a
+ * {@link com.google.api.client.http.ByteArrayContent}. Every read opens a fresh view, so failed requests may be retried.
+ * Reads fail once the upload is cancelled, aborting the request mid-body.
+ */
+public class ChunkContent extends AbstractInputStreamContent {
+
+    private final EncodedChunk chunk;
+    private final Cancellation cancellation;
+
+    public ChunkContent(String type, EncodedChunk chunk, Cancellation cancellation) {
+        super(type);
+        this.chunk = chunk;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return cancellation.wrap(chunk.openStream());
+    }
+
+    @Override
+    public long getLength() {
+        return chunk.getLength();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public ChunkContent setType(String type) {
+        return (ChunkContent) super.setType(type);
+    }
+
+    @Override
+    public ChunkContent setCloseInputStream(boolean closeInputStream) {
+        return (ChunkContent) super.setCloseInputStream(closeInputStream);
+    }
+}
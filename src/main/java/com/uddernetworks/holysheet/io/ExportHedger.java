@@ -0,0 +1,269 @@
+package com.uddernetworks.holysheet.io;
+
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.tracing.Trace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Hedges sheet exports against stragglers. Once an export has run for longer than the 95th percentile of the last
+ * {@value #WINDOW} exports, a duplicate export of the same sheet is issued, the first of the two to finish is used and
+ * the other is aborted. If either fails, the other is still waited for.
+ * <p>
+ * Hedges are paid for from a budget that grows by a fraction of every export, so they never add more than that
+ * fraction of extra requests, with at most {@value #MAX_TOKENS} saved up for a burst of slow exports. Nothing is hedged
+ * until {@value #MIN_SAMPLES} exports have been timed.
+ */
+public class ExportHedger {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportHedger.class);
+
+    public static final double DEFAULT_BUDGET = 0.05;
+
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final double PERCENTILE = 0.95;
+    private static final double MAX_TOKENS = 4;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "ExportHedger-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Room for an export and its hedge from every download thread, though it is shared by every download and stream
+    private static final ThreadPoolExecutor EXPORT_EXECUTOR = (ThreadPoolExecutor) Executors.newFixedThreadPool(2 * SheetIO.DOWNLOAD_THREADS, runnable -> {
+        var thread = new Thread(runnable, "ExportHedger-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static final Counter HEDGES = Metrics.counter("holysheet_export_hedges_total",
+            "Duplicate exports issued for sheets slower than the recent 95th percentile");
+    public static final Counter HEDGE_WINS = Metrics.counter("holysheet_export_hedge_wins_total",
+            "Duplicate exports that finished before the export they hedged");
+    private static final Counter HEDGES_DENIED = Metrics.counter("holysheet_export_hedges_denied_total",
+            "Exports slow enough to hedge that were not, as the hedging budget was spent");
+
+    private static volatile ExportHedger shared = new ExportHedger(DEFAULT_BUDGET);
+
+    static {
+        Metrics.gauge("holysheet_export_hedge_delay_millis", "How long an export may run before it is hedged, or -1 if too few have been timed", () -> {
+            var hedger = shared;
+            return hedger == null ? -1 : hedger.getDelayNanos() / 1_000_000;
+        });
+    }
+
+    private final double budget;
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int nextSample;
+    private double tokens;
+
+    /**
+     * @param budget The most extra exports hedging may issue, as a fraction of all exports
+     */
+    public ExportHedger(double budget) {
+        if (budget <= 0 || budget > 1) {
+            throw new IllegalArgumentException("The hedging budget must be above 0 and at most 1, not " + budget);
+        }
+
+        this.budget = budget;
+    }
+
+    /**
+     * @return The hedger used by every {@link SheetIO} in the process, or null if exports aren't hedged
+     */
+    public static ExportHedger getShared() {
+        return shared;
+    }
+
+    /**
+     * Sets the hedger used by every {@link SheetIO} in the process.
+     *
+     * @param shared The hedger, or null to never hedge exports
+     */
+    public static void setShared(ExportHedger shared) {
+        ExportHedger.shared = shared;
+    }
+
+    /**
+     * Runs an export, hedging it with a duplicate if it turns out to be slow.
+     *
+     * @param export       Runs a single export, aborting it when given cancellation is cancelled
+     * @param cancellation The cancellation of the download, which aborts both exports
+     * @param <T>          The result of the export
+     * @return The result of whichever export finished first
+     */
+    public <T> T export(Function<Cancellation, T> export, Cancellation cancellation) {
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + budget);
+        }
+
+        long delay = getDelayNanos();
+        if (delay < 0) {
+            long start = System.nanoTime();
+            var result = export.apply(cancellation);
+            record(System.nanoTime() - start);
+            return result;
+        }
+
+        // Both exports run apart from the caller, which is then free as soon as either wins, as a request still waiting
+        // on Drive's response can't be aborted
+        var race = new Race<>(export);
+        var trace = Trace.current();
+        var registration = cancellation.onCancel(race::cancel);
+        try {
+            // Timed from when the export starts running, as time queued behind other exports isn't its latency
+            EXPORT_EXECUTOR.execute(trace.wrap(() -> {
+                long start = System.nanoTime();
+                var timer = TIMER.schedule(trace.wrap(() -> hedge(race)), delay, TimeUnit.NANOSECONDS);
+                try {
+                    if (race.attempt(race.primary, race.secondary, false)) {
+                        record(System.nanoTime() - start);
+                    }
+                } finally {
+                    timer.cancel(false);
+                }
+            }));
+
+            try {
+                return race.result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw e;
+            }
+        } finally {
+            registration.unregister();
+        }
+    }
+
+    private void hedge(Race<?> race) {
+        // The original export may have finished or failed meanwhile, leaving nothing to hedge
+        if (race.result.isDone() || race.attempts.get() == 0) {
+            return;
+        }
+
+        // A hedge that would only queue behind other exports can't win, so it isn't paid for
+        if (EXPORT_EXECUTOR.getActiveCount() >= EXPORT_EXECUTOR.getMaximumPoolSize()) {
+            LOGGER.debug("Not hedging a slow export, as every export thread is busy");
+            return;
+        }
+
+        synchronized (this) {
+            if (tokens < 1) {
+                HEDGES_DENIED.inc();
+                return;
+            }
+
+            tokens--;
+        }
+
+        if (race.attempts.getAndUpdate(attempts -> attempts == 0 ? 0 : attempts + 1) == 0) {
+            synchronized (this) {
+                tokens = Math.min(MAX_TOKENS, tokens + 1);
+            }
+
+            return;
+        }
+
+        HEDGES.inc();
+        LOGGER.debug("Hedging an export slower than {}ms", getDelayNanos() / 1_000_000);
+        EXPORT_EXECUTOR.execute(Trace.current().wrap(() -> {
+            race.attempt(race.secondary, race.primary, true);
+        }));
+    }
+
+    /**
+     * Records how long an export took, or had taken when a hedge beat it.
+     *
+     * @param nanos The time taken
+     */
+    private synchronized void record(long nanos) {
+        samples[nextSample] = nanos;
+        nextSample = (nextSample + 1) % WINDOW;
+        sampleCount = Math.min(sampleCount + 1, WINDOW);
+    }
+
+    /**
+     * @return How long an export may run before it is hedged, or -1 if too few exports have been timed
+     */
+    public long getDelayNanos() {
+        long[] sorted;
+        synchronized (this) {
+            if (sampleCount < MIN_SAMPLES) {
+                return -1;
+            }
+
+            sorted = Arrays.copyOf(samples, sampleCount);
+        }
+
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(PERCENTILE * sorted.length) - 1];
+    }
+
+    /**
+     * An export and its possible duplicate, racing to complete a shared result.
+     */
+    private static class Race<T> {
+        private final Function<Cancellation, T> export;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Cancellation primary = new Cancellation();
+        private final Cancellation secondary = new Cancellation();
+
+        // The exports still running, the result failing once none are left
+        private final AtomicInteger attempts = new AtomicInteger(1);
+
+        private Race(Function<Cancellation, T> export) {
+            this.export = export;
+        }
+
+        /**
+         * Runs one of the exports, completing the result and aborting the other export if it finishes first.
+         *
+         * @return If the export finished, or was aborted as the other finished first
+         */
+        private boolean attempt(Cancellation own, Cancellation other, boolean hedged) {
+            try {
+                var value = export.apply(own);
+                if (result.complete(value)) {
+                    other.cancel();
+                    if (hedged) {
+                        HEDGE_WINS.inc();
+                    }
+                }
+
+                return true;
+            } catch (RuntimeException e) {
+                if (attempts.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                } else if (!(e instanceof CancellationException)) {
+                    LOGGER.debug("A hedged export failed while the other is still running: {}", e.getMessage());
+                }
+
+                return e instanceof CancellationException && result.isDone() && !result.isCompletedExceptionally();
+            }
+        }
+
+        private void cancel() {
+            primary.cancel();
+            secondary.cancel();
+            result.completeExceptionally(new CancellationException("The transfer has been cancelled"));
+        }
+    }
+}
@@ -1,42 +1,106 @@
 package com.uddernetworks.holysheet.io;
 
 import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.encoding.EncodedChunk;
+import com.uddernetworks.holysheet.utility.ChecksumUtils;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class FileChunk {
 
     private final File parent;
-    private final byte[] bytes;
+    private final EncodedChunk chunk;
     private final int index;
+    private final long offset;
+    private final long decodedSize;
+    private final long checksum;
+    private final boolean parity;
 
-    public FileChunk(File parent, byte[] bytes, int index) {
+    public FileChunk(File parent, EncodedChunk chunk) {
+        this(parent, chunk, false);
+    }
+
+    /**
+     * @param parent The parent of the chunk's file
+     * @param chunk  The encoded chunk
+     * @param parity If the chunk holds parity rather than the file's data, so it is stored as {@code parity-<index>}
+     */
+    public FileChunk(File parent, EncodedChunk chunk, boolean parity) {
         this.parent = parent;
-        this.bytes = bytes;
-        this.index = index;
+        this.parity = parity;
+        this.chunk = chunk;
+        this.index = chunk.getIndex();
+        this.offset = chunk.getOffset();
+        this.decodedSize = chunk.getDecodedLength();
+        this.checksum = chunk.getChecksum();
     }
 
     /**
-     * Return a Map with the chunk's properties: index, size. All values are
-     * {@link String}s.
-     * @return immutable map implementation with the keys index and size.
+     * Return a Map with the chunk's properties: index, size, offset, decodedSize, crc32c, for an encrypted chunk the
+     * keyId and nonce it was encrypted with, and for a parity chunk parity=true. All values are {@link String}s.
+     * @return map with the keys index, size, offset, decodedSize and crc32c, plus any encryption properties.
      */
     public Map<String, String> getProperties() {
-        return Map.of(
-                "index", String.valueOf(index),
-                "size", String.valueOf(bytes.length)
-        );
+        var properties = new HashMap<>(chunk.getProperties());
+        properties.put("index", String.valueOf(index));
+        properties.put("size", String.valueOf(chunk.getLength()));
+        properties.put("offset", String.valueOf(offset));
+        properties.put("decodedSize", String.valueOf(decodedSize));
+        properties.put("crc32c", ChecksumUtils.toHex(checksum));
+        if (parity) {
+            properties.put("parity", "true");
+        }
+
+        return properties;
+    }
+
+    /**
+     * @return The properties needed to decrypt the chunk, or an empty map if it isn't encrypted
+     */
+    public Map<String, String> getEncryptionProperties() {
+        return chunk.getProperties();
+    }
+
+    /**
+     * @return The name of the chunk's sheet
+     */
+    public String getName() {
+        return (parity ? "parity-" : "chunk-") + index;
     }
 
     public File getParent() {
         return parent;
     }
 
-    public byte[] getBytes() {
-        return bytes;
+    /**
+     * @param cancellation The cancellation of the upload
+     * @return Upload content reading the chunk's encoded characters
+     */
+    public ChunkContent getContent(Cancellation cancellation) {
+        return new ChunkContent("text/tab-separated-values", chunk, cancellation);
+    }
+
+    /**
+     * @return The amount of encoded characters in the chunk
+     */
+    public long getLength() {
+        return chunk.getLength();
     }
 
     public int getIndex() {
         return index;
     }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getDecodedSize() {
+        return decodedSize;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
 }
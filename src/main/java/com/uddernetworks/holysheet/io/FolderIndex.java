@@ -0,0 +1,470 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.util.Data;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.Mime;
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.utility.Utility;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The folders files may be stored in, as a tree of paths such as {@code /photos/2020/}. Every folder is an empty Drive
+ * folder in the sheetStore's {@code folders} folder, with a {@code folder<n>} property holding its ancestor at every
+ * depth n (including its own path at its depth) and a {@code folderDepth} property. A folder or its whole subtree is
+ * therefore found by a single query whatever the size of the index, and creating a folder only creates the objects of
+ * the folders missing from its path, never rewriting the ones of others.
+ * <p>
+ * The tree is listed once and kept in memory, where paths are looked up by walking their segments, and listed again
+ * once older than {@value #REFRESH_MILLIS}ms. Folders listed in the sheetStore's {@code folders} property by older
+ * versions are added to the index when it is first listed, and the property is then removed so they are only added
+ * once.
+ * <p>
+ * Moving a folder takes a request for every folder and file under it, so a move is first recorded as a {@code move}
+ * object in the container, which is removed once it is done. A move interrupted partway is finished the next time the
+ * tree is listed, by this or any other process.
+ */
+public class FolderIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderIndex.class);
+
+    private static final long REFRESH_MILLIS = 30_000;
+    private static final String NODE_QUERY = "properties has { key='folderIndex' and value='node' } and trashed = false";
+    private static final String NODE_FIELDS = "id, mimeType, name, properties";
+    private static final String CONTAINER_QUERY = "properties has { key='folderIndex' and value='container' } and trashed = false";
+    private static final String MOVE_QUERY = "properties has { key='folderIndex' and value='move' } and trashed = false";
+
+    // Every index in the process creates the container under the same lock, so only one of them creates it
+    private static final Object CONTAINER_LOCK = new Object();
+
+    private final SheetManager sheetManager;
+    private final Drive drive;
+
+    private Node root;
+    private long listedAt;
+    private File container;
+    private boolean migrated;
+
+    public FolderIndex(SheetManager sheetManager, Drive drive) {
+        this.sheetManager = sheetManager;
+        this.drive = drive;
+    }
+
+    /**
+     * @param path A folder path
+     * @return If the folder exists, either created or implied by a folder under it. The root always exists.
+     * @throws IOException If the index could not be listed
+     */
+    public synchronized boolean exists(String path) throws IOException {
+        return find(path) != null;
+    }
+
+    /**
+     * @return Every folder's path, with each folder directly before its subfolders
+     * @throws IOException If the index could not be listed
+     */
+    public synchronized List<String> getPaths() throws IOException {
+        var paths = new ArrayList<String>();
+        getRoot().collect(paths);
+        paths.remove("/");
+        return paths;
+    }
+
+    /**
+     * @param path A folder path
+     * @return The paths of the folder's direct subfolders, by name, or an empty list if it doesn't exist
+     * @throws IOException If the index could not be listed
+     */
+    public synchronized List<String> getChildren(String path) throws IOException {
+        var node = find(path);
+        if (node == null) {
+            return List.of();
+        }
+
+        var children = new ArrayList<String>(node.children.size());
+        for (var child : node.children.values()) {
+            children.add(child.path);
+        }
+
+        return children;
+    }
+
+    /**
+     * @param path A folder path
+     * @return The amount of direct subfolders of the folder, or 0 if it doesn't exist
+     * @throws IOException If the index could not be listed
+     */
+    public synchronized int getChildCount(String path) throws IOException {
+        var node = find(path);
+        return node == null ? 0 : node.children.size();
+    }
+
+    /**
+     * Lists every folder under a path from Drive, rather than from the listed tree, with a single query.
+     *
+     * @param path A folder path
+     * @return The paths of every folder under the folder, not including itself
+     * @throws IOException If the folders could not be listed
+     */
+    public List<String> listSubtree(String path) throws IOException {
+        var segments = getSegments(path);
+        if (segments.length == 0) {
+            return getPaths();
+        }
+
+        var paths = new ArrayList<String>();
+        for (var node : sheetManager.getFiles(-1, getSubtreeQuery(path, segments.length), NODE_FIELDS, Mime.FOLDER)) {
+            var nodePath = getPath(node);
+            if (!nodePath.equals(path) && !paths.contains(nodePath)) {
+                paths.add(nodePath);
+            }
+        }
+
+        paths.sort(Comparator.naturalOrder());
+        return paths;
+    }
+
+    /**
+     * Creates a folder and any of its parents that don't exist yet.
+     *
+     * @param path The folder's path
+     * @throws IOException If a folder could not be created
+     */
+    public synchronized void create(String path) throws IOException {
+        var node = getRoot();
+        for (var segment : getSegments(path)) {
+            var child = node.children.get(segment);
+            if (child == null) {
+                child = new Node(segment, node.path + segment + "/");
+                node.children.put(segment, child);
+            }
+
+            if (child.id == null) {
+                child.id = createNode(child.path).getId();
+            }
+
+            node = child;
+        }
+    }
+
+    /**
+     * Moves a folder and every folder under it to a new path along with the files stored in them, creating the new
+     * path's parents if needed. If the move fails partway it is finished when the tree is next listed, see
+     * {@link #finishMove(File)}.
+     *
+     * @param from The folder's path
+     * @param to   The folder's new path, which must not exist
+     * @throws IOException If a folder could not be moved
+     */
+    public synchronized void move(String from, String to) throws IOException {
+        var fromSegments = getSegments(from);
+        var toSegments = getSegments(to);
+        if (fromSegments.length == 0 || toSegments.length == 0) {
+            throw new IllegalArgumentException("The root folder can not be moved");
+        }
+
+        if (to.startsWith(from)) {
+            throw new IllegalArgumentException("Can't move " + from + " into itself");
+        }
+
+        var node = find(from);
+        if (node == null) {
+            throw new IllegalArgumentException("The folder " + from + " does not exist");
+        }
+
+        if (find(to) != null) {
+            throw new IllegalArgumentException("The folder " + to + " already exists");
+        }
+
+        var parentPath = to.substring(0, to.length() - toSegments[toSegments.length - 1].length() - 1);
+        create(parentPath);
+
+        finishMove(sheetManager.createFolder("move", getContainer(), Map.of("folderIndex", "move", "moveFrom", from, "moveTo", to)));
+
+        var oldParent = find(from.substring(0, from.length() - fromSegments[fromSegments.length - 1].length() - 1));
+        oldParent.children.remove(node.name);
+
+        var newParent = find(parentPath);
+        var moved = node.rename(toSegments[toSegments.length - 1], to);
+        newParent.children.put(moved.name, moved);
+    }
+
+    /**
+     * Carries out a recorded move: the files stored under the folder are moved first, as their paths are only known
+     * from the folders not yet moved, then the folders, and then the record is removed. Every step only changes what is
+     * still at the old path, so a move interrupted at any point is finished by running it again.
+     *
+     * @param record The {@code move} object recording the move
+     * @throws IOException If a file or folder could not be moved
+     */
+    private void finishMove(File record) throws IOException {
+        var from = record.getProperties().get("moveFrom");
+        var to = record.getProperties().get("moveTo");
+
+        // The objects are listed again, so folders created by others since the tree was listed move too
+        var objects = sheetManager.getFiles(-1, getSubtreeQuery(from, getSegments(from).length), NODE_FIELDS, Mime.FOLDER);
+
+        var paths = new TreeSet<String>();
+        paths.add(from);
+        for (var object : objects) {
+            paths.add(getPath(object));
+        }
+
+        int files = 0;
+        for (var path : paths) {
+            var moved = to + path.substring(from.length());
+            for (var file : sheetManager.getFiles(-1, "properties has { key='directParent' and value='true' } and properties has { key='path' and value='" + Utility.escapeQuery(path) + "' }", "id, mimeType, properties", Mime.FOLDER)) {
+                sheetManager.addProperties(file, Map.of("path", moved));
+                files++;
+            }
+        }
+
+        for (var object : objects) {
+            var oldPath = getPath(object);
+            var newPath = to + oldPath.substring(from.length());
+            var oldDepth = getSegments(oldPath).length;
+            var newSegments = getSegments(newPath);
+
+            var properties = getProperties(newPath);
+            for (int depth = newSegments.length + 1; depth <= oldDepth; depth++) {
+                properties.put("folder" + depth, Data.NULL_STRING);
+            }
+
+            long start = System.nanoTime();
+            drive.files().update(object.getId(), new File()
+                    .setName(newSegments[newSegments.length - 1])
+                    .setProperties(properties))
+                    .setFields("id")
+                    .execute();
+            Metrics.DRIVE_REQUEST_SECONDS.labels("update").observeSince(start);
+        }
+
+        // Another process may have finished the same move at once
+        long start = System.nanoTime();
+        try {
+            drive.files().delete(record.getId()).execute();
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        Metrics.DRIVE_REQUEST_SECONDS.labels("delete").observeSince(start);
+
+        LOGGER.info("Moved {} folders and {} files from {} to {}", objects.size(), files, from, to);
+    }
+
+    /**
+     * Discards the listed tree, so the next access lists the folders again.
+     */
+    public synchronized void refresh() {
+        root = null;
+    }
+
+    private Node find(String path) throws IOException {
+        var node = getRoot();
+        for (var segment : getSegments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    private Node getRoot() throws IOException {
+        if (root != null && System.currentTimeMillis() - listedAt <= REFRESH_MILLIS) {
+            return root;
+        }
+
+        // Moves interrupted by a failure are finished first, so no folder is seen half moved
+        for (var record : sheetManager.getFiles(-1, MOVE_QUERY, NODE_FIELDS, Mime.FOLDER)) {
+            LOGGER.info("Finishing the interrupted move of {} to {}", record.getProperties().get("moveFrom"), record.getProperties().get("moveTo"));
+            try {
+                finishMove(record);
+            } catch (IOException e) {
+                LOGGER.error("Unable to finish the move of " + record.getProperties().get("moveFrom") + ", it will be tried again", e);
+            }
+        }
+
+        var objects = sheetManager.getFiles(-1, NODE_QUERY, NODE_FIELDS, Mime.FOLDER);
+        objects.sort(Comparator.comparingInt(object -> NumberUtils.toInt(object.getProperties().get("folderDepth"))));
+
+        root = new Node("", "/");
+        listedAt = System.currentTimeMillis();
+        for (var object : objects) {
+            var node = root;
+            for (var segment : getSegments(getPath(object))) {
+                var parent = node;
+                node = parent.children.computeIfAbsent(segment, $ -> new Node(segment, parent.path + segment + "/"));
+            }
+
+            // Creating the same folder at once from two places leaves two objects for it, which are the same folder
+            if (node.id == null) {
+                node.id = object.getId();
+            }
+        }
+
+        if (!migrated) {
+            migrated = true;
+            migrate();
+        }
+
+        return root;
+    }
+
+    /**
+     * Adds the folders of the sheetStore's {@code folders} property, written by older versions, to the index, and then
+     * removes the property. Folders moved or removed since are otherwise brought back by every process that lists the
+     * index.
+     */
+    private void migrate() throws IOException {
+        var sheetStore = sheetManager.getSheetStore();
+        var properties = sheetManager.getFile(sheetStore.getId(), "id, properties").getProperties();
+        if (properties == null || !properties.containsKey("folders")) {
+            return;
+        }
+
+        for (var path : properties.get("folders").split(",")) {
+            if (!path.isBlank() && getSegments(path).length > 0 && find(path) == null) {
+                LOGGER.info("Adding folder {} to the folder index", path);
+                create(path);
+            }
+        }
+
+        var removed = new HashMap<String, String>();
+        removed.put("folders", null);
+        sheetManager.addProperties(sheetStore, removed);
+        if (sheetStore.getProperties() != null) {
+            sheetStore.getProperties().remove("folders");
+        }
+
+        LOGGER.info("Removed the legacy folders property from the sheetStore");
+    }
+
+    private File createNode(String path) throws IOException {
+        var segments = getSegments(path);
+        return sheetManager.createFolder(segments[segments.length - 1], getContainer(), getProperties(path));
+    }
+
+    /**
+     * Finds the folder holding the index's folders, creating it if there is none. Processes that both find none may each
+     * create one, in which case every process settles on the oldest and the others' are removed; nodes are found by
+     * their properties, so any already created in a removed container are unaffected.
+     */
+    private File getContainer() throws IOException {
+        if (container != null) {
+            return container;
+        }
+
+        synchronized (CONTAINER_LOCK) {
+            var existing = getContainers();
+            if (existing.isEmpty()) {
+                var created = sheetManager.createFolder("folders", sheetManager.getSheetStore(), Map.of("folderIndex", "container"));
+                existing = getContainers();
+                if (existing.isEmpty()) {
+                    existing = List.of(created);
+                }
+
+                for (var duplicate : existing.subList(1, existing.size())) {
+                    if (duplicate.getId().equals(created.getId())) {
+                        LOGGER.info("Another folder index container was created at once, removing {}", created.getId());
+                        long start = System.nanoTime();
+                        drive.files().delete(created.getId()).execute();
+                        Metrics.DRIVE_REQUEST_SECONDS.labels("delete").observeSince(start);
+                    }
+                }
+            }
+
+            container = existing.get(0);
+            return container;
+        }
+    }
+
+    /**
+     * @return The index's containers, oldest first
+     */
+    private List<File> getContainers() throws IOException {
+        var containers = sheetManager.getFiles(-1, CONTAINER_QUERY, "id, mimeType, createdTime", Mime.FOLDER);
+        containers.sort(Comparator.comparing((File file) -> file.getCreatedTime() == null ? 0 : file.getCreatedTime().getValue())
+                .thenComparing(File::getId));
+        return containers;
+    }
+
+    private static Map<String, String> getProperties(String path) {
+        var segments = getSegments(path);
+        var properties = new HashMap<String, String>();
+        properties.put("folderIndex", "node");
+        properties.put("folderDepth", String.valueOf(segments.length));
+
+        var ancestor = new StringBuilder("/");
+        for (int i = 0; i < segments.length; i++) {
+            ancestor.append(segments[i]).append('/');
+            properties.put("folder" + (i + 1), ancestor.toString());
+        }
+
+        return properties;
+    }
+
+    private static String getSubtreeQuery(String path, int depth) {
+        return NODE_QUERY + " and properties has { key='folder" + depth + "' and value='" + Utility.escapeQuery(path) + "' }";
+    }
+
+    private static String getPath(File object) {
+        var properties = object.getProperties();
+        return properties.getOrDefault("folder" + properties.get("folderDepth"), "/");
+    }
+
+    /**
+     * @param path A folder path, such as {@code /photos/2020/}
+     * @return The names of the folders along the path, empty for the root
+     */
+    static String[] getSegments(String path) {
+        return Arrays.stream(path.split("/"))
+                .filter(segment -> !segment.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    private static class Node {
+        private final String name;
+        private final String path;
+        private final Map<String, Node> children = new TreeMap<>();
+        private String id;
+
+        private Node(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+
+        private Node rename(String name, String path) {
+            var renamed = new Node(name, path);
+            renamed.id = id;
+            for (var child : children.values()) {
+                renamed.children.put(child.name, child.rename(child.name, path + child.name + "/"));
+            }
+
+            return renamed;
+        }
+
+        private void collect(List<String> paths) {
+            paths.add(path);
+            for (var child : children.values()) {
+                child.collect(paths);
+            }
+        }
+    }
+}
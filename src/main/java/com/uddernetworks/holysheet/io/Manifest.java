@@ -0,0 +1,268 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.google.gson.Gson;
+import com.uddernetworks.holysheet.utility.ChecksumUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The list of sheets making up a file, written when its upload is finalised so it may be downloaded without listing its
+ * parent folder. The manifest is JSON stored in the parent's description, or if too long for it in a small file in the
+ * parent, and the parent's {@code manifest} property is either {@link #INLINE} or the ID of that file. A file with a
+ * manifest may use sheets stored in other parents, so an upload can reuse the sheets of blocks unchanged since the
+ * previous one.
+ * <p>
+ * Files uploaded in blocks have their original bytes split at multiples of {@link #getBlockSize()}, with one sheet per
+ * block, so a block at the same index with the same fingerprint always encodes to the same sheet. The fingerprint is
+ * the block's SHA-256, or for encrypted files an HMAC keyed by the encrypting key. Files uploaded with parity also list
+ * the parity sheets of every stripe of blocks, apart from the sheets of the data.
+ */
+public class Manifest {
+
+    public static final int VERSION = 1;
+    public static final String NAME = "manifest";
+    public static final String INLINE = "inline";
+    public static final String MIME = "application/json";
+
+    private static final Gson GSON = new Gson();
+
+    private int version = VERSION;
+    private long blockSize;
+    private List<Chunk> chunks = new ArrayList<>();
+
+    // Left null without parity, so the manifests of other files don't mention it
+    private List<Chunk> parity;
+
+    public Manifest(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public static Manifest read(InputStream in) throws IOException {
+        try (var reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return check(GSON.fromJson(reader, Manifest.class));
+        }
+    }
+
+    public static Manifest read(String json) throws IOException {
+        return check(GSON.fromJson(json, Manifest.class));
+    }
+
+    private static Manifest check(Manifest manifest) throws IOException {
+        if (manifest == null || manifest.version > VERSION) {
+            throw new IOException("Unsupported manifest version " + (manifest == null ? "null" : manifest.version));
+        }
+
+        return manifest;
+    }
+
+    public byte[] toBytes() {
+        return GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a chunk, keeping the chunks in index order.
+     *
+     * @param chunk The chunk
+     */
+    public synchronized void add(Chunk chunk) {
+        chunks.add(chunk);
+        chunks.sort(Comparator.comparingInt(Chunk::getIndex));
+    }
+
+    /**
+     * Adds a parity chunk, keeping the parity chunks in index order.
+     *
+     * @param chunk The parity chunk
+     */
+    public synchronized void addParity(Chunk chunk) {
+        if (parity == null) {
+            parity = new ArrayList<>();
+        }
+
+        parity.add(chunk);
+        parity.sort(Comparator.comparingInt(Chunk::getIndex));
+    }
+
+    /**
+     * @param index The index of the chunk
+     * @return The chunk with the index, or null if there is none
+     */
+    public synchronized Chunk getChunk(int index) {
+        return index < chunks.size() && chunks.get(index).index == index ? chunks.get(index) : null;
+    }
+
+    /**
+     * @return Every sheet as a {@link File} with the properties it was uploaded with, so it may be downloaded without
+     * listing the parent
+     */
+    public synchronized List<File> toFiles() {
+        var files = new ArrayList<File>(chunks.size());
+        for (var chunk : chunks) {
+            files.add(chunk.toFile());
+        }
+
+        return files;
+    }
+
+    /**
+     * @return Every parity sheet as a {@link File} with the properties it was uploaded with, named {@code parity-<index>}
+     */
+    public synchronized List<File> toParityFiles() {
+        if (parity == null) {
+            return List.of();
+        }
+
+        var files = new ArrayList<File>(parity.size());
+        for (var chunk : parity) {
+            files.add(chunk.toFile().setName("parity-" + chunk.getIndex()));
+        }
+
+        return files;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized List<Chunk> getChunks() {
+        return List.copyOf(chunks);
+    }
+
+    public static class Chunk {
+        private int index;
+        private String id;
+        private long offset;
+        private long size;
+        private long decodedSize;
+        private String crc32c;
+        private String sha256;
+        private String keyId;
+        private String nonce;
+
+        public Chunk(int index, String id, long offset, long size, long decodedSize, String crc32c, String sha256) {
+            this.index = index;
+            this.id = id;
+            this.offset = offset;
+            this.size = size;
+            this.decodedSize = decodedSize;
+            this.crc32c = crc32c;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * @param chunk  An uploaded chunk
+         * @param id     The ID of the chunk's sheet
+         * @param sha256 The fingerprint of the chunk's original bytes, or null if they are not in a block
+         * @return The chunk's entry
+         */
+        public static Chunk of(FileChunk chunk, String id, String sha256) {
+            var encryption = chunk.getEncryptionProperties();
+            return new Chunk(chunk.getIndex(), id, chunk.getOffset(), chunk.getLength(), chunk.getDecodedSize(),
+                    ChecksumUtils.toHex(chunk.getChecksum()), sha256)
+                    .setEncryption(encryption.get("keyId"), encryption.get("nonce"));
+        }
+
+        /**
+         * @param sheet A sheet with its properties
+         * @param id    The ID of the sheet, or of a copy of it
+         * @return The sheet's entry
+         */
+        public static Chunk of(File sheet, String id) {
+            var properties = sheet.getProperties();
+            return new Chunk(NumberUtils.toInt(properties.get("index")), id, NumberUtils.toLong(properties.get("offset")),
+                    NumberUtils.toLong(properties.get("size")), NumberUtils.toLong(properties.get("decodedSize")), properties.get("crc32c"), null)
+                    .setEncryption(properties.get("keyId"), properties.get("nonce"));
+        }
+
+        /**
+         * @param keyId The ID of the key the chunk was encrypted with, or null if it isn't encrypted
+         * @param nonce The nonce the chunk was encrypted with, or null if it isn't encrypted
+         * @return This chunk
+         */
+        public Chunk setEncryption(String keyId, String nonce) {
+            this.keyId = keyId;
+            this.nonce = nonce;
+            return this;
+        }
+
+        /**
+         * @param offset      The offset of a block in the original file
+         * @param decodedSize The length of the block
+         * @param sha256      The fingerprint of the block
+         * @return If the block is the one this chunk was encoded from
+         */
+        public boolean matches(long offset, long decodedSize, String sha256) {
+            return this.offset == offset && this.decodedSize == decodedSize && sha256.equals(this.sha256);
+        }
+
+        public File toFile() {
+            var properties = new HashMap<String, String>();
+            properties.put("index", String.valueOf(index));
+            properties.put("size", String.valueOf(size));
+            properties.put("offset", String.valueOf(offset));
+            properties.put("decodedSize", String.valueOf(decodedSize));
+            if (crc32c != null) {
+                properties.put("crc32c", crc32c);
+            }
+
+            if (keyId != null) {
+                properties.put("keyId", keyId);
+                properties.put("nonce", nonce);
+            }
+
+            return new File()
+                    .setId(id)
+                    .setName("chunk-" + index)
+                    .setProperties(properties);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getDecodedSize() {
+            return decodedSize;
+        }
+
+        public String getCrc32c() {
+            return crc32c;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getKeyId() {
+            return keyId;
+        }
+
+        public String getNonce() {
+            return nonce;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.uddernetworks.holysheet.io;
+
+import com.uddernetworks.holysheet.encoding.ReedSolomon;
+
+/**
+ * The amount of data and parity sheets in every stripe of a file uploaded with parity, written as {@code <k>+<m>} in
+ * the parent's {@code parity} property and on the command line. Any {@code k} of the {@code k + m} sheets of a stripe
+ * restore its data, at a storage overhead of {@code m / k}.
+ */
+public class ParityScheme {
+
+    private final int dataSheets;
+    private final int paritySheets;
+
+    public ParityScheme(int dataSheets, int paritySheets) {
+        if (dataSheets < 1 || paritySheets < 1 || dataSheets + paritySheets > ReedSolomon.MAX_SHARDS) {
+            throw new IllegalArgumentException("A stripe needs at least one data and parity sheet and at most " + ReedSolomon.MAX_SHARDS + " sheets, not " + dataSheets + "+" + paritySheets);
+        }
+
+        this.dataSheets = dataSheets;
+        this.paritySheets = paritySheets;
+    }
+
+    /**
+     * @param scheme A scheme such as {@code 4+2}
+     * @return The scheme
+     * @throws IllegalArgumentException If the scheme is malformed
+     */
+    public static ParityScheme parse(String scheme) {
+        var parts = scheme.trim().split("\\+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected parity as <data sheets>+<parity sheets>, not \"" + scheme + "\"");
+        }
+
+        try {
+            return new ParityScheme(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected parity as <data sheets>+<parity sheets>, not \"" + scheme + "\"");
+        }
+    }
+
+    /**
+     * @return A codec for stripes of this scheme
+     */
+    public ReedSolomon createCodec() {
+        return new ReedSolomon(dataSheets, paritySheets);
+    }
+
+    public int getDataSheets() {
+        return dataSheets;
+    }
+
+    public int getParitySheets() {
+        return paritySheets;
+    }
+
+    @Override
+    public String toString() {
+        return dataSheets + "+" + paritySheets;
+    }
+}
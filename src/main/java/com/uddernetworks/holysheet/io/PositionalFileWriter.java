@@ -0,0 +1,104 @@
+package com.uddernetworks.holysheet.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A writer over a destination file preallocated to its final size, allowing any thread to write decoded sheets
+ * directly at their offset via {@link FileChannel#write(ByteBuffer, long)}. No ordering between writers is required.
+ */
+public class PositionalFileWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 0x10000;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * Creates a writer, truncating or extending the destination to exactly {@code size} bytes.
+     *
+     * @param destination The file to write to
+     * @param size        The final size of the file
+     * @throws IOException If the file could not be opened or resized
+     */
+    public PositionalFileWriter(java.io.File destination, long size) throws IOException {
+        this.file = new RandomAccessFile(destination, "rw");
+        this.file.setLength(size);
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the given position.
+     *
+     * @param buffer   The data to write
+     * @param position The absolute position in the file
+     * @throws IOException If the write fails
+     */
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Opens a buffered {@link OutputStream} writing sequentially from the given position. Closing the stream flushes it,
+     * but leaves this writer open.
+     *
+     * @param position The absolute position the first byte is written to
+     * @return The stream
+     */
+    public PositionalOutputStream openStream(long position) {
+        return new PositionalOutputStream(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public class PositionalOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position;
+        private long written;
+
+        private PositionalOutputStream(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+
+            buffer.put((byte) b);
+            written++;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            int length = buffer.remaining();
+            PositionalFileWriter.this.write(buffer, position);
+            position += length;
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * @return The amount of bytes written through this stream
+         */
+        public long getWritten() {
+            return written;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.encoding.ChunkEncryptor;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encrypts every sheet of an upload with AES-GCM before it is encoded. Each sheet is encrypted on its own with a random
+ * nonce, stored in its {@code nonce} property along with the {@code keyId} of the key used. The sheet's index and
+ * offset are authenticated with it, along with a random nonce of the whole file kept in its parent's
+ * {@code fileNonce} property, so any sheet may be decrypted without the others but can't be moved to another position
+ * or swapped in from another file unnoticed. Versions of a delta upload share the nonce of the first, as they share
+ * its sheets. A sheet that fails authentication decrypts to nothing, so it fails verification like any other corrupt
+ * sheet and no unauthenticated bytes are written.
+ * <p>
+ * The block fingerprints of encrypted delta uploads are HMACs under a key derived from the encrypting key (see
+ * {@link #fingerprint(byte[], int, int)}), so the manifest doesn't let anyone confirm guesses of the file's contents.
+ * <p>
+ * Keys are 128, 192 or 256 bit AES keys, identified by a fingerprint of their bytes. The first key encrypts new
+ * uploads, while any of them may decrypt, so keys can be rotated by adding a new one first.
+ */
+public class SheetCipher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SheetCipher.class);
+
+    public static final String ALGORITHM = "AES-GCM";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 12;
+    private static final int FILE_NONCE_LENGTH = 16;
+    private static final int TAG_BITS = 128;
+
+    // Derives the fingerprint key from the encrypting key, so the two are never used alike
+    private static final byte[] FINGERPRINT_LABEL = "holysheet fingerprint".getBytes(StandardCharsets.UTF_8);
+
+    // Any partial block held back by the cipher, plus the tag
+    private static final int OVERHEAD = 15 + TAG_BITS / 8;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Counter AUTHENTICATION_FAILURES = Metrics.counter("holysheet_sheet_authentication_failures_total",
+            "Encrypted sheets whose ciphertext failed authentication");
+
+    private static volatile SheetCipher shared;
+
+    private final Map<String, SecretKeySpec> keys = new LinkedHashMap<>();
+    private final String keyId;
+    private final SecretKeySpec fingerprintKey;
+
+    /**
+     * @param keys The raw AES keys, the first of which encrypts
+     */
+    public SheetCipher(List<byte[]> keys) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one key is needed");
+        }
+
+        for (var key : keys) {
+            if (key.length != 16 && key.length != 24 && key.length != 32) {
+                throw new IllegalArgumentException("AES keys must be 16, 24 or 32 bytes, not " + key.length);
+            }
+
+            this.keys.put(getKeyId(key), new SecretKeySpec(key, "AES"));
+        }
+
+        this.keyId = getKeyId(keys.get(0));
+        this.fingerprintKey = new SecretKeySpec(hmac(new SecretKeySpec(keys.get(0), FINGERPRINT_ALGORITHM), FINGERPRINT_LABEL, 0, FINGERPRINT_LABEL.length), FINGERPRINT_ALGORITHM);
+    }
+
+    /**
+     * Reads keys from files, each holding either the raw key or the key in Base64.
+     *
+     * @param files The key files, the first of which encrypts
+     * @return The cipher
+     * @throws IOException If a file could not be read
+     */
+    public static SheetCipher load(List<Path> files) throws IOException {
+        var keys = new ArrayList<byte[]>(files.size());
+        for (var file : files) {
+            var bytes = Files.readAllBytes(file);
+            if (bytes.length == 16 || bytes.length == 24 || bytes.length == 32) {
+                keys.add(bytes);
+                continue;
+            }
+
+            try {
+                keys.add(Base64.getDecoder().decode(new String(bytes, StandardCharsets.US_ASCII).trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("The key file " + file + " holds neither a raw nor a Base64 AES key");
+            }
+        }
+
+        var cipher = new SheetCipher(keys);
+        LOGGER.info("Loaded {} keys, encrypting with {}", cipher.keys.size(), cipher.keyId);
+        return cipher;
+    }
+
+    /**
+     * @return The cipher encrypting uploads, or null if they aren't encrypted
+     */
+    public static SheetCipher getShared() {
+        return shared;
+    }
+
+    /**
+     * Sets the cipher encrypting uploads and decrypting downloads.
+     *
+     * @param shared The cipher, or null to upload without encryption
+     */
+    public static void setShared(SheetCipher shared) {
+        SheetCipher.shared = shared;
+    }
+
+    /**
+     * @param sheet A sheet with its properties
+     * @return If the sheet is encrypted
+     */
+    public static boolean isEncrypted(File sheet) {
+        var properties = sheet.getProperties();
+        return properties != null && properties.containsKey("nonce");
+    }
+
+    /**
+     * @param key A raw key
+     * @return The ID of the key, the start of its SHA-256 in hex
+     */
+    public static String getKeyId(byte[] key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(key);
+            var id = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                id.append(String.format("%02x", digest[i]));
+            }
+
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The ID of the key new uploads are encrypted with
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @return A new random nonce for the {@code fileNonce} property of an encrypted file
+     */
+    public static String newFileNonce() {
+        var nonce = new byte[FILE_NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    /**
+     * @param fileNonce The {@code fileNonce} of the file being uploaded
+     * @return A new encryptor for the sheets of a single upload
+     */
+    public ChunkEncryptor newEncryptor(String fileNonce) {
+        return new Encryptor(keys.get(keyId), keyId, Base64.getDecoder().decode(fileNonce));
+    }
+
+    /**
+     * Fingerprints a block of an encrypted file, for finding the blocks unchanged since the previous version of a
+     * delta upload. Fingerprints only match those made with the same encrypting key.
+     *
+     * @param data   The block's bytes
+     * @param offset The offset of the block in the array
+     * @param length The length of the block
+     * @return The HMAC-SHA256 of the block in hex
+     */
+    public String fingerprint(byte[] data, int offset, int length) {
+        var mac = hmac(fingerprintKey, data, offset, length);
+        var hex = new StringBuilder(mac.length * 2);
+        for (byte b : mac) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    private static byte[] hmac(SecretKeySpec key, byte[] data, int offset, int length) {
+        try {
+            var mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(key);
+            mac.update(data, offset, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Opens a stream decrypting a sheet's ciphertext into the given stream once it has been authenticated, which is
+     * when the returned stream is closed. Closing it closes the given stream.
+     *
+     * @param parent The parent of the sheet, with its properties
+     * @param sheet  The encrypted sheet, with its properties
+     * @param out    The stream to write the sheet's original bytes to
+     * @return The stream to write the sheet's ciphertext to
+     */
+    public OutputStream decrypt(File parent, File sheet, OutputStream out) {
+        var properties = sheet.getProperties();
+        var key = keys.get(properties.get("keyId"));
+        if (key == null) {
+            throw new IllegalStateException("Sheet#" + properties.get("index") + " is encrypted with the key " + properties.get("keyId") + ", which is not loaded");
+        }
+
+        try {
+            var cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, Base64.getDecoder().decode(properties.get("nonce"))));
+            cipher.updateAAD(getAssociatedData(getFileNonce(parent), NumberUtils.toInt(properties.get("index")), NumberUtils.toLong(properties.get("offset"))));
+            return new DecryptingOutputStream(out, cipher, properties.get("index"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to decrypt sheet#" + properties.get("index"), e);
+        }
+    }
+
+    /**
+     * @return The decoded {@code fileNonce} of a parent, or an empty array for files encrypted before it was added
+     */
+    private static byte[] getFileNonce(File parent) {
+        var properties = parent.getProperties();
+        var fileNonce = properties == null ? null : properties.get("fileNonce");
+        return fileNonce == null ? new byte[0] : Base64.getDecoder().decode(fileNonce);
+    }
+
+    private static byte[] getAssociatedData(byte[] fileNonce, int index, long offset) {
+        return ByteBuffer.allocate(fileNonce.length + Integer.BYTES + Long.BYTES).put(fileNonce).putInt(index).putLong(offset).array();
+    }
+
+    private static class Encryptor implements ChunkEncryptor {
+        private final SecretKeySpec key;
+        private final String keyId;
+        private final byte[] fileNonce;
+        private final Cipher cipher;
+
+        private Encryptor(SecretKeySpec key, String keyId, byte[] fileNonce) {
+            this.key = key;
+            this.keyId = keyId;
+            this.fileNonce = fileNonce;
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM is not available", e);
+            }
+        }
+
+        @Override
+        public Map<String, String> start(int index, long offset) {
+            var nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+                cipher.updateAAD(getAssociatedData(fileNonce, index, offset));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to encrypt sheet#" + index, e);
+            }
+
+            return Map.of("keyId", keyId, "nonce", Base64.getEncoder().encodeToString(nonce));
+        }
+
+        @Override
+        public byte[] update(byte[] data, int offset, int length) {
+            return cipher.update(data, offset, length);
+        }
+
+        @Override
+        public byte[] finish() {
+            try {
+                return cipher.doFinal();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to finish encrypting a sheet", e);
+            }
+        }
+
+        @Override
+        public int getOverhead() {
+            return OVERHEAD;
+        }
+    }
+
+    /**
+     * Collects a sheet's ciphertext and decrypts it as a whole once closed, so nothing unauthenticated reaches the
+     * output. (AES-GCM holds back the plaintext until the tag is checked anyway, and the JDK's implementation fails on
+     * long runs of small updates.)
+     */
+    private static class DecryptingOutputStream extends FilterOutputStream {
+        private final Cipher cipher;
+        private final String index;
+        private final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        private boolean closed;
+
+        private DecryptingOutputStream(OutputStream out, Cipher cipher, String index) {
+            super(out);
+            this.cipher = cipher;
+            this.index = index;
+        }
+
+        @Override
+        public void write(int b) {
+            ciphertext.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            ciphertext.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            // Nothing may be written before the whole sheet is authenticated
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                // Nothing arrived, as when the export failed, which the JDK fails on rather than the tag
+                if (ciphertext.size() == 0) {
+                    return;
+                }
+
+                // Anything else too short to hold the tag has been truncated or tampered with
+                if (ciphertext.size() < TAG_BITS / 8) {
+                    throw new AEADBadTagException("Sheet#" + index + " is shorter than its authentication tag");
+                }
+
+                out.write(cipher.doFinal(ciphertext.toByteArray()));
+            } catch (AEADBadTagException e) {
+                AUTHENTICATION_FAILURES.inc();
+                LOGGER.warn("Sheet#{} failed authentication", index);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt sheet#" + index, e);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.utility.ChecksumUtils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * The length and CRC32C of a sheet's decoded bytes, as measured while downloading it.
+ */
+public class SheetDigest {
+
+    private final long length;
+    private final long checksum;
+
+    public SheetDigest(long length, long checksum) {
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Measures decoded bytes already in memory.
+     *
+     * @param data The decoded bytes, which are left unread
+     * @return The digest of the remaining bytes of the buffer
+     */
+    public static SheetDigest of(ByteBuffer data) {
+        var checksum = new CRC32C();
+        checksum.update(data.duplicate());
+        return new SheetDigest(data.remaining(), checksum.getValue());
+    }
+
+    /**
+     * Checks the digest against the {@code decodedSize} and {@code crc32c} properties of the sheet it was taken from.
+     * Sheets uploaded before checksums were recorded are only checked by size.
+     *
+     * @param sheet The sheet
+     * @return If the sheet was decoded intact
+     */
+    public boolean matches(File sheet) {
+        var properties = sheet.getProperties();
+        if (length != Long.parseLong(properties.get("decodedSize"))) {
+            return false;
+        }
+
+        var stored = properties.get("crc32c");
+        return stored == null || ChecksumUtils.fromHex(stored) == checksum;
+    }
+
+    /**
+     * Checks the digests of every sheet, in index order, against the {@code crc32c} property of their parent.
+     *
+     * @param parent  The parent of the sheets
+     * @param digests The digest of each sheet by index
+     * @return If the combined sheets make up the original file, or {@code true} if the parent has no checksum
+     */
+    public static boolean matchesFile(File parent, SheetDigest[] digests) {
+        var stored = parent.getProperties().get("crc32c");
+        if (stored == null) {
+            return true;
+        }
+
+        long combined = 0;
+        for (var digest : digests) {
+            if (digest == null) {
+                return false;
+            }
+
+            combined = ChecksumUtils.combine(combined, digest.checksum, digest.length);
+        }
+
+        return combined == ChecksumUtils.fromHex(stored);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+}
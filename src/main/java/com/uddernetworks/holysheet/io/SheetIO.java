@@ -1,6 +1,7 @@
 package com.uddernetworks.holysheet.io;
 
 import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.sheets.v4.Sheets;
@@ -10,17 +11,29 @@ import com.uddernetworks.holysheet.Mime;
 import com.uddernetworks.holysheet.SheetManager;
 import com.uddernetworks.holysheet.encoding.DecodingOutputStream;
 import com.uddernetworks.holysheet.encoding.EncodingOutputStream;
+import com.uddernetworks.holysheet.encoding.SheetLayout;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.tracing.Trace;
+import com.uddernetworks.holysheet.tracing.Tracing;
+import com.uddernetworks.holysheet.utility.ChecksumUtils;
 import com.uddernetworks.holysheet.utility.Utility;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,13 +41,23 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 import static com.uddernetworks.holysheet.SheetManager.PATH_REGEX;
 import static com.uddernetworks.holysheet.utility.Utility.DRIVE_FIELDS;
@@ -46,17 +69,47 @@ public class SheetIO {
 
     private static final int STAGGER_MS = 5000;
 
+    /**
+     * The value of a parent's {@code format} property when each of its sheets is a self-contained Base91 stream with
+     * {@code offset} and {@code decodedSize} properties. Parents without the property are sequential (format 1).
+     */
+    public static final int FORMAT_INDEPENDENT_CHUNKS = 2;
+
+    static final int DOWNLOAD_THREADS = 4;
+    private static final int VERIFY_ATTEMPTS = 3;
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+
+    // Manifests up to this length are stored in the parent's description, well within what Drive allows
+    private static final int INLINE_MANIFEST_LENGTH = 16 * 1024;
+
+    /**
+     * The fields of a parent needed to download it, including a manifest stored in its description.
+     */
+    public static final String PARENT_FIELDS = DRIVE_FIELDS + ", description";
+    static final ThreadPoolExecutor DOWNLOAD_EXECUTOR = (ThreadPoolExecutor) Executors.newFixedThreadPool(DOWNLOAD_THREADS, runnable -> {
+        var thread = new Thread(runnable, "SheetIO-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Metrics.gauge("holysheet_download_queue_depth", "Sheets waiting for a download thread", () -> DOWNLOAD_EXECUTOR.getQueue().size());
+        Metrics.gauge("holysheet_download_active", "Sheets being downloaded", DOWNLOAD_EXECUTOR::getActiveCount);
+    }
+
 //    private static final int MB = 1000000;
 //    private static final int MAX_SHEET_SIZE = 10 * MB;
 
     private final SheetManager sheetManager;
     private final Drive drive;
     private final Sheets sheets;
+    private final FolderIndex folderIndex;
 
     public SheetIO(SheetManager sheetManager, Drive drive, Sheets sheets) {
         this.sheetManager = sheetManager;
         this.drive = drive;
         this.sheets = sheets;
+        this.folderIndex = new FolderIndex(sheetManager, drive);
     }
 
     /**
@@ -80,9 +133,24 @@ public class SheetIO {
      * @return {@link CompletableFuture} downloaded and uncompressed file.
      */
     public CompletableFuture<File> downloadData(java.io.File destination, String id, Consumer<Double> statusUpdate) {
-        return CompletableFuture.supplyAsync(() -> {
+        return downloadData(destination, id, statusUpdate, new Cancellation());
+    }
+
+    /**
+     * Download and uncompress a file stored by holysheet. Cancelling either the given {@link Cancellation} or the
+     * returned future stops the download, aborting exports in progress and deleting the partially written destination.
+     *
+     * @param destination  Destination {@link java.io.File} to store the downloaded file in on the local system.
+     * @param id           The id of the folder storing the chunks; i.e. the id of the file's parent folder.
+     * @param statusUpdate {@link Consumer} to be accepted when a chunk has been downloaded.
+     * @param cancellation The cancellation of the download
+     * @return {@link CompletableFuture} downloaded and uncompressed file.
+     */
+    public CompletableFuture<File> downloadData(java.io.File destination, String id, Consumer<Double> statusUpdate, Cancellation cancellation) {
+        var trace = Tracing.start("download " + id);
+        return cancellable(CompletableFuture.supplyAsync(trace.wrap(() -> {
             try {
-                var parent = sheetManager.getFile(id, DRIVE_FIELDS);
+                var parent = trace.span("metadata", () -> sheetManager.getFile(id, PARENT_FIELDS));
 
                 if (parent == null) {
                     throw new RuntimeException("Couldn't find id " + id);
@@ -98,22 +166,28 @@ public class SheetIO {
 
                 LOGGER.info("File compression: {}", compression.name());
 
-                var files = sheetManager.getAllSheets(parent.getId());
+                var files = trace.span("list", () -> listSheets(parent));
 
                 LOGGER.info("Found {} children", files.size());
 
-                var encodingOut = new DecodingOutputStream<>(new FileOutputStream(destination));
-                var downloadedIndex = new double[]{0};
+                try {
+                    if (Utility.tryParse(props.get("format"), 1) >= FORMAT_INDEPENDENT_CHUNKS) {
+                        downloadIndependentSheets(destination, parent, files, statusUpdate, cancellation);
+                    } else {
+                        downloadSequentialSheets(destination, files, statusUpdate, cancellation);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!cancellation.isCancelled()) {
+                        throw e;
+                    }
 
-                files.stream().sorted(Comparator.comparingInt(file -> {
-                    var fp = file.getProperties();
-                    return fp == null ? -1 : Integer.parseInt(fp.get("index"));
-                })).forEach(file -> {
-                    downloadSheet(file, encodingOut);
-                    statusUpdate.accept(downloadedIndex[0]++ / (double) files.size());
-                });
+                    LOGGER.info("Download of {} cancelled", id);
+                    if (destination.exists() && !destination.delete()) {
+                        LOGGER.error("Unable to delete the partial download {}", destination.getAbsolutePath());
+                    }
 
-                encodingOut.close();
+                    throw new CancellationException("The download of " + id + " has been cancelled");
+                }
 
                 LOGGER.info("Downloaded {} sheets", files.size());
 
@@ -127,8 +201,350 @@ public class SheetIO {
                 return parent;
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
+            } finally {
+                trace.finish();
+            }
+        })), cancellation);
+    }
+
+    /**
+     * Makes cancelling a future cancel the work behind it, as {@link CompletableFuture#cancel(boolean)} alone only
+     * completes the future.
+     */
+    private static <T> CompletableFuture<T> cancellable(CompletableFuture<T> future, Cancellation cancellation) {
+        future.whenComplete(($, t) -> {
+            if (t instanceof CancellationException) {
+                cancellation.cancel();
             }
         });
+
+        return future;
+    }
+
+    /**
+     * Downloads and decodes legacy sheets, which share a single Base91 stream and therefore must be decoded one after
+     * another in index order.
+     *
+     * @param destination  The file to write to
+     * @param files        The sheets of the file
+     * @param statusUpdate {@link Consumer} to be accepted when a chunk has been downloaded
+     * @param cancellation The cancellation of the download
+     * @throws IOException If writing to the destination fails
+     */
+    private void downloadSequentialSheets(java.io.File destination, List<File> files, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        var downloadedIndex = new double[]{0};
+
+        try (var encodingOut = new DecodingOutputStream<>(new FileOutputStream(destination))) {
+            files.stream().sorted(Comparator.comparingInt(file -> {
+                var fp = file.getProperties();
+                return fp == null ? -1 : Integer.parseInt(fp.get("index"));
+            })).forEach(file -> {
+                downloadSheet(file, encodingOut, cancellation);
+                statusUpdate.accept(downloadedIndex[0]++ / (double) files.size());
+            });
+        }
+    }
+
+    /**
+     * Downloads and decodes independently encoded sheets in parallel. The destination is preallocated to the decoded
+     * size, and every worker writes its sheet directly at the sheet's {@code offset}. Each sheet is verified against its
+     * size and checksum as it is decoded, and only sheets failing verification are fetched again. Once a sheet fails for
+     * good, the others are aborted and waited for before the download fails with its error.
+     *
+     * @param destination  The file to write to
+     * @param parent       The parent of the sheets
+     * @param files        The sheets of the file
+     * @param statusUpdate {@link Consumer} to be accepted when a chunk has been downloaded
+     * @param cancellation The cancellation of the download, checked before each sheet
+     * @throws IOException If the destination could not be created
+     */
+    private void downloadIndependentSheets(java.io.File destination, File parent, List<File> files, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        if (parent.getProperties().containsKey("parity")) {
+            StripeDownload.download(this, destination, parent, files, readManifest(parent).toParityFiles(), statusUpdate, cancellation);
+            return;
+        }
+
+        var digests = new SheetDigest[files.size()];
+        var downloaded = new AtomicInteger();
+
+        checkSheetCount(parent, files);
+
+        // Cancelled by the first sheet to fail as well as by the download, aborting the others
+        var sheetsCancellation = new Cancellation();
+        var registration = cancellation.onCancel(sheetsCancellation::cancel);
+        var failure = new AtomicReference<RuntimeException>();
+
+        try (var writer = new PositionalFileWriter(destination, Long.parseLong(parent.getProperties().get("decodedSize")))) {
+            var trace = Trace.current();
+            var tasks = files.stream().map(file -> CompletableFuture.runAsync(trace.wrap(() -> {
+                try {
+                    sheetsCancellation.throwIfCancelled();
+                    long offset = Long.parseLong(file.getProperties().get("offset"));
+                    var cache = ChunkCache.getShared();
+                    if (cache == null || SheetCipher.isEncrypted(file)) {
+                        digests[getSheetIndex(file)] = decodeVerified(parent, file, () -> writer.openStream(offset), sheetsCancellation);
+                    } else {
+                        var data = readCached(cache, parent, file, sheetsCancellation);
+                        digests[getSheetIndex(file)] = SheetDigest.of(data);
+                        try {
+                            writer.write(data, offset);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                    sheetsCancellation.cancel();
+                    throw e;
+                }
+
+                synchronized (downloaded) {
+                    statusUpdate.accept(downloaded.incrementAndGet() / (double) files.size());
+                }
+            }), DOWNLOAD_EXECUTOR)).toArray(CompletableFuture[]::new);
+
+            // Only completes once every sheet has finished or been aborted, so none writes once the writer is closed
+            try {
+                CompletableFuture.allOf(tasks).join();
+            } catch (CompletionException e) {
+                throw failure.get() == null ? e : new CompletionException(failure.get());
+            }
+        } finally {
+            registration.unregister();
+        }
+
+        if (!SheetDigest.matchesFile(parent, digests)) {
+            throw new IllegalStateException("The checksum of " + parent.getId() + " does not match its sheets");
+        }
+    }
+
+    /**
+     * Downloads and decodes every sheet of an independently encoded file without writing it anywhere, comparing each
+     * sheet against its stored size and checksum.
+     *
+     * @param id The id of the file's parent folder
+     * @return {@link CompletableFuture} of the indices of every missing or corrupt sheet, empty if the file is intact
+     */
+    public CompletableFuture<List<Integer>> verifyData(String id) {
+        var trace = Tracing.start("verify " + id);
+        return CompletableFuture.supplyAsync(trace.wrap(() -> {
+            try {
+                var parent = sheetManager.getFile(id, PARENT_FIELDS);
+
+                if (parent == null) {
+                    throw new RuntimeException("Couldn't find id " + id);
+                }
+
+                var props = parent.getProperties();
+                if (!"true".equals(props.get("directParent"))) {
+                    throw new RuntimeException("Not a direct parent!");
+                }
+
+                if (Utility.tryParse(props.get("format"), 1) < FORMAT_INDEPENDENT_CHUNKS || !props.containsKey("crc32c")) {
+                    throw new IllegalStateException("The file " + id + " was uploaded without checksums and can not be verified");
+                }
+
+                var files = listSheets(parent);
+                var digests = new SheetDigest[Math.max(files.size(), getSheetCount(parent))];
+                var corrupt = Collections.synchronizedList(new ArrayList<Integer>());
+
+                CompletableFuture.allOf(files.stream().map(file -> CompletableFuture.runAsync(trace.wrap(() -> {
+                    var digest = decodeSheet(parent, file, NullOutputStream.NULL_OUTPUT_STREAM, new Cancellation());
+                    if (digest.matches(file)) {
+                        digests[getSheetIndex(file)] = digest;
+                    } else {
+                        corrupt.add(getSheetIndex(file));
+                    }
+                }), DOWNLOAD_EXECUTOR)).toArray(CompletableFuture[]::new)).join();
+
+                for (int i = 0; i < digests.length; i++) {
+                    if (digests[i] == null && !corrupt.contains(i)) {
+                        corrupt.add(i);
+                    }
+                }
+
+                if (corrupt.isEmpty() && !SheetDigest.matchesFile(parent, digests)) {
+                    throw new IllegalStateException("Every sheet of " + id + " is intact, but they do not match the file's checksum");
+                }
+
+                corrupt.sort(Comparator.naturalOrder());
+                return corrupt;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                trace.finish();
+            }
+        }));
+    }
+
+    /**
+     * Exports a sheet and decodes it into the given stream, which is closed afterwards. An encrypted sheet is decrypted
+     * once all of it has been decoded.
+     *
+     * @param parent The parent of the sheet, whose {@code fileNonce} an encrypted sheet is authenticated with
+     * @param file The sheet
+     * @param out  The stream to write decoded bytes to
+     * @param cancellation The cancellation of the download
+     * @return The length and checksum of the decoded bytes
+     */
+    SheetDigest decodeSheet(File parent, File file, OutputStream out, Cancellation cancellation) {
+        var countingOut = new CountingOutputStream(out);
+        var checkedOut = new CheckedOutputStream(countingOut, new CRC32C());
+        var sheetOut = SheetCipher.isEncrypted(file) ? getCipher(file).decrypt(parent, file, checkedOut) : checkedOut;
+
+        try (var decodingOut = new DecodingOutputStream<>(sheetOut)) {
+            downloadSheet(file, decodingOut, cancellation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new SheetDigest(countingOut.getByteCount(), checkedOut.getChecksum().getValue());
+    }
+
+    private static SheetCipher getCipher(File file) {
+        var cipher = SheetCipher.getShared();
+        if (cipher == null) {
+            throw new IllegalStateException(file.getId() + " is encrypted, but no keys are loaded");
+        }
+
+        return cipher;
+    }
+
+    /**
+     * Exports and decodes a sheet until it matches its stored size and checksum, giving up after
+     * {@value #VERIFY_ATTEMPTS} attempts.
+     *
+     * @param parent       The parent of the sheet
+     * @param file         The sheet
+     * @param out          Gives the stream to write each attempt to, discarding anything written by a failed one
+     * @param cancellation The cancellation of the download, checked before each attempt
+     * @return The digest of the verified sheet
+     */
+    private SheetDigest decodeVerified(File parent, File file, Supplier<OutputStream> out, Cancellation cancellation) {
+        var properties = file.getProperties();
+        for (int attempt = 1; ; attempt++) {
+            cancellation.throwIfCancelled();
+            var digest = decodeSheet(parent, file, out.get(), cancellation);
+            if (digest.matches(file)) {
+                return digest;
+            }
+
+            Metrics.RETRIES.labels("download").inc();
+            LOGGER.warn("Sheet#{} failed verification ({} bytes, crc32c {}), attempt {}/{}", properties.get("index"), digest.getLength(), ChecksumUtils.toHex(digest.getChecksum()), attempt, VERIFY_ATTEMPTS);
+
+            if (attempt >= VERIFY_ATTEMPTS) {
+                throw new IllegalStateException("Sheet#" + properties.get("index") + " of " + parent.getId() + " is corrupt");
+            }
+        }
+    }
+
+    /**
+     * Reads a single independently encoded sheet into memory, through the shared {@link ChunkCache} if there is one.
+     * Encrypted sheets are never cached, so their original bytes are never stored unencrypted.
+     *
+     * @param parent       The parent of the sheet
+     * @param file         The sheet
+     * @param cancellation The cancellation of the read, which aborts the export
+     * @return The decoded bytes of the sheet
+     */
+    byte[] readSheet(File parent, File file, Cancellation cancellation) {
+        var cache = ChunkCache.getShared();
+        if (cache == null || SheetCipher.isEncrypted(file)) {
+            return exportSheet(parent, file, cancellation);
+        }
+
+        var data = readCached(cache, parent, file, cancellation);
+        if (data.hasArray()) {
+            return data.array();
+        }
+
+        var bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a sheet from the chunk cache, or exports it and adds it to the cache if it isn't there.
+     *
+     * @param cache        The cache
+     * @param parent       The parent of the sheet
+     * @param file         The sheet
+     * @param cancellation The cancellation of the read, which aborts the export
+     * @return The decoded bytes of the sheet, memory mapped if they were cached
+     */
+    private ByteBuffer readCached(ChunkCache cache, File parent, File file, Cancellation cancellation) {
+        var cached = cache.get(file);
+        if (cached != null) {
+            return cached;
+        }
+
+        var bytes = exportSheet(parent, file, cancellation);
+        cache.put(file, bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private byte[] exportSheet(File parent, File file, Cancellation cancellation) {
+        var out = new ByteArrayOutputStream((int) NumberUtils.toLong(file.getProperties().get("decodedSize")));
+        decodeVerified(parent, file, () -> {
+            out.reset();
+            return out;
+        }, cancellation);
+        return out.toByteArray();
+    }
+
+    /**
+     * Opens a stored file for sequential reading, exporting the sheets after the one being read in the background. The
+     * amount read ahead adapts to how quickly the stream is consumed compared to how long a sheet takes to fetch, up to
+     * the given limit. Only files with independently encoded sheets (format 2) may be streamed.
+     *
+     * @param id           The id of the file's parent folder
+     * @param maxReadAhead The most sheets to fetch ahead of the one being read
+     * @return The stream, which must be closed to stop fetching
+     * @throws IOException If the file or its sheets could not be found
+     */
+    public SheetInputStream openStream(String id, int maxReadAhead) throws IOException {
+        var parent = sheetManager.getFile(id, PARENT_FIELDS);
+        if (parent == null) {
+            throw new RuntimeException("Couldn't find id " + id);
+        }
+
+        return openStream(parent, maxReadAhead);
+    }
+
+    /**
+     * Opens a stored file for sequential reading, as {@link #openStream(String, int)}.
+     *
+     * @param parent       The file's parent folder, with at least {@link Utility#DRIVE_FIELDS}
+     * @param maxReadAhead The most sheets to fetch ahead of the one being read
+     * @return The stream, which must be closed to stop fetching
+     * @throws IOException If the file's sheets could not be found
+     */
+    public SheetInputStream openStream(File parent, int maxReadAhead) throws IOException {
+        var id = parent.getId();
+        var props = parent.getProperties();
+        if (!"true".equals(props.get("directParent"))) {
+            throw new RuntimeException("Not a direct parent!");
+        }
+
+        if (Utility.tryParse(props.get("format"), 1) < FORMAT_INDEPENDENT_CHUNKS) {
+            throw new IllegalStateException("The file " + id + " shares a single stream across its sheets and can only be downloaded whole");
+        }
+
+        var files = new ArrayList<>(listSheets(parent));
+        checkSheetCount(parent, files);
+        files.sort(Comparator.comparingInt(SheetIO::getSheetIndex));
+        return new SheetInputStream(this, parent, files, maxReadAhead);
+    }
+
+    void checkSheetCount(File parent, List<File> files) {
+        int expected = getSheetCount(parent);
+        if (files.size() != expected) {
+            throw new IllegalStateException("Found " + files.size() + " sheets of " + parent.getId() + ", expected " + expected);
+        }
+    }
+
+    static int getSheetIndex(File file) {
+        return Integer.parseInt(file.getProperties().get("index"));
     }
 
     /**
@@ -151,14 +567,20 @@ public class SheetIO {
 
     /**
      * Download a sheet from google drive, and write its bytes to the passed
-     * {@link OutputStream}.
+     * {@link OutputStream}. A slow export is hedged by the shared {@link ExportHedger}.
      *
      * @param file {@link File} representing a sheet to download.
      * @param out {@link OutputStream} to write to.
+     * @param cancellation The cancellation of the download, which disconnects the export if it is in progress
      */
-    private void downloadSheet(File file, OutputStream out) {
+    private void downloadSheet(File file, OutputStream out, Cancellation cancellation) {
+        cancellation.throwIfCancelled();
+
+        var trace = Trace.current();
+        var properties = file.getProperties();
+        int sheetIndex = properties == null ? -1 : Utility.tryParse(properties.get("index"), -1);
+
         try {
-            var properties = file.getProperties();
             if (properties != null) {
                 var index = properties.get("index");
                 var size = humanReadableByteCountSI(Long.parseLong(properties.get("size")));
@@ -168,124 +590,773 @@ public class SheetIO {
                 LOGGER.info("Downloading sheet#unknown");
             }
 
+            var exported = trace.span("export", sheetIndex, () -> {
+                var hedger = ExportHedger.getShared();
+                return hedger == null
+                        ? exportEncoded(file, cancellation)
+                        : hedger.export(attempt -> exportEncoded(file, attempt), cancellation);
+            });
+
+            trace.span("decode", sheetIndex, () -> out.write(exported));
+        } catch (IOException e) {
+            cancellation.throwIfCancelled();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Exports the encoded contents of a sheet.
+     *
+     * @param file         The sheet
+     * @param cancellation The cancellation of the export, which disconnects it if it is in progress
+     * @return The sheet as tab separated values
+     */
+    private byte[] exportEncoded(File file, Cancellation cancellation) {
+        cancellation.throwIfCancelled();
+
+        try {
             var byteOut = new ByteArrayOutputStream();
-            drive.files().export(file.getId(), "text/tab-separated-values").executeMediaAndDownloadTo(byteOut);
+            long start = System.nanoTime();
+            var response = drive.files().export(file.getId(), "text/tab-separated-values").executeMedia();
+            var registration = cancellation.onCancel(() -> disconnectQuietly(response));
+            try {
+                response.download(byteOut);
+            } finally {
+                registration.unregister();
+            }
 
-            out.write(byteOut.toByteArray());
+            Metrics.DRIVE_REQUEST_SECONDS.labels("export").observeSince(start);
+            Metrics.BYTES_IN.inc(byteOut.size());
+            SheetSizeTuner.getShared().recordExport(byteOut.size(), System.nanoTime() - start);
+            return byteOut.toByteArray();
         } catch (IOException e) {
+            cancellation.throwIfCancelled();
             throw new UncheckedIOException(e);
         }
     }
 
-    public CompletableFuture<File> uploadDataStream(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, EncodingOutputStream outputStream) throws IOException {
+    private static void disconnectQuietly(HttpResponse response) {
+        try {
+            response.disconnect();
+        } catch (IOException e) {
+            LOGGER.error("Unable to disconnect a cancelled export", e);
+        }
+    }
+
+    /**
+     * Deletes the parent of a cancelled or failed upload, along with every sheet already uploaded to it.
+     *
+     * @param parent The parent of the upload
+     */
+    private void abandon(File parent) {
+        try {
+            drive.files().delete(parent.getId()).execute();
+            LOGGER.info("Deleted the abandoned upload sheetStore/{} ({})", parent.getName(), parent.getId());
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete the abandoned upload " + parent.getId(), e);
+        }
+    }
+
+    /**
+     * Creates the parent of an upload whose data will be written to the given stream, uploading sheets as they are
+     * encoded. Cancelling the given {@link Cancellation} stops uploading and deletes the parent, and cancelling the
+     * returned future cancels it.
+     */
+    public CompletableFuture<File> uploadDataStream(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, EncodingOutputStream outputStream, Cancellation cancellation) throws IOException {
         path = cleanPath(path);
 
-        var parent = sheetManager.createFolder(title, sheetManager.getSheetStore(), Map.of(
-                "directParent", "true",
-                "starred", "false",
-                "processing", "true",
-                "size", "0",
-                "sheets", "0",
-                "path", path,
-                "compressed", String.valueOf(compress.getNumber())
+        var trace = Tracing.start("upload " + title);
+        outputStream.setTrace(trace);
+
+        File parent;
+        var span = trace.span("create_parent");
+        try {
+            parent = createParent(title, path, compress, outputStream.getLayout(), maxSheetSize);
+        } finally {
+            span.close();
+        }
+
+        return cancellable(processRawStream(outputStream, fileSize, (int) maxSheetSize, parent, uploadType, cancellation).thenApply($ -> parent), cancellation);
+    }
+
+    /**
+     * Gets the sheet size of an upload, picking one with the {@link SheetSizeTuner} if none was given. Sheets are
+     * uploaded one at a time and exported {@value #DOWNLOAD_THREADS} at a time.
+     *
+     * @param requested The requested maximum size of each sheet, or 0 to pick one
+     * @param fileSize  The size of the file, or 0 if not known
+     * @return The maximum size of each sheet
+     */
+    public long getSheetSize(long requested, long fileSize) {
+        if (requested > 0) {
+            return requested;
+        }
+
+        var sheetSize = SheetSizeTuner.getShared().choose(fileSize, 1, DOWNLOAD_THREADS);
+        LOGGER.info("Using sheets of {} for a file of {}", humanReadableByteCountSI(sheetSize), humanReadableByteCountSI(fileSize));
+        return sheetSize;
+    }
+
+    /**
+     * Creates the parent folder of a new upload in the sheetStore, marked as processing until it is finalised, and as
+     * encrypted if a {@link SheetCipher} is set.
+     *
+     * @param title    The name of the file
+     * @param path     The cleaned path of the file
+     * @param compress The compression of the file
+     * @param layout    The layout of the file's sheets
+     * @param sheetSize The maximum size of the file's sheets
+     * @return The created parent
+     * @throws IOException If the folder could not be created
+     */
+    private File createParent(String title, String path, Compression compress, SheetLayout layout, long sheetSize) throws IOException {
+        return createParent(title, path, compress, layout, sheetSize, Map.of());
+    }
+
+    /**
+     * Creates the parent of an upload, as {@link #createParent(String, String, Compression, SheetLayout, long)}, with
+     * additional properties set from the start.
+     */
+    private File createParent(String title, String path, Compression compress, SheetLayout layout, long sheetSize, Map<String, String> extraProperties) throws IOException {
+        var properties = new HashMap<>(Map.ofEntries(
+                Map.entry("directParent", "true"),
+                Map.entry("starred", "false"),
+                Map.entry("processing", "true"),
+                Map.entry("size", "0"),
+                Map.entry("sheets", "0"),
+                Map.entry("path", path),
+                Map.entry("compressed", String.valueOf(compress.getNumber())),
+                Map.entry("format", String.valueOf(FORMAT_INDEPENDENT_CHUNKS)),
+                Map.entry("layout", layout.toString()),
+                Map.entry("sheetSize", String.valueOf(sheetSize))
         ));
 
+        if (SheetCipher.getShared() != null) {
+            properties.put("encryption", SheetCipher.ALGORITHM);
+            properties.put("fileNonce", SheetCipher.newFileNonce());
+        }
+
+        properties.putAll(extraProperties);
+
+        var parent = sheetManager.createFolder(title, sheetManager.getSheetStore(), properties);
+
         LOGGER.info("Created parent sheetStore/{} ({})", parent.getName(), parent.getId());
+        return parent;
+    }
+
+    /**
+     * Encrypts the sheets of an upload if its parent was created as encrypted.
+     *
+     * @param parent      The parent of the upload
+     * @param encodingOut The stream encoding the upload, which nothing has been written to yet
+     */
+    private void setEncryption(File parent, EncodingOutputStream encodingOut) {
+        if (parent.getProperties().containsKey("encryption")) {
+            encodingOut.setEncryptor(getCipher(parent).newEncryptor(parent.getProperties().get("fileNonce")));
+        }
+    }
+
+    private CompletableFuture<Void> processRawStream(EncodingOutputStream encodingOut, long totalSize, int maxLength, File parent, Upload uploadType, Cancellation cancellation) {
+        setEncryption(parent, encodingOut);
+
+        // ~22% overhead
+        int estimatedChunks = (int) Math.ceil((totalSize * 1.22) / (double) maxLength);
+
+        LOGGER.info("File size: {} estimated chunks: {}", humanReadableByteCountSI(totalSize), estimatedChunks);
+
+        long start = System.currentTimeMillis();
+
+        var streaming = uploadType == Upload.STREAMING ? new StreamingChunkUploader(sheetManager, drive, parent, cancellation) : null;
+        if (streaming != null) {
+            encodingOut.setChunkStartConsumer(streaming::start);
+        }
+
+        var manifest = new Manifest(0);
+        encodingOut.setChunkConsumer(chunk -> {
+            LOGGER.info("Uploading {}/~{}", chunk.getIndex() + 1, estimatedChunks);
+
+            var fileChunk = new FileChunk(parent, chunk);
+            try {
+                manifest.add(Manifest.Chunk.of(fileChunk, uploadWithRetries(fileChunk, uploadType, streaming, cancellation).getId(), null));
+            } finally {
+                chunk.release();
+            }
+        });
+
+        var completer = new CompletableFuture<Void>();
+
+        // Nothing else is working on the upload between writes, so its parent is deleted by whoever cancels it
+        var cleanup = cancellation.onCancel(() -> {
+            abandon(parent);
+            completer.cancel(false);
+        });
+
+        encodingOut.setOnClose(() -> {
+            if (!cleanup.unregister()) {
+                cancellation.throwIfCancelled();
+            }
+
+            int sheets = encodingOut.getChunkIndex();
+            long size = encodingOut.getLength();
+
+            LOGGER.info("Completed. Readable data: {} sheet estimated: {} sheet exact: {}", humanReadableByteCountSI(size), estimatedChunks, sheets);
+
+            double durationSeconds = (System.currentTimeMillis() - start) / 1000D;
+            long bps = (long) ((double) size / durationSeconds);
+            LOGGER.info("Finished upload in {} ms at a rate of {}/s", System.currentTimeMillis() - start, humanReadableByteCountSI(bps));
+
+            var trace = encodingOut.getTrace();
+            try {
+                trace.span("finalize", () -> finishUpload(parent, manifest, Map.of(
+                        "size", String.valueOf(size),
+                        "sheets", String.valueOf(sheets),
+                        "decodedSize", String.valueOf(encodingOut.getDecodedLength()),
+                        "crc32c", ChecksumUtils.toHex(encodingOut.getChecksum())
+                )));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                trace.finish();
+            }
+
+            completer.complete(null);
+        });
+
+        return completer;
+    }
+
+    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, InputStream data) throws IOException {
+        return uploadDataFile(title, path, fileSize, maxSheetSize, compress, uploadType, data, null);
+    }
+
+    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, InputStream data, Consumer<Double> statusUpdate) throws IOException {
+        return uploadDataFile(title, path, fileSize, maxSheetSize, SheetLayout.DEFAULT, compress, uploadType, data, statusUpdate);
+    }
+
+    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, SheetLayout layout, Compression compress, Upload uploadType, InputStream data, Consumer<Double> statusUpdate) throws IOException {
+        return uploadDataFile(title, path, fileSize, maxSheetSize, layout, compress, uploadType, data, statusUpdate, new Cancellation());
+    }
+
+    /**
+     * Uploads the given data, blocking until it has been uploaded. If the given {@link Cancellation} is cancelled, the
+     * upload stops at its next read or request and its parent is deleted before a {@link CancellationException} is
+     * thrown.
+     */
+    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, SheetLayout layout, Compression compress, Upload uploadType, InputStream data, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        var filePath = cleanPath(path);
+        Consumer<Double> status = statusUpdate != null ? statusUpdate : $ -> {
+        };
+
+        long sheetSize = getSheetSize(maxSheetSize, fileSize);
+
+        return runUpload(title, cancellation, null,
+                () -> createParent(title, filePath, compress, layout, sheetSize),
+                (parent, streams) -> processRawFile(data, fileSize, (int) sheetSize, layout, parent, uploadType, status, cancellation, streams));
+    }
+
+    /**
+     * Runs a blocking upload in its own trace: creates its parent, then writes its data to it and finalises it. If
+     * writing the data fails or the upload is cancelled, the upload's streams are discarded and its parent is deleted
+     * along with every sheet already uploaded, and if it was cancelled a {@link CancellationException} is thrown in
+     * place of the failure.
+     *
+     * @param title        The name of the file
+     * @param cancellation The cancellation of the upload
+     * @param prepare      Run in the trace before the parent is created, or null
+     * @param createParent Creates the parent of the upload
+     * @param writer       Writes the data of the upload
+     * @return The parent of the upload
+     * @throws IOException If the upload fails
+     */
+    private File runUpload(String title, Cancellation cancellation, Trace.Task<IOException> prepare, Trace.Stage<File, IOException> createParent, UploadWriter writer) throws IOException {
+        var trace = Tracing.start("upload " + title);
+        var scope = trace.activate();
+        try {
+            if (prepare != null) {
+                prepare.run();
+            }
+
+            var parent = trace.span("create_parent", createParent);
+
+            var streams = new ArrayList<EncodingOutputStream>();
+            Trace.Task<IOException> finish;
+            try {
+                finish = writer.write(parent, streams);
+                cancellation.throwIfCancelled();
+            } catch (IOException | RuntimeException e) {
+                streams.forEach(EncodingOutputStream::discard);
+                abandon(parent);
+                if (!cancellation.isCancelled()) {
+                    throw e;
+                }
+
+                throw new CancellationException("The upload of " + parent.getName() + " has been cancelled");
+            }
+
+            trace.span("finalize", finish);
+            return parent;
+        } finally {
+            scope.close();
+            trace.finish();
+        }
+    }
+
+    /**
+     * Uploads the given data as a new version of the latest file with the same name and path, only uploading the sheets
+     * of blocks that changed since. The data is split into blocks of {@link EncodingOutputStream#getMaxBlockLength()}
+     * bytes with one sheet each, and every block whose fingerprint (its SHA-256, or if encrypted its HMAC, see
+     * {@link SheetCipher#fingerprint(byte[], int, int)}) matches the block at the same index of the previous version
+     * reuses its sheet by ID. The sheets used are listed in a {@link Manifest}, and the previous version is
+     * recorded in the {@code base} property from the start of the upload. If there is no previous delta upload, every
+     * block is uploaded.
+     * <p>
+     * Each delta upload is a numbered {@code version} of its file, see {@link #listVersions(File)}.
+     * <p>
+     * Like {@link #uploadDataFile(String, String, long, long, SheetLayout, Compression, Upload, InputStream, Consumer, Cancellation)},
+     * this blocks until the upload is complete and deletes the parent if cancelled.
+     */
+    public File uploadDeltaFile(String title, String path, long fileSize, long maxSheetSize, SheetLayout layout, Compression compress, Upload uploadType, InputStream data, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        var filePath = cleanPath(path);
+        Consumer<Double> status = statusUpdate != null ? statusUpdate : $ -> {
+        };
+
+        var base = new File[1];
+        var baseManifest = new Manifest[1];
+        var sheetSize = new long[]{maxSheetSize};
+        Trace.Task<IOException> findBase = () -> {
+            Trace.current().span("find_base", () -> {
+                base[0] = findDeltaBase(title, filePath).orElse(null);
+                if (base[0] != null) {
+                    baseManifest[0] = readManifest(base[0]);
+                }
+            });
+
+            // Blocks are only reused at the same size, so versions keep the size of the first one unless given one
+            if (sheetSize[0] <= 0 && base[0] != null) {
+                sheetSize[0] = NumberUtils.toLong(base[0].getProperties().get("sheetSize"), SheetSizeTuner.MAX_SHEET_SIZE);
+            }
+
+            sheetSize[0] = getSheetSize(sheetSize[0], fileSize);
+        };
+
+        // The base is recorded up front, so it isn't deleted or pruned while its sheets are being reused
+        return runUpload(title, cancellation, findBase,
+                () -> createParent(title, filePath, compress, layout, sheetSize[0], getDeltaProperties(base[0])),
+                (parent, streams) -> processDeltaFile(data, fileSize, (int) sheetSize[0], layout, parent, base[0], baseManifest[0], uploadType, status, cancellation, streams));
+    }
+
+    /**
+     * Gets the properties a delta upload is created with: its base, and if both are encrypted the base's
+     * {@code fileNonce}, which the sheets reused from it are authenticated with.
+     *
+     * @param base The previous version, or null if there is none
+     * @return The properties
+     */
+    private Map<String, String> getDeltaProperties(File base) {
+        if (base == null) {
+            return Map.of();
+        }
+
+        var properties = new HashMap<String, String>();
+        properties.put("base", base.getId());
+
+        var fileNonce = base.getProperties().get("fileNonce");
+        if (fileNonce != null && SheetCipher.getShared() != null) {
+            properties.put("fileNonce", fileNonce);
+        }
+
+        return properties;
+    }
+
+    /**
+     * Uploads the given data with Reed-Solomon parity, so it may be downloaded whole even if some of its sheets are lost
+     * or slow to export. The data is split into blocks of {@link EncodingOutputStream#getMaxBlockLength()} bytes with
+     * one sheet each, and every stripe of {@code k} consecutive blocks gets {@code m} parity sheets, listed apart from
+     * the data in the file's {@link Manifest}. Any {@code k} of a stripe's sheets restore its data, at a storage overhead
+     * of {@code m / k}; see {@link StripeDownload}.
+     * <p>
+     * Like {@link #uploadDataFile(String, String, long, long, SheetLayout, Compression, Upload, InputStream, Consumer, Cancellation)},
+     * this blocks until the upload is complete and deletes the parent if cancelled.
+     */
+    public File uploadParityFile(String title, String path, long fileSize, long maxSheetSize, SheetLayout layout, Compression compress, Upload uploadType, ParityScheme parity, InputStream data, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        var filePath = cleanPath(path);
+        Consumer<Double> status = statusUpdate != null ? statusUpdate : $ -> {
+        };
+
+        long sheetSize = getSheetSize(maxSheetSize, fileSize);
+
+        return runUpload(title, cancellation, null,
+                () -> createParent(title, filePath, compress, layout, sheetSize),
+                (parent, streams) -> processParityFile(data, fileSize, (int) sheetSize, layout, parent, parity, uploadType, status, cancellation, streams));
+    }
+
+    /**
+     * Finds the latest complete delta upload with the given name and path, which a new upload of it is based on.
+     *
+     * @param title The name of the file
+     * @param path  The cleaned path of the file
+     * @return The parent of the latest version
+     * @throws IOException If listing the versions fails
+     */
+    private Optional<File> findDeltaBase(String title, String path) throws IOException {
+        return getUploads(title, path)
+                .stream()
+                .filter(file -> file.getProperties().containsKey("blockSize") && !"true".equals(file.getProperties().get("processing")))
+                .max(Comparator.comparingInt(SheetIO::getVersion).thenComparingLong(file -> file.getModifiedTime().getValue()));
+    }
+
+    /**
+     * @param title The name of the files
+     * @param path  The cleaned path of the files
+     * @return Every stored file that is not trashed with the given name and path
+     * @throws IOException If listing the files fails
+     */
+    private List<File> getUploads(String title, String path) throws IOException {
+        return getUploads(title, path, false);
+    }
+
+    /**
+     * @param title          The name of the files
+     * @param path           The cleaned path of the files
+     * @param includeTrashed If trashed files are included
+     * @return Every stored file with the given name and path
+     * @throws IOException If listing the files fails
+     */
+    private List<File> getUploads(String title, String path, boolean includeTrashed) throws IOException {
+        return sheetManager.getFiles(-1, "name = '" + Utility.escapeQuery(title) + "' and properties has { key='directParent' and value='true' } and properties has { key='path' and value='" + Utility.escapeQuery(path) + "' }" + (includeTrashed ? "" : " and trashed = false"), Mime.FOLDER);
+    }
+
+    private Trace.Task<IOException> processDeltaFile(InputStream input, long totalSize, int maxLength, SheetLayout layout, File parent, File base, Manifest baseManifest, Upload uploadType, Consumer<Double> statusUpdate, Cancellation cancellation, List<EncodingOutputStream> streams) throws IOException {
+        long start = System.currentTimeMillis();
+
+        statusUpdate.accept(0D);
+
+        var streaming = uploadType == Upload.STREAMING ? new StreamingChunkUploader(sheetManager, drive, parent, cancellation) : null;
+        var trace = Trace.current();
+        var fingerprint = new String[1];
+        var manifest = new Manifest[1];
+        var encodingOut = new EncodingOutputStream(maxLength, layout, chunk -> {
+            var fileChunk = new FileChunk(parent, chunk);
+            try {
+                manifest[0].add(Manifest.Chunk.of(fileChunk, uploadWithRetries(fileChunk, uploadType, streaming, cancellation).getId(), fingerprint[0]));
+            } finally {
+                chunk.release();
+            }
+        });
+        streams.add(encodingOut);
+
+        if (streaming != null) {
+            encodingOut.setChunkStartConsumer(streaming::start);
+        }
+
+        encodingOut.setTrace(trace);
+        setEncryption(parent, encodingOut);
+
+        long blockSize = encodingOut.getMaxBlockLength();
+        manifest[0] = new Manifest(blockSize);
+        if (baseManifest != null && baseManifest.getBlockSize() != blockSize) {
+            LOGGER.info("The blocks of {} are {} bytes instead of {}, so none of its sheets can be reused", base.getId(), baseManifest.getBlockSize(), blockSize);
+            baseManifest = null;
+        }
+
+        // Sheets are only authenticated as part of the file whose nonce they were encrypted with
+        if (baseManifest != null && !Objects.equals(base.getProperties().get("fileNonce"), parent.getProperties().get("fileNonce"))) {
+            LOGGER.info("{} is encrypted differently, so none of its sheets can be reused", base.getId());
+            baseManifest = null;
+        }
+
+        // Encrypted blocks are fingerprinted with a keyed HMAC, so the manifest reveals nothing of their contents
+        var cipher = parent.getProperties().containsKey("encryption") ? getCipher(parent) : null;
+
+        int estimatedBlocks = (int) Math.ceil(totalSize / (double) blockSize);
+        LOGGER.info("File size: {} blocks: ~{} of {}", humanReadableByteCountSI(totalSize), estimatedBlocks, humanReadableByteCountSI(blockSize));
+
+        int reused = 0;
+        var in = cancellation.wrap(input);
+        var block = new byte[(int) blockSize];
+        int length;
+        while ((length = IOUtils.read(in, block)) > 0) {
+            int index = encodingOut.getChunkIndex();
+            long offset = encodingOut.getDecodedLength();
+            fingerprint[0] = cipher == null ? ChecksumUtils.sha256(block, 0, length) : cipher.fingerprint(block, 0, length);
+
+            var previous = baseManifest == null ? null : baseManifest.getChunk(index);
+            if (previous != null && previous.matches(offset, length, fingerprint[0])) {
+                encodingOut.skipChunk(length, previous.getSize(), ChecksumUtils.fromHex(previous.getCrc32c()));
+                manifest[0].add(previous);
+                reused++;
+            } else {
+                LOGGER.info("Uploading {}/~{}", index + 1, estimatedBlocks);
+                encodingOut.write(block, 0, length);
+                encodingOut.endChunk();
+            }
+
+            if (encodingOut.getChunkIndex() != index + 1) {
+                throw new IllegalStateException("Block " + index + " was not encoded to a single sheet");
+            }
+
+            statusUpdate.accept(Math.min((index + 1) / ((double) estimatedBlocks), 1D));
+
+            if (length < block.length) {
+                break;
+            }
+        }
+
+        encodingOut.flush();
+
+        statusUpdate.accept(1D);
+
+        int sheets = encodingOut.getChunkIndex();
+        long size = encodingOut.getLength();
+
+        LOGGER.info("Completed. Readable data: {} sheets: {} reused: {}", humanReadableByteCountSI(size), sheets, reused);
+        LOGGER.info("Finished upload in {} ms", System.currentTimeMillis() - start);
+
+        var properties = new HashMap<String, String>();
+        properties.put("size", String.valueOf(size));
+        properties.put("sheets", String.valueOf(sheets));
+        properties.put("decodedSize", String.valueOf(encodingOut.getDecodedLength()));
+        properties.put("crc32c", ChecksumUtils.toHex(encodingOut.getChecksum()));
+        properties.put("blockSize", String.valueOf(blockSize));
+        properties.put("version", String.valueOf(base == null ? 1 : Math.max(getVersion(base), 1) + 1));
+        if (base != null) {
+            properties.put("base", base.getId());
+        }
+
+        return () -> {
+            finishUpload(parent, manifest[0], properties);
+
+            // Lets paged listings leave out every version but the newest without comparing them
+            if (base != null) {
+                sheetManager.addProperties(base.getId(), Map.of("superseded", "true"));
+            }
+        };
+    }
+
+    private Trace.Task<IOException> processParityFile(InputStream input, long totalSize, int maxLength, SheetLayout layout, File parent, ParityScheme parity, Upload uploadType, Consumer<Double> statusUpdate, Cancellation cancellation, List<EncodingOutputStream> streams) throws IOException {
+        long start = System.currentTimeMillis();
+
+        statusUpdate.accept(0D);
+
+        var streaming = uploadType == Upload.STREAMING ? new StreamingChunkUploader(sheetManager, drive, parent, cancellation) : null;
+        var trace = Trace.current();
+        var manifest = new Manifest[1];
+        var encodingOut = new EncodingOutputStream(maxLength, layout, chunk -> {
+            var fileChunk = new FileChunk(parent, chunk);
+            try {
+                manifest[0].add(Manifest.Chunk.of(fileChunk, uploadWithRetries(fileChunk, uploadType, streaming, cancellation).getId(), null));
+            } finally {
+                chunk.release();
+            }
+        });
 
-        return processRawStream(outputStream, fileSize, (int) maxSheetSize, parent, uploadType).thenApply($ -> parent);
-    }
+        // Parity sheets are only known once their whole stripe has been read, so they are never streamed
+        var parityType = uploadType == Upload.STREAMING ? Upload.MULTIPART : uploadType;
+        var parityOut = new EncodingOutputStream(maxLength, layout, chunk -> {
+            var fileChunk = new FileChunk(parent, chunk, true);
+            try {
+                manifest[0].addParity(Manifest.Chunk.of(fileChunk, uploadWithRetries(fileChunk, parityType, null, cancellation).getId(), null));
+            } finally {
+                chunk.release();
+            }
+        });
+        streams.add(encodingOut);
+        streams.add(parityOut);
 
-    private CompletableFuture<Void> processRawStream(EncodingOutputStream encodingOut, long totalSize, int maxLength, File parent, Upload uploadType) {
+        if (streaming != null) {
+            encodingOut.setChunkStartConsumer(streaming::start);
+        }
 
-        // ~22% overhead
-        int estimatedChunks = (int) Math.ceil((totalSize * 1.22) / (double) maxLength);
+        encodingOut.setTrace(trace);
+        parityOut.setTrace(trace);
+        setEncryption(parent, encodingOut);
+        setEncryption(parent, parityOut);
+
+        long blockSize = encodingOut.getMaxBlockLength();
+        manifest[0] = new Manifest(blockSize);
+
+        var codec = parity.createCodec();
+        var shards = new byte[parity.getParitySheets()][(int) blockSize];
+        int estimatedBlocks = (int) Math.ceil(totalSize / (double) blockSize);
+        LOGGER.info("File size: {} blocks: ~{} of {} with {} parity", humanReadableByteCountSI(totalSize), estimatedBlocks, humanReadableByteCountSI(blockSize), parity);
+
+        var in = cancellation.wrap(input);
+        var block = new byte[(int) blockSize];
+        int row = 0;
+        int shardLength = 0;
+        int length;
+        while ((length = IOUtils.read(in, block)) > 0) {
+            int index = encodingOut.getChunkIndex();
+            LOGGER.info("Uploading {}/~{}", index + 1, estimatedBlocks);
+            encodingOut.write(block, 0, length);
+            encodingOut.endChunk();
+
+            if (encodingOut.getChunkIndex() != index + 1) {
+                throw new IllegalStateException("Block " + index + " was not encoded to a single sheet");
+            }
 
-        LOGGER.info("File size: {} estimated chunks: {}", humanReadableByteCountSI(totalSize), estimatedChunks);
+            codec.addDataShard(row, block, 0, length, shards);
+            shardLength = Math.max(shardLength, length);
+            if (++row == parity.getDataSheets()) {
+                writeParity(parityOut, shards, shardLength);
+                row = 0;
+                shardLength = 0;
+            }
 
-        long start = System.currentTimeMillis();
+            statusUpdate.accept(Math.min((index + 1) / ((double) estimatedBlocks), 1D));
 
-        encodingOut.setChunkConsumer((index, bytes) -> {
-            LOGGER.info("Uploading {}/~{}", index + 1, estimatedChunks);
+            if (length < block.length) {
+                break;
+            }
+        }
 
-            int iterations = 0;
-            int delay = 1000;
-            while (true) {
-                try {
-                    processChunk(new FileChunk(parent, bytes, index), uploadType);
-                    return;
-                } catch (Exception e) {
-                    LOGGER.error("An exception occurred during the processing of file " + index, e);
+        if (row > 0) {
+            writeParity(parityOut, shards, shardLength);
+        }
 
-                    delay = Math.max(30000, delay * 2); // Increase the delay 5x from previous, max of 30 seconds
+        encodingOut.flush();
+        parityOut.flush();
 
-                    if (iterations++ >= 5) { // Separate from timing, as that cna change
-                        LOGGER.info("It has been 5 failed iterations, terminating upload. The file will remain with the 'processing' property set to true, it may be manually deleted later. IN the future, a more robust system may be implemented of trying file uploads later.");
-                        System.exit(0);
-                    }
+        statusUpdate.accept(1D);
 
-                    LOGGER.info("Waiting {}ms", delay);
-                    Utility.sleep(delay);
-                }
-            }
-        });
+        int sheets = encodingOut.getChunkIndex();
+        long size = encodingOut.getLength();
 
-        var completer = new CompletableFuture<Void>();
+        LOGGER.info("Completed. Readable data: {} sheets: {} parity sheets: {} ({})", humanReadableByteCountSI(size), sheets, parityOut.getChunkIndex(), humanReadableByteCountSI(parityOut.getLength()));
+        LOGGER.info("Finished upload in {} ms", System.currentTimeMillis() - start);
 
-        encodingOut.setOnClose(() -> {
-            int sheets = encodingOut.getChunkIndex();
-            long size = encodingOut.getLength();
+        return () -> finishUpload(parent, manifest[0], Map.of(
+                "size", String.valueOf(size),
+                "sheets", String.valueOf(sheets),
+                "decodedSize", String.valueOf(encodingOut.getDecodedLength()),
+                "crc32c", ChecksumUtils.toHex(encodingOut.getChecksum()),
+                "parity", parity.toString()
+        ));
+    }
 
-            LOGGER.info("Completed. Readable data: {} sheet estimated: {} sheet exact: {}", humanReadableByteCountSI(size), estimatedChunks, sheets);
+    /**
+     * Writes the parity sheets of a stripe, one chunk each, and clears them for the next stripe.
+     *
+     * @param parityOut The stream encoding the parity sheets
+     * @param shards    The parity of the stripe
+     * @param length    The length of the longest block in the stripe
+     */
+    private static void writeParity(EncodingOutputStream parityOut, byte[][] shards, int length) {
+        for (var shard : shards) {
+            parityOut.write(shard, 0, length);
+            parityOut.endChunk();
+            Arrays.fill(shard, 0, length, (byte) 0);
+        }
+    }
 
-            double durationSeconds = (System.currentTimeMillis() - start) / 1000D;
-            long bps = (long) ((double) size / durationSeconds);
-            LOGGER.info("Finished upload in {} ms at a rate of {}/s", System.currentTimeMillis() - start, humanReadableByteCountSI(bps));
+    /**
+     * Finalises an upload, storing its manifest and adding the given properties to its parent along with
+     * {@code processing=false} in a single update. A manifest short enough is stored in the parent's description, so
+     * it is fetched along with the parent, otherwise it is stored in a file in the parent. Only the changed properties
+     * are sent, so properties set on the parent during the upload (such as a star) are kept.
+     *
+     * @param parent     The parent of the upload
+     * @param manifest   The manifest of the upload
+     * @param properties The properties to add
+     * @throws IOException If the manifest or properties could not be stored
+     */
+    private void finishUpload(File parent, Manifest manifest, Map<String, String> properties) throws IOException {
+        var combined = new HashMap<>(properties);
+        combined.put("processing", "false");
+
+        var update = new File();
+        var bytes = manifest.toBytes();
+        if (bytes.length <= INLINE_MANIFEST_LENGTH) {
+            combined.put("manifest", Manifest.INLINE);
+            update.setDescription(new String(bytes, StandardCharsets.UTF_8));
+        } else {
+            combined.put("manifest", writeManifest(parent, bytes).getId());
+        }
 
-            try {
-                sheetManager.addProperties(parent, Map.of(
-                        "processing", "false",
-                        "size", String.valueOf(size),
-                        "sheets", String.valueOf(sheets)
-                ));
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+        long start = System.nanoTime();
+        drive.files().update(parent.getId(), update.setProperties(combined)).setFields("id").execute();
+        Metrics.DRIVE_REQUEST_SECONDS.labels("update").observeSince(start);
 
-            completer.complete(null);
-        });
+        // The parent is returned by uploads, and e.g. pruned by its version right after
+        var local = new HashMap<String, String>();
+        if (parent.getProperties() != null) {
+            local.putAll(parent.getProperties());
+        }
 
-        return completer;
+        local.putAll(combined);
+        parent.setProperties(local);
+        if (update.getDescription() != null) {
+            parent.setDescription(update.getDescription());
+        }
     }
 
-    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, InputStream data) throws IOException {
-        return uploadDataFile(title, path, fileSize, maxSheetSize, compress, uploadType, data, null);
+    /**
+     * Stores a manifest too long for a description in the parent folder of its file.
+     *
+     * @param parent   The parent
+     * @param manifest The JSON of the manifest
+     * @return The manifest's file
+     * @throws IOException If the manifest could not be created
+     */
+    private File writeManifest(File parent, byte[] manifest) throws IOException {
+        long start = System.nanoTime();
+        var created = drive.files().create(new File()
+                .setMimeType(Manifest.MIME)
+                .setName(Manifest.NAME)
+                .setParents(Collections.singletonList(parent.getId())), new ByteArrayContent(Manifest.MIME, manifest))
+                .setFields("id")
+                .execute();
+        Metrics.DRIVE_REQUEST_SECONDS.labels("create").observeSince(start);
+        return created;
     }
 
-    public File uploadDataFile(String title, String path, long fileSize, long maxSheetSize, Compression compress, Upload uploadType, InputStream data, Consumer<Double> statusUpdate) throws IOException {
-        path = cleanPath(path);
-        if (statusUpdate == null) {
-            statusUpdate = $ -> {
-            };
-        }
-
-        var parent = sheetManager.createFolder(title, sheetManager.getSheetStore(), Map.of(
-                "directParent", "true",
-                "starred", "false",
-                "processing", "true",
-                "size", "0",
-                "sheets", "0",
-                "path", path,
-                "compressed", String.valueOf(compress.getNumber())
-        ));
+    /**
+     * Reads the manifest of a file, without a request if it is stored in the parent's description and the parent was
+     * fetched with {@link #PARENT_FIELDS}.
+     *
+     * @param parent The parent of the file, with a {@code manifest} property
+     * @return The manifest
+     * @throws IOException If the manifest could not be read
+     */
+    private Manifest readManifest(File parent) throws IOException {
+        var location = parent.getProperties().get("manifest");
+        if (Manifest.INLINE.equals(location)) {
+            var description = parent.getDescription();
+            if (description == null) {
+                description = sheetManager.getFile(parent.getId(), "description").getDescription();
+            }
 
-        LOGGER.info("Created parent sheetStore/{} ({})", parent.getName(), parent.getId());
+            return Manifest.read(description);
+        }
 
-        processRawFile(data, fileSize, (int) maxSheetSize, parent, uploadType, statusUpdate);
+        long start = System.nanoTime();
+        try (var in = drive.files().get(location).executeMediaAsInputStream()) {
+            var manifest = Manifest.read(in);
+            Metrics.DRIVE_REQUEST_SECONDS.labels("download").observeSince(start);
+            return manifest;
+        }
+    }
 
-        return parent;
+    /**
+     * Lists the sheets of a file, from its manifest if it has one, otherwise by listing its parent folder as files
+     * uploaded before manifests were written have none.
+     *
+     * @param parent The parent of the file
+     * @return The sheets, with at least their ids and properties
+     * @throws IOException If the sheets could not be listed
+     */
+    private List<File> listSheets(File parent) throws IOException {
+        if (parent.getProperties().containsKey("manifest")) {
+            return readManifest(parent).toFiles();
+        }
+
+        // Files with parity always have a manifest, but a parity sheet is never one of the data sheets
+        var sheets = sheetManager.getAllSheets(parent.getId());
+        sheets.removeIf(sheet -> sheet.getProperties() != null && "true".equals(sheet.getProperties().get("parity")));
+        return sheets;
     }
 
-    private void processRawFile(InputStream input, long totalSize, int maxLength, File parent, Upload uploadType, Consumer<Double> statusUpdate) throws IOException {
+    private Trace.Task<IOException> processRawFile(InputStream input, long totalSize, int maxLength, SheetLayout layout, File parent, Upload uploadType, Consumer<Double> statusUpdate, Cancellation cancellation, List<EncodingOutputStream> streams) throws IOException {
 
         // ~22% overhead
         int estimatedChunks = (int) Math.ceil((totalSize * 1.22) / (double) maxLength);
@@ -297,35 +1368,36 @@ public class SheetIO {
 
         statusUpdate.accept(0D);
 
-        var encodingOut = EncodingOutputStream.encode(input, maxLength, (index, bytes) -> {
+        var streaming = uploadType == Upload.STREAMING ? new StreamingChunkUploader(sheetManager, drive, parent, cancellation) : null;
+        var trace = Trace.current();
+        var manifest = new Manifest(0);
+        var encodingOut = new EncodingOutputStream(maxLength, layout, chunk -> {
+            int index = chunk.getIndex();
             LOGGER.info("Uploading {}/~{}", index + 1, estimatedChunks);
 
-            int iterations = 0;
-            int delay = 1000;
-            while (true) {
-                try {
-                    processChunk(new FileChunk(parent, bytes, index), uploadType);
-                    var percent = Math.max((index + 1) / ((double) estimatedChunks + 1), 1D);
-                    if (!sentMax[0]) {
-                        sentMax[0] = percent == 1D;
-                    }
-                    statusUpdate.accept(percent);
-                    return;
-                } catch (Exception e) {
-                    LOGGER.error("An exception occurred during the processing of file " + index, e);
-
-                    delay = Math.max(30000, delay * 2); // Increase the delay 5x from previous, max of 30 seconds
-
-                    if (iterations++ >= 5) { // Separate from timing, as that cna change
-                        LOGGER.info("It has been 5 failed iterations, terminating upload. The file will remain with the 'processing' property set to true, it may be manually deleted later. IN the future, a more robust system may be implemented of trying file uploads later.");
-                        System.exit(0);
-                    }
+            var fileChunk = new FileChunk(parent, chunk);
+            try {
+                manifest.add(Manifest.Chunk.of(fileChunk, uploadWithRetries(fileChunk, uploadType, streaming, cancellation).getId(), null));
+            } finally {
+                chunk.release();
+            }
 
-                    LOGGER.info("Waiting {}ms", delay);
-                    Utility.sleep(delay);
-                }
+            var percent = Math.min((index + 1) / ((double) estimatedChunks + 1), 1D);
+            if (!sentMax[0]) {
+                sentMax[0] = percent == 1D;
             }
+            statusUpdate.accept(percent);
         });
+        streams.add(encodingOut);
+
+        if (streaming != null) {
+            encodingOut.setChunkStartConsumer(streaming::start);
+        }
+
+        encodingOut.setTrace(trace);
+        setEncryption(parent, encodingOut);
+        IOUtils.copy(cancellation.wrap(input), encodingOut);
+        encodingOut.flush();
 
         if (!sentMax[0]) {
             statusUpdate.accept(1D);
@@ -340,30 +1412,88 @@ public class SheetIO {
         long bps = (long) ((double) size / durationSeconds);
         LOGGER.info("Finished upload in {} ms at a rate of {}/s", System.currentTimeMillis() - start, humanReadableByteCountSI(bps));
 
-        sheetManager.addProperties(parent, Map.of(
-                "processing", "false",
+        return () -> finishUpload(parent, manifest, Map.of(
                 "size", String.valueOf(size),
-                "sheets", String.valueOf(sheets)
+                "sheets", String.valueOf(sheets),
+                "decodedSize", String.valueOf(encodingOut.getDecodedLength()),
+                "crc32c", ChecksumUtils.toHex(encodingOut.getChecksum())
         ));
     }
 
+    /**
+     * Upload a {@link FileChunk} with {@link #uploadChunk(FileChunk, Upload, StreamingChunkUploader, Cancellation)},
+     * retrying with an increasing delay if it fails, up to {@value #MAX_UPLOAD_ATTEMPTS} times.
+     *
+     * @param chunk      {@link FileChunk} to upload.
+     * @param uploadType {@link Upload} enumeration.
+     * @param streaming  The uploader the chunk may have been streamed with, or null
+     * @param cancellation The cancellation of the upload, which stops retrying
+     * @return {@link File} google sheet chunk.
+     * @throws UncheckedIOException If every attempt failed
+     */
+    private File uploadWithRetries(FileChunk chunk, Upload uploadType, StreamingChunkUploader streaming, Cancellation cancellation) {
+        int index = chunk.getIndex();
+        int iterations = 0;
+        int delay = 1000;
+        while (true) {
+            cancellation.throwIfCancelled();
+            try {
+                return uploadChunk(chunk, uploadType, streaming, cancellation);
+            } catch (Exception e) {
+                cancellation.throwIfCancelled();
+                LOGGER.error("An exception occurred during the processing of file " + index, e);
+                Metrics.recordRetry("upload", e);
+
+                delay = Math.min(30000, delay * 2); // Double the delay from the previous, max of 30 seconds
+
+                // Fails the upload, which deletes its parent as a cancelled one does
+                if (++iterations >= MAX_UPLOAD_ATTEMPTS) {
+                    throw new UncheckedIOException(new IOException("Unable to upload sheet#" + index + " after " + iterations + " attempts", e));
+                }
+
+                LOGGER.info("Waiting {}ms", delay);
+                long wait = delay;
+                Trace.current().span("retry_wait", index, () -> cancellation.sleep(wait));
+            }
+        }
+    }
+
+    /**
+     * Upload a {@link FileChunk}, first finishing its streamed upload if it has one.
+     *
+     * @param chunk      {@link FileChunk} to upload.
+     * @param uploadType {@link Upload} enumeration.
+     * @param streaming  The uploader the chunk may have been streamed with, or null
+     * @param cancellation The cancellation of the upload
+     * @return {@link File} google sheet chunk.
+     */
+    private File uploadChunk(FileChunk chunk, Upload uploadType, StreamingChunkUploader streaming, Cancellation cancellation) {
+        var streamed = streaming == null ? null : streaming.finish(chunk);
+        if (streamed != null) {
+            return streamed;
+        }
+
+        return processChunk(chunk, uploadType, cancellation);
+    }
+
     /**
      * Upload a {@link FileChunk} to its parent folder - where the parent folder
      * represents a file stored by holysheet.
      *
      * @param chunk {@link FileChunk} to upload.
      * @param uploadType {@link Upload} enumeration.
+     * @param cancellation The cancellation of the upload, which aborts the request while its body is being sent
      * @return {@link File} google sheet chunk.
      */
-    private File processChunk(FileChunk chunk, Upload uploadType) {
+    private File processChunk(FileChunk chunk, Upload uploadType, Cancellation cancellation) {
         try {
             LOGGER.info("Uploading chunk-{}", chunk.getIndex() + 1);
 
-            var content = new ByteArrayContent("text/tab-separated-values", chunk.getBytes());
+            var content = chunk.getContent(cancellation);
             var parent = chunk.getParent();
             var request = drive.files().create(new File()
                     .setMimeType(Mime.SHEET.getMime())
-                    .setName("chunk-" + chunk.getIndex())
+                    .setName(chunk.getName())
                     .setProperties(chunk.getProperties())
                     .setParents(Collections.singletonList(parent.getId())), content)
                     .setFields("id");
@@ -372,7 +1502,14 @@ public class SheetIO {
                     .setDirectUploadEnabled(uploadType == Upload.DIRECT)
                     .setChunkSize(20 * 0x100000); // 20MB (Default 10)
 
-            return request.execute();
+            return Trace.current().span("upload", chunk.getIndex(), () -> {
+                long start = System.nanoTime();
+                var created = request.execute();
+                Metrics.DRIVE_REQUEST_SECONDS.labels("create").observeSince(start);
+                Metrics.BYTES_OUT.inc(content.getLength());
+                SheetSizeTuner.getShared().recordCreate(content.getLength(), System.nanoTime() - start);
+                return created;
+            });
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -403,22 +1540,41 @@ public class SheetIO {
         return path;
     }
 
+    /**
+     * Creates a folder in the {@link FolderIndex}, along with any of its parents that don't exist yet.
+     *
+     * @param path The folder's path
+     * @throws IOException If the folder could not be created
+     */
     public void createFolder(String path) throws IOException {
-        var folders = new ArrayList<>(getFolders());
+        folderIndex.create(cleanPath(path));
+    }
 
-        if (folders.contains(path)) {
-            return;
+    /**
+     * @return Every folder's path, with each folder directly before its subfolders
+     */
+    public List<String> getFolders() {
+        try {
+            return folderIndex.getPaths();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        folders.add(path);
-
-        sheetManager.addProperties(sheetManager.getSheetStore(), Map.of("folders", String.join(",", folders)));
+    /**
+     * Moves a folder and the folders under it to a new path, along with every file stored in them. See
+     * {@link FolderIndex#move(String, String)}.
+     *
+     * @param from The folder's path
+     * @param to   The folder's new path, which must not exist
+     * @throws IOException If the folder or a file in it could not be moved
+     */
+    public void moveFolder(String from, String to) throws IOException {
+        folderIndex.move(cleanPath(from), cleanPath(to));
     }
 
-    public List<String> getFolders() {
-        var properties = sheetManager.getSheetStore().getProperties();
-        var folderString = properties == null ? "" : properties.getOrDefault("folders", "");
-        return new ArrayList<>(Arrays.stream(folderString.split(",")).collect(Collectors.toUnmodifiableList()));
+    public FolderIndex getFolderIndex() {
+        return folderIndex;
     }
 
     public void deleteData(String id, boolean permanent) throws IOException {
@@ -457,6 +1613,16 @@ public class SheetIO {
             }
         }
 
+        // Trashing releases sheets too, as Drive empties the trash after 30 days and would take them with the version
+        if (getVersion(file) > 0) {
+            var pending = getPendingUploads(file);
+            if (!pending.isEmpty()) {
+                throw new IllegalStateException("Version " + getVersion(file) + " of " + file.getName() + " is the base of the upload " + pending.get(0).getId() + " still in progress, and can't be deleted until it finishes or is removed");
+            }
+
+            releaseSheets(file);
+        }
+
         if (permanent) {
             drive.files().delete(id).execute();
         } else {
@@ -468,10 +1634,150 @@ public class SheetIO {
                 drive.files().update(id, temp).execute();
             }
         }
+
+        // Removing the newest version makes the one before it the newest
+        if (getVersion(file) > 0 && !file.getTrashed() && !"true".equals(properties.get("superseded"))) {
+            var newest = listVersions(file).stream().findFirst();
+            if (newest.isPresent()) {
+                sheetManager.addProperties(newest.get().getId(), Map.of("superseded", "false"));
+            }
+        }
+    }
+
+    /**
+     * Lists every version of a file, newest first. Versions are the delta uploads with the same name and path, see
+     * {@link #uploadDeltaFile(String, String, long, long, SheetLayout, Compression, Upload, InputStream, Consumer, Cancellation)}.
+     * Trashed versions are not included.
+     *
+     * @param file Any version of the file, with its name and properties
+     * @return The versions, or just the given file if it is not versioned
+     * @throws IOException If listing the versions fails
+     */
+    public List<File> listVersions(File file) throws IOException {
+        if (getVersion(file) == 0) {
+            return List.of(file);
+        }
+
+        return getUploads(file.getName(), getPath(file))
+                .stream()
+                .filter(version -> getVersion(version) > 0)
+                .sorted(Comparator.comparingInt(SheetIO::getVersion).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds a version of a file.
+     *
+     * @param file    Any version of the file, with its name and properties
+     * @param version The version number
+     * @return The version
+     * @throws IOException If listing the versions fails
+     */
+    public Optional<File> findVersion(File file, int version) throws IOException {
+        return listVersions(file).stream().filter(found -> getVersion(found) == version).findFirst();
+    }
+
+    /**
+     * Applies a retention policy to a file, permanently deleting all but its newest versions. Sheets of a deleted
+     * version that newer versions still use are kept, and the rest are deleted with it. Versions that a delta upload
+     * still in progress is based on are kept until a later prune.
+     *
+     * @param file Any version of the file, with its name and properties
+     * @param keep The amount of versions to keep, or 0 to keep every version
+     * @return The deleted versions
+     * @throws IOException If a version could not be deleted
+     */
+    public List<File> pruneVersions(File file, int keep) throws IOException {
+        if (keep <= 0) {
+            return Collections.emptyList();
+        }
+
+        var versions = listVersions(file);
+        var pruned = new ArrayList<>(versions.subList(Math.min(keep, versions.size()), versions.size()));
+        Collections.reverse(pruned);
+
+        var deleted = new ArrayList<File>();
+        for (var version : pruned) {
+            if (!getPendingUploads(version).isEmpty()) {
+                LOGGER.info("Keeping version {} of {} ({}), the base of an upload still in progress", getVersion(version), version.getName(), version.getId());
+                continue;
+            }
+
+            LOGGER.info("Deleting version {} of {} ({})", getVersion(version), version.getName(), version.getId());
+            releaseSheets(version);
+            drive.files().delete(version.getId()).execute();
+            deleted.add(version);
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Moves the sheets stored in a version's parent that other versions use into the newest of those versions, so they
+     * are not deleted along with it. This is the garbage collection of versions: sheets left behind are used by no
+     * other version and go with the parent. It is run when a version is trashed as well as when it is deleted, as the
+     * trash is emptied by Drive. A trashed version keeps the sheets only it uses, and reads the rest from wherever they
+     * were moved to if it is restored.
+     *
+     * @param version The version about to be trashed or permanently deleted
+     * @throws IOException If a manifest could not be read or a sheet could not be moved
+     */
+    private void releaseSheets(File version) throws IOException {
+        // Versions that aren't trashed hold sheets first, newest first
+        var others = getUploads(version.getName(), getPath(version), true)
+                .stream()
+                .filter(other -> getVersion(other) > 0)
+                .sorted(Comparator.comparing((File other) -> Boolean.TRUE.equals(other.getTrashed())).thenComparing(Comparator.comparingInt(SheetIO::getVersion).reversed()))
+                .collect(Collectors.toList());
+
+        var holders = new HashMap<String, File>();
+        for (var other : others) {
+            if (other.getId().equals(version.getId()) || !other.getProperties().containsKey("manifest")) {
+                continue;
+            }
+
+            for (var chunk : readManifest(other).getChunks()) {
+                holders.putIfAbsent(chunk.getId(), other);
+            }
+        }
+
+        int moved = 0;
+        for (var sheet : sheetManager.getAllSheets(version.getId())) {
+            var holder = holders.get(sheet.getId());
+            if (holder == null) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            drive.files().update(sheet.getId(), new File())
+                    .setAddParents(holder.getId())
+                    .setRemoveParents(version.getId())
+                    .setFields("id")
+                    .execute();
+            Metrics.DRIVE_REQUEST_SECONDS.labels("update").observeSince(start);
+            moved++;
+        }
+
+        LOGGER.info("Kept {} sheets of {} used by other versions", moved, version.getId());
+    }
+
+    /**
+     * Finds the delta uploads still in progress that are based on a version. They reuse the version's sheets by ID but
+     * have no manifest yet, so the version may not be deleted while they run.
+     *
+     * @param version The version
+     * @return The parents of the uploads in progress
+     * @throws IOException If listing the uploads fails
+     */
+    private List<File> getPendingUploads(File version) throws IOException {
+        return getUploads(version.getName(), getPath(version))
+                .stream()
+                .filter(upload -> "true".equals(upload.getProperties().get("processing")) && version.getId().equals(upload.getProperties().get("base")))
+                .collect(Collectors.toList());
     }
 
     public void restoreData(String id) throws IOException {
-        var file = drive.files().get(id).setFields("id, name, trashed").execute();
+        var file = drive.files().get(id).setFields("id, name, properties, trashed").execute();
 
         if (file == null) {
             throw new RuntimeException("No file could be found with the given ID \"" + id + "\"");
@@ -488,56 +1794,228 @@ public class SheetIO {
         temp.setTrashed(false);
         drive.files().update(id, temp).execute();
 
+        // The restored version may be the newest again, or one newer may have been uploaded while it was trashed
+        if (getVersion(file) > 0) {
+            var versions = new ArrayList<>(listVersions(file));
+            versions.removeIf(version -> version.getId().equals(id));
+            versions.add(file);
+            versions.sort(Comparator.comparingInt(SheetIO::getVersion).reversed());
+
+            for (int i = 0; i < versions.size(); i++) {
+                var superseded = String.valueOf(i > 0);
+                if (!superseded.equals(versions.get(i).getProperties().getOrDefault("superseded", "false"))) {
+                    sheetManager.addProperties(versions.get(i).getId(), Map.of("superseded", superseded));
+                }
+            }
+        }
+
         LOGGER.info("Restored successfully");
     }
 
     /**
-     * Downloads the google drive file with the provided {@code fileId}; and then
-     * uploads this to google drive stored as a holysheet file.
+     * Clones the google drive file with the provided {@code fileId} as a holysheet file. See
+     * {@link #cloneData(File, String, String, long, SheetLayout, Compression, Upload, Consumer, Cancellation)}.
      *
-     * I.e. clones a google drive file as a holysheet file.
      * @param fileId File's id.
-     * @param maxSheetSize Maximum amount of sheets.
+     * @param maxSheetSize Maximum size of each sheet.
      * @param compress Compression enumeration.
      */
     public void cloneFile(String fileId, int maxSheetSize, Compression compress) {
-        downloadFile(fileId).ifPresent(fileData -> {
-            var file = fileData.getFile();
-            var in = fileData.getIn();
+        try {
+            var file = sheetManager.getFile(fileId, DRIVE_FIELDS);
+
+            LOGGER.info("Saving {}...", file.getName());
 
-            var name = file.getName();
+            cloneData(file, file.getName(), "/", maxSheetSize, SheetLayout.DEFAULT, compress, Upload.MULTIPART, null, new Cancellation());
+        } catch (IOException e) {
+            LOGGER.error("An error occurred while cloning " + fileId, e);
+        }
+    }
 
-            LOGGER.info("Saving {}...", name);
+    /**
+     * Clones a google drive file as a holysheet file. Other holysheet files are copied sheet by sheet on Drive's side
+     * with {@link #copyData(File, String, String, Consumer, Cancellation)}, and anything else is streamed from Drive
+     * straight into the encoder, so at most a few sheets are ever held in memory and nothing is written to disk.
+     *
+     * @param source       The file to clone, with at least {@link Utility#DRIVE_FIELDS}
+     * @param title        The name of the clone
+     * @param path         The path of the clone
+     * @param maxSheetSize The maximum size of each sheet, ignored when copying a holysheet file
+     * @param layout       The layout of the sheets, ignored when copying a holysheet file
+     * @param compress     The compression of the clone, ignored when copying a holysheet file
+     * @param uploadType   How to upload the sheets, ignored when copying a holysheet file
+     * @param statusUpdate {@link Consumer} accepted with the progress of the clone, may be null
+     * @param cancellation The cancellation of the clone
+     * @return The parent of the clone
+     * @throws IOException If the source could not be read or the clone could not be created
+     */
+    public File cloneData(File source, String title, String path, long maxSheetSize, SheetLayout layout, Compression compress, Upload uploadType, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        if (isDirectParent(source)) {
+            return copyData(source, title, path, statusUpdate, cancellation);
+        }
 
+        try (var data = downloadFile(source)) {
+            var registration = cancellation.onCancel(data::closeQuietly);
             try {
-                uploadDataFile(name, "/", fileData.getSize(), maxSheetSize, compress, Upload.MULTIPART, in);
-            } catch (IOException e) {
-                LOGGER.error("An error occurred while uploading the " + fileId, e);
+                return uploadDataFile(title, path, data.getSize(), maxSheetSize, layout, compress, uploadType, data.getIn(), statusUpdate, cancellation);
+            } finally {
+                registration.unregister();
             }
-        });
+        }
     }
 
     /**
-     * Downloads a file for CLONING ONLY.
+     * Copies a holysheet file by copying each of its sheets on Drive's side in parallel, without downloading, decoding
+     * or re-encoding any of them. The copy has the properties of the source, apart from its path and star.
      *
-     * @return File bytes
+     * @param source       The parent of the file to copy
+     * @param title        The name of the copy
+     * @param path         The path of the copy
+     * @param statusUpdate {@link Consumer} accepted when a sheet has been copied, may be null
+     * @param cancellation The cancellation of the copy
+     * @return The parent of the copy
+     * @throws IOException If the parent of the copy could not be created
      */
-    public Optional<FileData> downloadFile(String fileId) {
+    public File copyData(File source, String title, String path, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        var sourceProperties = source.getProperties();
+        if (!isDirectParent(source) || "true".equals(sourceProperties.get("processing"))) {
+            throw new IllegalArgumentException("The file " + source.getId() + " is not a complete holysheet file");
+        }
+
+        Consumer<Double> onCopied = statusUpdate == null ? $ -> {} : statusUpdate;
+        var properties = new HashMap<>(sourceProperties);
+        properties.put("starred", "false");
+        properties.put("processing", "true");
+        properties.put("path", cleanPath(path));
+
+        // The copy has every sheet in its own folder and its own manifest, without parity, and is not a version of the source
+        properties.keySet().removeAll(List.of("manifest", "base", "blockSize", "version", "superseded", "parity"));
+
+        var trace = Tracing.start("copy " + source.getId());
+        var scope = trace.activate();
         try {
-            var file = sheetManager.getFile(fileId);
+            var sheets = trace.span("list", () -> listSheets(source));
+            checkSheetCount(source, sheets);
+
+            var parent = trace.span("create_parent", () -> sheetManager.createFolder(title, sheetManager.getSheetStore(), properties));
+
+            LOGGER.info("Copying {} sheets of {} to sheetStore/{} ({})", sheets.size(), source.getId(), parent.getName(), parent.getId());
 
-            if (file == null) {
-                LOGGER.error("No file could be found with the given ID \"{}\"", fileId);
-                return Optional.empty();
+            try {
+                var manifest = new Manifest(0);
+                var copied = new AtomicInteger();
+                CompletableFuture.allOf(sheets.stream().map(sheet -> CompletableFuture.runAsync(trace.wrap(() -> {
+                    manifest.add(Manifest.Chunk.of(sheet, copySheet(sheet, parent, cancellation).getId()));
+
+                    synchronized (copied) {
+                        onCopied.accept(copied.incrementAndGet() / (double) sheets.size());
+                    }
+                }), DOWNLOAD_EXECUTOR)).toArray(CompletableFuture[]::new)).join();
+
+                cancellation.throwIfCancelled();
+
+                trace.span("finalize", () -> finishUpload(parent, manifest, Map.of()));
+            } catch (IOException | RuntimeException e) {
+                abandon(parent);
+                cancellation.throwIfCancelled();
+                throw e;
             }
 
-            var downloaded = java.io.File.createTempFile("downloaded-" + hashCode(), "");
-            drive.files().get(fileId).executeMediaAndDownloadTo(new FileOutputStream(downloaded));
-            return Optional.of(new FileData(file, downloaded.length(), new FileInputStream(downloaded)));
+            return parent;
+        } finally {
+            scope.close();
+            trace.finish();
+        }
+    }
+
+    private File copySheet(File sheet, File parent, Cancellation cancellation) {
+        cancellation.throwIfCancelled();
+
+        try {
+            return Trace.current().span("copy", getSheetIndex(sheet), () -> {
+                long start = System.nanoTime();
+                var copy = drive.files().copy(sheet.getId(), new File()
+                        .setName(sheet.getName())
+                        .setParents(Collections.singletonList(parent.getId())))
+                        .setFields("id")
+                        .execute();
+                Metrics.DRIVE_REQUEST_SECONDS.labels("copy").observeSince(start);
+                return copy;
+            });
         } catch (IOException e) {
-            LOGGER.error("An error occurred while downloading the file " + fileId, e);
-            return Optional.empty();
+            cancellation.throwIfCancelled();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens a stream of a google drive file's content, for CLONING ONLY. The stream reads straight from the response,
+     * so it must be closed.
+     *
+     * @param file The file, with at least its id and size
+     * @return The file's data
+     * @throws IOException If the download could not be started
+     */
+    public FileData downloadFile(File file) throws IOException {
+        var size = file.getSize();
+        var in = drive.files().get(file.getId()).executeMediaAsInputStream();
+        return new FileData(file, size == null ? 0 : size, in);
+    }
+
+    /**
+     * @param file A google drive file, with its properties
+     * @return If the file is the parent folder of a holysheet file
+     */
+    public static boolean isDirectParent(File file) {
+        var properties = file.getProperties();
+        return properties != null && "true".equals(properties.get("directParent"));
+    }
+
+    /**
+     * @param file The parent of a holysheet file
+     * @return The file's version number, or 0 if it is not versioned
+     */
+    public static int getVersion(File file) {
+        var properties = file.getProperties();
+        return properties == null ? 0 : NumberUtils.toInt(properties.get("version"));
+    }
+
+    /**
+     * @param file The parent of a file
+     * @return The amount of data sheets the file was uploaded with, or 0 if it is unknown
+     */
+    public static int getSheetCount(File file) {
+        var string = file.getProperties().get("sheets");
+        if (!StringUtils.isNumeric(string)) {
+            return 0;
+        }
+
+        return Integer.parseInt(string);
+    }
+
+    /**
+     * @param file The parent of a file
+     * @return The path the file is stored at, or an empty string if it has none
+     */
+    public static String getPath(File file) {
+        var path = file.getProperties().get("path");
+        if (path == null) {
+            return "";
+        }
+
+        return path;
+    }
+
+    /**
+     * @param file A google drive file, with its size and properties
+     * @return The size of the file's original data, or 0 if it is unknown
+     */
+    public static long getOriginalSize(File file) {
+        if (isDirectParent(file)) {
+            return NumberUtils.toLong(file.getProperties().get("decodedSize"));
         }
+
+        return file.getSize() == null ? 0 : file.getSize();
     }
 
     public void renameFile(File file, String name) throws IOException {
@@ -546,7 +2024,23 @@ public class SheetIO {
         drive.files().update(file.getId(), meta).setFields("id, name").execute();
     }
 
-    public static class FileData {
+    /**
+     * Writes the data of an upload to its parent, see {@link #runUpload}.
+     */
+    @FunctionalInterface
+    private interface UploadWriter {
+
+        /**
+         * @param parent  The parent of the upload
+         * @param streams The list to add the upload's encoding streams to as they are created, so they are discarded if
+         *                the upload fails
+         * @return The task finalising the upload once its data has been written
+         * @throws IOException If writing the data fails
+         */
+        Trace.Task<IOException> write(File parent, List<EncodingOutputStream> streams) throws IOException;
+    }
+
+    public static class FileData implements Closeable {
         private final File file;
         private final long size;
         private final InputStream in;
@@ -568,5 +2062,21 @@ public class SheetIO {
         public InputStream getIn() {
             return in;
         }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * Closes the stream from another thread, failing any read in progress.
+         */
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to close the download of " + file.getId(), e);
+            }
+        }
     }
 }
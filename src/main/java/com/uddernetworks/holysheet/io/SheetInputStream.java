@@ -0,0 +1,410 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads a file with independently encoded sheets in order, as an {@link InputStream}. While a sheet is being read, the
+ * following sheets are exported and decoded in the background so reading doesn't stall at sheet boundaries.
+ * <p>
+ * The amount of sheets read ahead starts at one and adapts to the stream's use: it is the average time taken to fetch
+ * a sheet divided by the average time the reader spends on one (excluding time spent waiting for it), rounded up and
+ * capped at the stream's limit. A fast reader therefore keeps as many fetches in flight as it takes to hide their
+ * latency, and a slow one doesn't fetch sheets long before they are needed.
+ * <p>
+ * Sheets are verified as they are fetched, and once every sheet has been read in order, the file is checked against
+ * its own checksum. Closing the stream aborts any fetches still in progress, including one a read is waiting for on
+ * another thread, which then fails.
+ */
+public class SheetInputStream extends InputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SheetInputStream.class);
+
+    // The weight given to the newest sample in the moving averages of fetch and read times
+    private static final double SMOOTHING = 0.3;
+
+    private static final ExecutorService READ_AHEAD_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "SheetIO-read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicInteger FETCHING = new AtomicInteger();
+
+    private static final Counter STALLS = Metrics.counter("holysheet_read_ahead_stalls_total",
+            "Stream reads that waited for a sheet still being fetched");
+
+    static {
+        Metrics.gauge("holysheet_read_ahead_fetching", "Sheets being fetched ahead of streaming reads", FETCHING::get);
+    }
+
+    private final SheetIO sheetIO;
+    private final File parent;
+    private final List<File> sheets;
+    private final long[] offsets;
+    private final long length;
+    private final int maxReadAhead;
+    private final Cancellation cancellation = new Cancellation();
+    private final Map<Integer, Fetch> fetches = new HashMap<>();
+    private final SheetDigest[] digests;
+    private final Object fetchLock = new Object();
+
+    private byte[] current;
+    private int currentIndex = -1;
+    private int currentPosition;
+    private long currentStart;
+    private long position;
+
+    private int readAhead = 1;
+    private volatile double fetchNanos;
+    private double readNanos;
+
+    private boolean sequential = true;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param sheetIO      The {@link SheetIO} fetching sheets
+     * @param parent       The parent of the file
+     * @param sheets       Every sheet of the file, in index order
+     * @param maxReadAhead The most sheets to fetch ahead of the one being read
+     */
+    public SheetInputStream(SheetIO sheetIO, File parent, List<File> sheets, int maxReadAhead) {
+        if (maxReadAhead < 1) {
+            throw new IllegalArgumentException("At least one sheet must be read ahead");
+        }
+
+        this.sheetIO = sheetIO;
+        this.parent = parent;
+        this.sheets = List.copyOf(sheets);
+        this.maxReadAhead = maxReadAhead;
+        this.digests = new SheetDigest[sheets.size()];
+
+        offsets = new long[sheets.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = NumberUtils.toLong(sheets.get(i).getProperties().get("offset"));
+        }
+
+        length = NumberUtils.toLong(parent.getProperties().get("decodedSize"));
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        ensureOpen();
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        position++;
+        return current[currentPosition++] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        int read = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current, currentPosition, b, off, read);
+        currentPosition += read;
+        position += read;
+        return read;
+    }
+
+    /**
+     * Skips bytes, jumping straight to the sheet containing the new position without fetching the sheets in between.
+     */
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) {
+            return 0;
+        }
+
+        long start = position;
+        seek(Math.min(position + n, length));
+        return position - start;
+    }
+
+    /**
+     * Moves to a position in the file, forwards or backwards. If the position is outside of the current sheet, the
+     * sheet containing it is read next without fetching the sheets in between. Once the stream has moved anywhere but
+     * the next sheet, the file's checksum is no longer checked, though every sheet read still is.
+     *
+     * @param target The position of the next byte read, past the end of the file meaning the end
+     * @throws IOException If the sheet containing the position could not be read
+     */
+    public synchronized void seek(long target) throws IOException {
+        ensureOpen();
+        if (target < 0) {
+            throw new IllegalArgumentException("Negative position " + target);
+        }
+
+        target = Math.min(target, length);
+        if (current != null && target >= offsets[currentIndex] && target < offsets[currentIndex] + current.length) {
+            currentPosition = (int) (target - offsets[currentIndex]);
+            position = target;
+            return;
+        }
+
+        current = null;
+        position = target;
+
+        if (target >= length) {
+            sequential = false;
+            currentIndex = sheets.size() - 1;
+            cancelFetches(sheets.size());
+            return;
+        }
+
+        int index = Arrays.binarySearch(offsets, target);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        if (index != currentIndex + 1) {
+            sequential = false;
+        }
+
+        // The position is only moved within the sheet once it has loaded, so a failed seek is retried by the next one
+        position = offsets[index];
+        cancelFetches(index);
+        load(index);
+        currentPosition = (int) (target - offsets[index]);
+        position = target;
+    }
+
+    @Override
+    public synchronized int available() {
+        return current == null ? 0 : current.length - currentPosition;
+    }
+
+    /**
+     * Closes the stream, aborting its fetches. The stream is cancelled before its lock is taken, as a read waiting for a
+     * fetch holds it until the fetch is aborted.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        cancellation.cancel();
+        synchronized (this) {
+            cancelFetches(Integer.MAX_VALUE);
+            current = null;
+        }
+    }
+
+    /**
+     * @return The position of the next byte read in the file
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The length of the file
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The amount of sheets currently fetched ahead of the one being read
+     */
+    public synchronized int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Makes sure there is a sheet with unread bytes, moving to the next sheet once the current one has been read.
+     *
+     * @return If there is anything left to read
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (current == null || currentPosition >= current.length) {
+            if (current != null) {
+                finishCurrent();
+            }
+
+            int next = currentIndex + 1;
+            if (next >= sheets.size()) {
+                checkFile();
+                return false;
+            }
+
+            load(next);
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes a sheet the current one, waiting for its fetch if it is still in progress, and starts fetching the sheets
+     * after it.
+     */
+    private void load(int index) throws IOException {
+        var fetch = fetches.remove(index);
+        if (fetch == null) {
+            fetch = fetch(index);
+        }
+
+        if (!fetch.future.isDone()) {
+            STALLS.inc();
+        }
+
+        // Until the sheet arrives the stream is at its start with nothing loaded, so a read retried after a failed fetch
+        // fetches it again rather than reading the previous sheet
+        current = null;
+        currentIndex = index - 1;
+        currentPosition = 0;
+
+        // Fetches of the following sheets run while waiting for this one
+        for (int i = index + 1; i <= Math.min(index + readAhead, sheets.size() - 1); i++) {
+            fetches.computeIfAbsent(i, this::fetch);
+        }
+
+        try {
+            current = fetch.future.join();
+        } catch (CompletionException | CancellationException e) {
+            var cause = e instanceof CompletionException ? e.getCause() : e;
+            if (closed.get()) {
+                throw new IOException("The stream has been closed", cause);
+            }
+
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+
+            throw new IOException("Unable to read sheet#" + index + " of " + parent.getId(), cause);
+        }
+
+        currentIndex = index;
+
+        if (sequential) {
+            var checksum = new CRC32C();
+            checksum.update(current);
+            digests[index] = new SheetDigest(current.length, checksum.getValue());
+        }
+
+        currentStart = System.nanoTime();
+    }
+
+    /**
+     * Starts fetching a sheet, with its own cancellation so the fetch may be aborted alone, which is also cancelled when
+     * the stream is closed. Cancelling it fails the fetch's future at once, even while the export is still blocked.
+     */
+    private Fetch fetch(int index) {
+        var sheet = sheets.get(index);
+        var fetchCancellation = new Cancellation();
+        var registration = cancellation.onCancel(fetchCancellation::cancel);
+        var future = CompletableFuture.supplyAsync(() -> {
+            FETCHING.incrementAndGet();
+            try {
+                long start = System.nanoTime();
+                var bytes = sheetIO.readSheet(parent, sheet, fetchCancellation);
+                recordFetch(System.nanoTime() - start);
+                return bytes;
+            } finally {
+                FETCHING.decrementAndGet();
+            }
+        }, READ_AHEAD_EXECUTOR);
+
+        future.whenComplete((bytes, throwable) -> registration.unregister());
+        fetchCancellation.onCancel(() -> future.cancel(false));
+        return new Fetch(future, fetchCancellation);
+    }
+
+    // Not synchronized on the stream, which is held while the reader waits for a fetch
+    private void recordFetch(long nanos) {
+        synchronized (fetchLock) {
+            fetchNanos = fetchNanos == 0 ? nanos : fetchNanos + SMOOTHING * (nanos - fetchNanos);
+        }
+    }
+
+    /**
+     * Records how long the reader spent on the sheet it just finished, and adjusts the read-ahead to match.
+     */
+    private void finishCurrent() {
+        long nanos = Math.max(System.nanoTime() - currentStart, 1);
+        readNanos = readNanos == 0 ? nanos : readNanos + SMOOTHING * (nanos - readNanos);
+
+        if (fetchNanos > 0) {
+            int target = (int) Math.min(Math.ceil(fetchNanos / readNanos), maxReadAhead);
+            if (target != readAhead) {
+                LOGGER.debug("Reading {} sheets ahead of {} (fetch {} ms, read {} ms)", Math.max(target, 1), parent.getId(), (long) fetchNanos / 1_000_000, (long) readNanos / 1_000_000);
+            }
+
+            readAhead = Math.max(target, 1);
+        }
+    }
+
+    /**
+     * Cancels the fetches of every sheet before the given index, which will no longer be read.
+     */
+    private void cancelFetches(int before) {
+        var iterator = fetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey() < before) {
+                entry.getValue().cancellation.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void checkFile() throws IOException {
+        if (sequential && !SheetDigest.matchesFile(parent, digests)) {
+            sequential = false;
+            throw new IOException("The checksum of " + parent.getId() + " does not match its sheets");
+        }
+
+        // Only checked once, as reading past the end again finds no new sheets
+        sequential = false;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed.get()) {
+            throw new IOException("The stream has been closed");
+        }
+    }
+
+    /**
+     * A sheet being fetched, and the cancellation aborting it.
+     */
+    private static class Fetch {
+        private final CompletableFuture<byte[]> future;
+        private final Cancellation cancellation;
+
+        private Fetch(CompletableFuture<byte[]> future, Cancellation cancellation) {
+            this.future = future;
+            this.cancellation = cancellation;
+        }
+    }
+}
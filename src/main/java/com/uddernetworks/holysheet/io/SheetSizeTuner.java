@@ -0,0 +1,165 @@
+package com.uddernetworks.holysheet.io;
+
+import com.uddernetworks.holysheet.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the size of a transfer's sheets from the time recent sheet uploads and exports took. Each request is modelled
+ * as a fixed latency plus a time per byte, fitted by least squares over the last {@value #WINDOW} requests of each kind,
+ * and the chosen size is the one with the lowest estimated time to upload the file and export it back: fewer, larger
+ * sheets pay the fixed latency less often, while smaller ones let the parallel exports of a download share the work.
+ * <p>
+ * Until enough requests have been timed, the model uses conservative estimates of Drive's usual performance.
+ */
+public class SheetSizeTuner {
+
+    public static final long MIN_SHEET_SIZE = 1_000_000;
+    public static final long MAX_SHEET_SIZE = 10_000_000;
+
+    // Base91 and the sheet layout add ~22% to the original size
+    private static final double ENCODED_RATIO = 1.22;
+
+    // The file size assumed when it isn't known up front
+    private static final long UNKNOWN_FILE_SIZE = 1_000_000_000;
+
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 4;
+    private static final long STEP = 500_000;
+
+    private static final SheetSizeTuner SHARED = new SheetSizeTuner();
+
+    private static final AtomicLong CHOSEN = new AtomicLong();
+
+    static {
+        Metrics.gauge("holysheet_auto_sheet_size_bytes", "The sheet size last chosen for a transfer without one", CHOSEN::get);
+    }
+
+    private final Model create = new Model(1.0, 1 / 4e6);
+    private final Model export = new Model(0.5, 1 / 8e6);
+
+    /**
+     * @return The tuner fed by every {@link SheetIO} in the process
+     */
+    public static SheetSizeTuner getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Records the time taken to create a sheet.
+     *
+     * @param bytes The encoded size of the sheet
+     * @param nanos The time taken by the request
+     */
+    public void recordCreate(long bytes, long nanos) {
+        create.add(bytes, nanos / 1e9);
+    }
+
+    /**
+     * Records the time taken to export a sheet.
+     *
+     * @param bytes The encoded size of the sheet
+     * @param nanos The time taken by the request
+     */
+    public void recordExport(long bytes, long nanos) {
+        export.add(bytes, nanos / 1e9);
+    }
+
+    /**
+     * Picks the sheet size of a file.
+     *
+     * @param fileSize            The size of the file, or 0 if not known
+     * @param uploadParallelism   The amount of sheets uploaded at once
+     * @param downloadParallelism The amount of sheets exported at once
+     * @return The maximum size of each sheet, between {@link #MIN_SHEET_SIZE} and {@link #MAX_SHEET_SIZE}
+     */
+    public long choose(long fileSize, int uploadParallelism, int downloadParallelism) {
+        long best = MAX_SHEET_SIZE;
+        double bestSeconds = Double.MAX_VALUE;
+        for (long size = MIN_SHEET_SIZE; size <= MAX_SHEET_SIZE; size += STEP) {
+            var seconds = estimateSeconds(size, fileSize, uploadParallelism, downloadParallelism);
+            if (seconds < bestSeconds) {
+                best = size;
+                bestSeconds = seconds;
+            }
+        }
+
+        CHOSEN.set(best);
+        return best;
+    }
+
+    /**
+     * Estimates the time to upload a file in sheets of the given size and export them back.
+     *
+     * @param sheetSize           The maximum size of each sheet
+     * @param fileSize            The size of the file, or 0 if not known
+     * @param uploadParallelism   The amount of sheets uploaded at once
+     * @param downloadParallelism The amount of sheets exported at once
+     * @return The estimated time in seconds
+     */
+    public double estimateSeconds(long sheetSize, long fileSize, int uploadParallelism, int downloadParallelism) {
+        var encoded = (fileSize > 0 ? fileSize : UNKNOWN_FILE_SIZE) * ENCODED_RATIO;
+        long sheets = (long) Math.ceil(encoded / sheetSize);
+        double perSheet = Math.min(sheetSize, encoded);
+
+        long uploadRounds = (sheets + uploadParallelism - 1) / uploadParallelism;
+        long exportRounds = (sheets + downloadParallelism - 1) / downloadParallelism;
+        return uploadRounds * create.estimate(perSheet) + exportRounds * export.estimate(perSheet);
+    }
+
+    /**
+     * A linear model of a request's time by the bytes it carries, fitted to its most recent samples.
+     */
+    private static class Model {
+        private final double priorLatency;
+        private final double priorSecondsPerByte;
+        private final Deque<double[]> samples = new ArrayDeque<>();
+
+        private Model(double priorLatency, double priorSecondsPerByte) {
+            this.priorLatency = priorLatency;
+            this.priorSecondsPerByte = priorSecondsPerByte;
+        }
+
+        private synchronized void add(long bytes, double seconds) {
+            samples.addLast(new double[]{bytes, seconds});
+            if (samples.size() > WINDOW) {
+                samples.removeFirst();
+            }
+        }
+
+        private synchronized double estimate(double bytes) {
+            if (samples.size() < MIN_SAMPLES) {
+                return priorLatency + bytes * priorSecondsPerByte;
+            }
+
+            double meanBytes = 0;
+            double meanSeconds = 0;
+            for (var sample : samples) {
+                meanBytes += sample[0];
+                meanSeconds += sample[1];
+            }
+
+            meanBytes /= samples.size();
+            meanSeconds /= samples.size();
+
+            double covariance = 0;
+            double variance = 0;
+            for (var sample : samples) {
+                covariance += (sample[0] - meanBytes) * (sample[1] - meanSeconds);
+                variance += (sample[0] - meanBytes) * (sample[0] - meanBytes);
+            }
+
+            // Samples of (nearly) one size can't separate latency from transfer time, so the prior latency is kept
+            double secondsPerByte = variance > meanBytes * meanBytes * 0.01 ? covariance / variance : -1;
+            double latency = meanSeconds - secondsPerByte * meanBytes;
+            if (secondsPerByte < 0 || latency < 0) {
+                latency = Math.min(priorLatency, meanSeconds);
+                secondsPerByte = meanBytes > 0 ? (meanSeconds - latency) / meanBytes : priorSecondsPerByte;
+            }
+
+            return latency + bytes * secondsPerByte;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.Mime;
+import com.uddernetworks.holysheet.SheetManager;
+import com.uddernetworks.holysheet.encoding.ChunkBuffer;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.tracing.Trace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads sheets while they are still being encoded, for {@code Upload.STREAMING}. When an
+ * {@link com.uddernetworks.holysheet.encoding.EncodingOutputStream} starts a chunk, a request is started that reads the
+ * chunk's buffer through a live view, so the sheet is sent with chunked transfer encoding as it is produced rather than
+ * after it is complete.
+ * <p>
+ * A sheet's size and checksum are only known once it has been encoded, so streamed sheets are created with just their
+ * {@code index} and have the rest of their properties added once the upload finishes. If a streamed upload fails, the
+ * partial sheet is deleted and the complete chunk is left to be uploaded normally from its sealed buffer. Streams stop
+ * being read once the upload's {@link Cancellation} is cancelled, which aborts their requests.
+ */
+public class StreamingChunkUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingChunkUploader.class);
+
+    private static final ExecutorService UPLOAD_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "SheetIO-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    static {
+        Metrics.gauge("holysheet_streaming_uploads", "Sheets currently being streamed to Drive", ACTIVE::get);
+    }
+
+    private final SheetManager sheetManager;
+    private final Drive drive;
+    private final File parent;
+    private final Cancellation cancellation;
+    private final Map<Integer, CompletableFuture<File>> uploads = new ConcurrentHashMap<>();
+
+    public StreamingChunkUploader(SheetManager sheetManager, Drive drive, File parent, Cancellation cancellation) {
+        this.sheetManager = sheetManager;
+        this.drive = drive;
+        this.parent = parent;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Starts uploading a chunk that is still being encoded.
+     *
+     * @param index  The index of the chunk
+     * @param buffer The buffer the chunk is being encoded into
+     */
+    public void start(int index, ChunkBuffer buffer) {
+        if (cancellation.isCancelled()) {
+            return;
+        }
+
+        var stream = cancellation.wrap(buffer.openLiveStream());
+        var trace = Trace.current();
+        uploads.put(index, CompletableFuture.supplyAsync(trace.wrap(() -> {
+            ACTIVE.incrementAndGet();
+            long start = System.nanoTime();
+            var span = trace.span("stream_upload", index);
+            try {
+                LOGGER.info("Streaming chunk-{}", index + 1);
+
+                var content = new InputStreamContent("text/tab-separated-values", stream);
+                var request = drive.files().create(new File()
+                        .setMimeType(Mime.SHEET.getMime())
+                        .setName("chunk-" + index)
+                        .setProperties(Map.of("index", String.valueOf(index)))
+                        .setParents(Collections.singletonList(parent.getId())), content)
+                        .setFields("id, properties");
+
+                // Resumable uploads of an unknown length buffer the whole request first, which would defeat streaming
+                request.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+                var created = request.execute();
+                Metrics.DRIVE_REQUEST_SECONDS.labels("stream_create").observeSince(start);
+                return created;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                span.close();
+                ACTIVE.decrementAndGet();
+            }
+        }), UPLOAD_EXECUTOR));
+    }
+
+    /**
+     * Waits for a chunk's streamed upload to finish, and adds the properties only known once it has been encoded.
+     *
+     * @param chunk The complete chunk
+     * @return The uploaded sheet, or null if the chunk should be uploaded normally
+     */
+    public File finish(FileChunk chunk) {
+        var upload = uploads.remove(chunk.getIndex());
+        if (upload == null) {
+            return null;
+        }
+
+        try {
+            var trace = Trace.current();
+
+            File sheet;
+            var span = trace.span("stream_wait", chunk.getIndex());
+            try {
+                sheet = upload.get();
+            } finally {
+                span.close();
+            }
+
+            trace.span("update", chunk.getIndex(), () -> {
+                long start = System.nanoTime();
+                sheetManager.addProperties(sheet, chunk.getProperties());
+                Metrics.DRIVE_REQUEST_SECONDS.labels("update").observeSince(start);
+            });
+            Metrics.BYTES_OUT.inc(chunk.getLength());
+            return sheet;
+        } catch (ExecutionException | IOException e) {
+            cancellation.throwIfCancelled();
+            Metrics.recordRetry("upload", e);
+            LOGGER.error("Streaming chunk-" + (chunk.getIndex() + 1) + " failed, uploading it normally", e);
+            upload.thenAccept(this::deleteQuietly);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void deleteQuietly(File sheet) {
+        try {
+            drive.files().delete(sheet.getId()).execute();
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete the incomplete sheet " + sheet.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.uddernetworks.holysheet.io;
+
+import com.google.api.services.drive.model.File;
+import com.uddernetworks.holysheet.encoding.ReedSolomon;
+import com.uddernetworks.holysheet.metrics.Counter;
+import com.uddernetworks.holysheet.metrics.Metrics;
+import com.uddernetworks.holysheet.tracing.Trace;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A download of a file uploaded with parity (see {@link SheetIO#uploadParityFile}) stripe by stripe, where each stripe is
+ * complete as soon as any {@code k} of its {@code k + m} sheets have been downloaded intact. Only a few stripes are
+ * open at once, enough to keep every download thread busy, and the next is opened as one completes, so at most
+ * those stripes' sheets are buffered.
+ * <p>
+ * A stripe's parity sheets are only exported once it needs them: one when a data sheet is lost, and one when a data
+ * sheet is still exporting after {@value #SLOW_FACTOR} times the download's mean export. They are queued right away
+ * behind only the open stripes' sheets, so stragglers are helped from the start of the download. Once a stripe is
+ * complete its remaining exports are skipped or aborted, and any data sheet it is missing is restored from the
+ * others. Each sheet is downloaded once, with a failed or corrupt sheet counted as lost rather than fetched again,
+ * and the download only fails if a stripe loses more than {@code m} sheets.
+ */
+class StripeDownload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripeDownload.class);
+
+    private static final Counter RECONSTRUCTED = Metrics.counter("holysheet_parity_reconstructed_sheets_total",
+            "Data sheets restored from the other sheets of their stripe instead of being downloaded");
+    private static final Counter STRIPE_EXPORTS_SKIPPED = Metrics.counter("holysheet_parity_exports_skipped_total",
+            "Sheet exports skipped or aborted because their stripe was already complete");
+    private static final Counter LOST_SHEETS = Metrics.counter("holysheet_parity_lost_sheets_total",
+            "Sheets of files with parity that could not be downloaded or failed verification");
+    private static final Counter SLOW_SHEETS = Metrics.counter("holysheet_parity_slow_sheets_total",
+            "Data sheets slow enough that a parity sheet of their stripe was exported alongside them");
+
+    // A data sheet still exporting after this many times the mean export gets a parity sheet
+    private static final double SLOW_FACTOR = 2;
+    private static final long SLOW_CHECK_MILLIS = 1000;
+
+    private static final ScheduledExecutorService PARITY_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "StripeDownload-parity-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SheetIO sheetIO;
+    private final File parent;
+    private final Stripe[] stripes;
+    private final ReedSolomon codec;
+    private final PositionalFileWriter writer;
+    private final SheetDigest[] digests;
+    private final Consumer<Double> statusUpdate;
+    private final Cancellation cancellation;
+    private final int k;
+    private final int m;
+    private final Trace trace = Trace.current();
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final AtomicInteger completeStripes = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private long exportNanos;
+    private int exports;
+
+    private StripeDownload(SheetIO sheetIO, File parent, Stripe[] stripes, ReedSolomon codec, PositionalFileWriter writer, SheetDigest[] digests, Consumer<Double> statusUpdate, Cancellation cancellation) {
+        this.sheetIO = sheetIO;
+        this.parent = parent;
+        this.stripes = stripes;
+        this.codec = codec;
+        this.writer = writer;
+        this.digests = digests;
+        this.statusUpdate = statusUpdate;
+        this.cancellation = cancellation;
+        this.k = codec.getDataShards();
+        this.m = codec.getParityShards();
+    }
+
+    /**
+     * Downloads every stripe, returning once no export is left running so the writer may be closed.
+     */
+    private void run() {
+        if (stripes.length == 0) {
+            finished.complete(null);
+        }
+
+        int open = Math.max(2, (2 * SheetIO.DOWNLOAD_THREADS + k - 1) / k);
+        for (int i = 0; i < Math.min(open, stripes.length); i++) {
+            openNext();
+        }
+
+        try {
+            finished.join();
+        } finally {
+            awaitTasks();
+        }
+    }
+
+    private void openNext() {
+        int number = nextStripe.getAndIncrement();
+        if (number >= stripes.length) {
+            return;
+        }
+
+        var stripe = stripes[number];
+        for (int row = 0; row < k; row++) {
+            if (stripe.sheets[row] != null) {
+                submit(stripe, row);
+            }
+        }
+    }
+
+    /**
+     * Queues the stripe's next parity sheet not yet queued, if it has any left.
+     */
+    private void queueParity(Stripe stripe) {
+        int row;
+        synchronized (stripe) {
+            if (stripe.done) {
+                return;
+            }
+
+            row = stripe.nextParity;
+            while (row < stripe.sheets.length && stripe.sheets[row] == null) {
+                row++;
+            }
+
+            if (row >= stripe.sheets.length) {
+                return;
+            }
+
+            stripe.nextParity = row + 1;
+        }
+
+        submit(stripe, row);
+    }
+
+    private void submit(Stripe stripe, int row) {
+        synchronized (tasks) {
+            if (finished.isDone()) {
+                return;
+            }
+
+            tasks.removeIf(CompletableFuture::isDone);
+            tasks.add(CompletableFuture.runAsync(trace.wrap(() -> {
+                if (stripe.isDone() || finished.isDone()) {
+                    STRIPE_EXPORTS_SKIPPED.inc();
+                    return;
+                }
+
+                try {
+                    fetchShard(stripe, row);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }), SheetIO.DOWNLOAD_EXECUTOR));
+        }
+    }
+
+    /**
+     * Fails the download, aborting the exports of every stripe.
+     */
+    private void fail(RuntimeException e) {
+        if (finished.completeExceptionally(e)) {
+            for (var stripe : stripes) {
+                stripe.cancellation.cancel();
+            }
+        }
+    }
+
+    private void awaitTasks() {
+        while (true) {
+            CompletableFuture<?>[] running;
+            synchronized (tasks) {
+                running = tasks.toArray(CompletableFuture[]::new);
+                tasks.clear();
+            }
+
+            if (running.length == 0) {
+                return;
+            }
+
+            CompletableFuture.allOf(running).join();
+        }
+    }
+
+    /**
+     * Downloads a single sheet of a stripe, writing it if it holds data, and completes the stripe if it was the last
+     * sheet needed.
+     */
+    private void fetchShard(Stripe stripe, int row) {
+        var sheet = stripe.sheets[row];
+        long start = System.nanoTime();
+        if (row < k) {
+            watch(stripe, row, start);
+        }
+
+        byte[] data = null;
+        try {
+            data = exportOnce(sheet, stripe.cancellation);
+            record(System.nanoTime() - start);
+        } catch (CancellationException e) {
+            cancellation.throwIfCancelled();
+            STRIPE_EXPORTS_SKIPPED.inc();
+            return;
+        } catch (RuntimeException e) {
+            LOST_SHEETS.inc();
+            LOGGER.warn("Sheet {} of stripe {} could not be downloaded, relying on parity: {}", sheet.getName(), stripe.number, e.getMessage());
+        }
+
+        boolean complete = false;
+        synchronized (stripe) {
+            stripe.settled[row] = true;
+            if (stripe.done) {
+                return;
+            }
+
+            if (data == null) {
+                if (++stripe.lost > m) {
+                    stripe.done = true;
+                    throw new IllegalStateException("Stripe " + stripe.number + " of " + parent.getId() + " has lost more sheets than its parity can restore");
+                }
+            } else {
+                stripe.shards[row] = data;
+                complete = ++stripe.received == k;
+                stripe.done = complete;
+            }
+        }
+
+        if (data == null) {
+            queueParity(stripe);
+            return;
+        }
+
+        if (row < k) {
+            writeShard(sheet, data);
+            written();
+        }
+
+        if (complete) {
+            complete(stripe);
+        }
+    }
+
+    /**
+     * Restores the data sheets a complete stripe is missing, and opens the next stripe.
+     */
+    private void complete(Stripe stripe) {
+        // Aborts the exports of the stripe still in progress, after which nothing else touches its shards
+        stripe.cancellation.cancel();
+
+        var missing = new boolean[k];
+        boolean restore = false;
+        int length = 0;
+        for (int i = 0; i < stripe.shards.length; i++) {
+            var shard = stripe.shards[i];
+            if (shard != null) {
+                length = Math.max(length, shard.length);
+            } else if (i < missing.length) {
+                missing[i] = true;
+                restore = true;
+            }
+        }
+
+        if (restore) {
+            codec.reconstruct(stripe.shards, length);
+            for (int i = 0; i < missing.length; i++) {
+                var file = stripe.sheets[i];
+                if (!missing[i]) {
+                    continue;
+                }
+
+                var restored = Arrays.copyOf(stripe.shards[i], (int) NumberUtils.toLong(file.getProperties().get("decodedSize")));
+                if (!SheetDigest.of(ByteBuffer.wrap(restored)).matches(file)) {
+                    throw new IllegalStateException("Sheet#" + SheetIO.getSheetIndex(file) + " of " + parent.getId() + " could not be restored from its stripe");
+                }
+
+                LOGGER.info("Restored sheet#{} from the parity of stripe {}", SheetIO.getSheetIndex(file), stripe.number);
+                RECONSTRUCTED.inc();
+                writeShard(file, restored);
+                written();
+            }
+        }
+
+        Arrays.fill(stripe.shards, null);
+
+        if (completeStripes.incrementAndGet() == stripes.length) {
+            finished.complete(null);
+        } else {
+            openNext();
+        }
+    }
+
+    /**
+     * Checks on a data sheet once it has run for {@value #SLOW_FACTOR} times the mean export, queueing a parity sheet
+     * of its stripe if it is still exporting. Until an export has finished to compare with, it is checked every
+     * {@value #SLOW_CHECK_MILLIS}ms.
+     */
+    private void watch(Stripe stripe, int row, long start) {
+        long mean = getMeanExportNanos();
+        long delay = mean < 0 ? TimeUnit.MILLISECONDS.toNanos(SLOW_CHECK_MILLIS) : start + (long) (SLOW_FACTOR * mean) - System.nanoTime();
+        PARITY_TIMER.schedule(trace.wrap(() -> {
+            synchronized (stripe) {
+                if (stripe.done || stripe.settled[row]) {
+                    return;
+                }
+            }
+
+            long current = getMeanExportNanos();
+            if (current < 0 || System.nanoTime() - start < SLOW_FACTOR * current) {
+                watch(stripe, row, start);
+                return;
+            }
+
+            SLOW_SHEETS.inc();
+            LOGGER.debug("Sheet {} of stripe {} is slower than {}ms, exporting parity alongside it", stripe.sheets[row].getName(), stripe.number, (long) (SLOW_FACTOR * current) / 1_000_000);
+            queueParity(stripe);
+        }), Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void record(long nanos) {
+        exportNanos += nanos;
+        exports++;
+    }
+
+    private synchronized long getMeanExportNanos() {
+        return exports == 0 ? -1 : exportNanos / exports;
+    }
+
+    private void written() {
+        synchronized (written) {
+            statusUpdate.accept(written.incrementAndGet() / (double) digests.length);
+        }
+    }
+
+    /**
+     * Downloads a file uploaded with parity.
+     *
+     * @param sheetIO      The {@link SheetIO} of the file
+     * @param destination  The file to write to
+     * @param parent       The parent of the sheets
+     * @param files        The data sheets of the file
+     * @param parity       The parity sheets of the file
+     * @param statusUpdate {@link Consumer} to be accepted when a data sheet has been downloaded or restored
+     * @param cancellation The cancellation of the download
+     * @throws IOException If the destination could not be created
+     */
+    static void download(SheetIO sheetIO, java.io.File destination, File parent, List<File> files, List<File> parity, Consumer<Double> statusUpdate, Cancellation cancellation) throws IOException {
+        sheetIO.checkSheetCount(parent, files);
+
+        var scheme = ParityScheme.parse(parent.getProperties().get("parity"));
+        int k = scheme.getDataSheets();
+        int m = scheme.getParitySheets();
+
+        var sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingInt(SheetIO::getSheetIndex));
+
+        var stripes = new Stripe[(sorted.size() + k - 1) / k];
+        for (int number = 0; number < stripes.length; number++) {
+            stripes[number] = new Stripe(number, k, m);
+        }
+
+        for (var file : sorted) {
+            int index = SheetIO.getSheetIndex(file);
+            stripes[index / k].add(index % k, file);
+        }
+
+        for (var file : parity) {
+            int index = SheetIO.getSheetIndex(file);
+            if (index / m < stripes.length) {
+                stripes[index / m].add(k + index % m, file);
+            }
+        }
+
+        var digests = new SheetDigest[sorted.size()];
+        var registrations = new ArrayList<Cancellation.Registration>();
+        for (var stripe : stripes) {
+            registrations.add(cancellation.onCancel(stripe.cancellation::cancel));
+        }
+
+        try (var writer = new PositionalFileWriter(destination, Long.parseLong(parent.getProperties().get("decodedSize")))) {
+            new StripeDownload(sheetIO, parent, stripes, scheme.createCodec(), writer, digests, statusUpdate, cancellation).run();
+        } finally {
+            registrations.forEach(Cancellation.Registration::unregister);
+        }
+
+        if (!SheetDigest.matchesFile(parent, digests)) {
+            throw new IllegalStateException("The checksum of " + parent.getId() + " does not match its sheets");
+        }
+    }
+
+    private void writeShard(File sheet, byte[] data) {
+        var buffer = ByteBuffer.wrap(data);
+        digests[SheetIO.getSheetIndex(sheet)] = SheetDigest.of(buffer);
+        try {
+            writer.write(buffer, Long.parseLong(sheet.getProperties().get("offset")));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Exports and decodes a sheet once, without retrying if it fails verification.
+     *
+     * @param file         The sheet
+     * @param cancellation The cancellation aborting the export
+     * @return The decoded bytes of the sheet
+     * @throws IllegalStateException If the sheet failed verification
+     */
+    private byte[] exportOnce(File file, Cancellation cancellation) {
+        var out = new ByteArrayOutputStream((int) NumberUtils.toLong(file.getProperties().get("decodedSize")));
+        if (!sheetIO.decodeSheet(parent, file, out, cancellation).matches(file)) {
+            throw new IllegalStateException("Sheet " + file.getName() + " failed verification");
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * The sheets of a stripe of a file uploaded with parity, and those downloaded so far.
+     */
+    private static class Stripe {
+        private final int number;
+        private final File[] sheets;
+        private final byte[][] shards;
+        private final int dataSheets;
+        private final boolean[] settled;
+        private final Cancellation cancellation = new Cancellation();
+        private int received;
+        private int lost;
+        private int nextParity;
+        private boolean done;
+
+        private Stripe(int number, int dataSheets, int paritySheets) {
+            this.number = number;
+            this.sheets = new File[dataSheets + paritySheets];
+            this.shards = new byte[dataSheets + paritySheets][];
+            this.settled = new boolean[dataSheets + paritySheets];
+            this.dataSheets = dataSheets;
+            this.nextParity = dataSheets;
+
+            // Rows past the end of a short last stripe are all zeros, and parity sheets not listed are lost
+            this.received = dataSheets;
+            this.lost = paritySheets;
+            for (int row = 0; row < dataSheets; row++) {
+                shards[row] = new byte[0];
+            }
+        }
+
+        private synchronized void add(int row, File sheet) {
+            sheets[row] = sheet;
+            if (row < dataSheets) {
+                shards[row] = null;
+                received--;
+            } else {
+                lost--;
+            }
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.uddernetworks.holysheet.job;
+
+import com.uddernetworks.grpc.HolysheetService.JobStatus;
+import com.uddernetworks.grpc.HolysheetService.JobStatus.JobState;
+import com.uddernetworks.grpc.HolysheetService.JobStatus.JobType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A single upload or download tracked by a {@link JobRegistry}. Progress is read lazily from a supplier set by whatever
+ * performs the transfer (e.g. the decoded length of an encoder), so reporting it costs the transfer nothing. Jobs
+ * belong to the account that started them, and are only visible to it.
+ */
+public class Job {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Job.class);
+
+    private final String id;
+    private final String owner;
+    private final JobType type;
+    private final String name;
+    private final long createdAt = System.currentTimeMillis();
+    private final List<Runnable> cancelHandlers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Job>> stateListeners = new CopyOnWriteArrayList<>();
+
+    private volatile JobState state = JobState.PENDING;
+    private final AtomicLong bytesReported = new AtomicLong();
+    private volatile LongSupplier bytesDone;
+    private volatile long bytesTotal;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error = "";
+    private volatile String fileId = "";
+
+    // Used by the registry to notice jobs making no progress
+    private long lastBytes = -1;
+    private long lastActivity = createdAt;
+
+    /**
+     * @param id    The ID of the job, which should not be guessable as it is all that's needed to read or cancel it
+     * @param owner The ID of the account that started the job
+     * @param type  The type of transfer
+     * @param name  The name of the file being transferred
+     */
+    public Job(String id, String owner, JobType type, String name) {
+        this.id = id;
+        this.owner = owner;
+        this.type = type;
+        this.name = name;
+    }
+
+    /**
+     * Marks the job as running.
+     */
+    public void start() {
+        if (transition(JobState.PENDING, JobState.RUNNING)) {
+            startedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Marks the job as complete.
+     *
+     * @param fileId The ID of the transferred file
+     */
+    public void complete(String fileId) {
+        this.fileId = fileId == null ? "" : fileId;
+        end(JobState.COMPLETE);
+    }
+
+    /**
+     * Marks the job as failed.
+     *
+     * @param throwable The cause of the failure
+     */
+    public void fail(Throwable throwable) {
+        error = String.valueOf(throwable.getMessage());
+        end(JobState.FAILED);
+    }
+
+    /**
+     * Cancels the job, running its cancel handlers. Jobs that have already ended are unaffected.
+     *
+     * @return If the job was cancelled
+     */
+    public boolean cancel() {
+        if (!end(JobState.CANCELLED)) {
+            return false;
+        }
+
+        for (var handler : cancelHandlers) {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("An error occurred while cancelling job " + id, e);
+            }
+        }
+
+        return true;
+    }
+
+    private boolean end(JobState endState) {
+        synchronized (this) {
+            if (isFinished()) {
+                return false;
+            }
+
+            if (startedAt == 0) {
+                startedAt = System.currentTimeMillis();
+            }
+
+            finishedAt = System.currentTimeMillis();
+            state = endState;
+        }
+
+        stateListeners.forEach(listener -> listener.accept(this));
+        return true;
+    }
+
+    private synchronized boolean transition(JobState from, JobState to) {
+        if (state != from) {
+            return false;
+        }
+
+        state = to;
+        stateListeners.forEach(listener -> listener.accept(this));
+        return true;
+    }
+
+    /**
+     * Adds a handler run when the job is cancelled. If it already has been, the handler is run immediately.
+     *
+     * @param handler The handler
+     */
+    public void onCancel(Runnable handler) {
+        cancelHandlers.add(handler);
+        if (state == JobState.CANCELLED) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Adds a listener called whenever the job's state changes.
+     *
+     * @param listener The listener
+     */
+    public void addStateListener(Consumer<Job> listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(Consumer<Job> listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Sets where the amount of transferred bytes is read from, in place of the amount last given to
+     * {@link #setBytesDone(long)}.
+     *
+     * @param bytesDone The supplier of the amount of original bytes transferred so far
+     */
+    public void trackBytes(LongSupplier bytesDone) {
+        this.bytesDone = bytesDone;
+    }
+
+    /**
+     * Sets the amount of transferred bytes, for transfers only reporting progress as it happens.
+     *
+     * @param bytesDone The amount of original bytes transferred so far
+     */
+    public void setBytesDone(long bytesDone) {
+        bytesReported.set(bytesDone);
+        this.bytesDone = null;
+    }
+
+    public void setBytesTotal(long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Checks if the job has made progress since the last check.
+     *
+     * @param now The current epoch millis
+     * @return The epoch millis the job last made progress at
+     */
+    synchronized long checkActivity(long now) {
+        long bytes = getBytesDone();
+        if (bytes != lastBytes) {
+            lastBytes = bytes;
+            lastActivity = now;
+        }
+
+        return lastActivity;
+    }
+
+    public boolean isFinished() {
+        return state == JobState.COMPLETE || state == JobState.FAILED || state == JobState.CANCELLED;
+    }
+
+    public boolean isCancelled() {
+        return state == JobState.CANCELLED;
+    }
+
+    public long getBytesDone() {
+        var supplier = bytesDone;
+        return supplier == null ? bytesReported.get() : supplier.getAsLong();
+    }
+
+    /**
+     * @return The average bytes per second since the job started, 0 if it has not
+     */
+    public double getRate() {
+        if (startedAt == 0) {
+            return 0;
+        }
+
+        long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+        return getBytesDone() * 1000D / Math.max(1, end - startedAt);
+    }
+
+    /**
+     * @return The estimated millis until the job is complete, -1 if unknown
+     */
+    public long getEtaMillis() {
+        if (isFinished()) {
+            return 0;
+        }
+
+        double rate = getRate();
+        long remaining = bytesTotal - getBytesDone();
+        if (bytesTotal <= 0 || rate <= 0 || remaining < 0) {
+            return -1;
+        }
+
+        return (long) (remaining / rate * 1000);
+    }
+
+    public JobStatus toStatus() {
+        return JobStatus.newBuilder()
+                .setJobId(id)
+                .setType(type)
+                .setName(name)
+                .setState(state)
+                .setBytesDone(getBytesDone())
+                .setBytesTotal(bytesTotal)
+                .setBytesPerSecond(getRate())
+                .setEtaMillis(getEtaMillis())
+                .setStartedAt(startedAt)
+                .setFinishedAt(finishedAt)
+                .setError(error)
+                .setFileId(fileId)
+                .build();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public JobType getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JobState getState() {
+        return state;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+}
@@ -0,0 +1,114 @@
+package com.uddernetworks.holysheet.job;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The server's transfers by ID. Jobs that have ended are kept for {@code holysheet.jobTtlSeconds} (Default 10 minutes)
+ * so their final status can still be read, and active jobs making no progress for {@code holysheet.jobIdleSeconds}
+ * (Default 1 hour) are cancelled, e.g. an upload whose client never sent any data. Jobs are only read by the account
+ * that owns them, and are unknown to any other.
+ */
+public class JobRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobRegistry.class);
+
+    private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("holysheet.jobTtlSeconds", 600));
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("holysheet.jobIdleSeconds", 3600));
+    private static final long SWEEP_SECONDS = 30;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public JobRegistry() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "JobRegistry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a job to the registry.
+     *
+     * @param job The job
+     * @param <T> The type of job
+     * @return The job
+     * @throws IllegalStateException If a job with the same ID already exists
+     */
+    public <T extends Job> T register(T job) {
+        if (jobs.putIfAbsent(job.getId(), job) != null) {
+            throw new IllegalStateException("A job with the ID " + job.getId() + " already exists");
+        }
+
+        return job;
+    }
+
+    /**
+     * Gets a job of an account.
+     *
+     * @param owner The ID of the account
+     * @param id    The ID of the job
+     * @return The job, if it exists and belongs to the account
+     */
+    public Optional<Job> get(String owner, String id) {
+        return Optional.ofNullable(jobs.get(id)).filter(job -> job.getOwner().equals(owner));
+    }
+
+    /**
+     * Lists the jobs of an account, oldest first.
+     *
+     * @param owner           The ID of the account
+     * @param includeFinished If jobs that have ended should be included
+     * @return The jobs
+     */
+    public List<Job> list(String owner, boolean includeFinished) {
+        return jobs.values().stream()
+                .filter(job -> job.getOwner().equals(owner))
+                .filter(job -> includeFinished || !job.isFinished())
+                .sorted((one, two) -> Long.compare(one.getCreatedAt(), two.getCreatedAt()))
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * Cancels a job of an account.
+     *
+     * @param owner The ID of the account
+     * @param id    The ID of the job
+     * @return The job, if it exists and belongs to the account
+     */
+    public Optional<Job> cancel(String owner, String id) {
+        var job = get(owner, id);
+        job.ifPresent(Job::cancel);
+        return job;
+    }
+
+    /**
+     * @return The amount of jobs that have not ended
+     */
+    public long getActiveCount() {
+        return jobs.values().stream().filter(job -> !job.isFinished()).count();
+    }
+
+    void sweep() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.isFinished() && now - job.getFinishedAt() > TTL_MILLIS);
+
+        jobs.values().stream()
+                .filter(job -> !job.isFinished() && now - job.checkActivity(now) > IDLE_MILLIS)
+                .forEach(job -> {
+                    LOGGER.warn("Cancelling job {} ({}) after making no progress for {}s", job.getId(), job.getName(), IDLE_MILLIS / 1000);
+                    job.cancel();
+                });
+    }
+}
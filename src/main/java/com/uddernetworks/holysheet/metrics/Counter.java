@@ -0,0 +1,51 @@
+package com.uddernetworks.holysheet.metrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, such as requests made or bytes sent.
+ */
+public class Counter extends Metric<Counter.Child> {
+
+    Counter(String name, String help, String... labelNames) {
+        super(name, help, "counter", labelNames, $ -> new Child());
+    }
+
+    /**
+     * Increments the unlabelled counter by one.
+     */
+    public void inc() {
+        labels().inc(1);
+    }
+
+    /**
+     * Increments the unlabelled counter.
+     *
+     * @param amount The amount to add
+     */
+    public void inc(long amount) {
+        labels().inc(amount);
+    }
+
+    @Override
+    protected void writeChild(StringBuilder out, List<String> labelValues, Child child) {
+        writeSample(out, "", labelValues, null, null, String.valueOf(child.get()));
+    }
+
+    public static class Child {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.uddernetworks.holysheet.metrics;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * A value sampled at scrape time from the component that owns it, such as a queue's depth.
+ */
+public class Gauge extends Metric<LongSupplier> {
+
+    private final LongSupplier supplier;
+
+    Gauge(String name, String help, LongSupplier supplier) {
+        super(name, help, "gauge", new String[0], $ -> supplier);
+        this.supplier = supplier;
+        labels();
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    protected void writeChild(StringBuilder out, List<String> labelValues, LongSupplier child) {
+        writeSample(out, "", labelValues, null, null, String.valueOf(child.getAsLong()));
+    }
+}
@@ -0,0 +1,83 @@
+package com.uddernetworks.holysheet.metrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of observed durations in seconds, counted into fixed cumulative buckets.
+ */
+public class Histogram extends Metric<Histogram.Child> {
+
+    public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final double[] buckets;
+
+    Histogram(String name, String help, double[] buckets, String... labelNames) {
+        super(name, help, "histogram", labelNames, $ -> new Child(buckets));
+        this.buckets = buckets;
+    }
+
+    /**
+     * Observes a duration in the unlabelled histogram.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void observeNanos(long nanos) {
+        labels().observeNanos(nanos);
+    }
+
+    @Override
+    protected void writeChild(StringBuilder out, List<String> labelValues, Child child) {
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += child.counts[i].sum();
+            writeSample(out, "_bucket", labelValues, "le", String.valueOf(buckets[i]), String.valueOf(cumulative));
+        }
+
+        cumulative += child.counts[buckets.length].sum();
+        writeSample(out, "_bucket", labelValues, "le", "+Inf", String.valueOf(cumulative));
+        writeSample(out, "_sum", labelValues, null, null, String.valueOf(child.sum.sum()));
+        writeSample(out, "_count", labelValues, null, null, String.valueOf(cumulative));
+    }
+
+    public static class Child {
+        private final double[] buckets;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Child(double[] buckets) {
+            this.buckets = buckets;
+            this.counts = new LongAdder[buckets.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Observes a duration.
+         *
+         * @param nanos The duration in nanoseconds
+         */
+        public void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+
+            int bucket = 0;
+            while (bucket < buckets.length && seconds > buckets[bucket]) {
+                bucket++;
+            }
+
+            counts[bucket].increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * Observes the time since a {@link System#nanoTime()} timestamp.
+         *
+         * @param startNanos The timestamp
+         */
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+    }
+}
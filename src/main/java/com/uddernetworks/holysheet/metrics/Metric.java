@@ -0,0 +1,97 @@
+package com.uddernetworks.holysheet.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A named family of values, one per combination of label values, written in the Prometheus text exposition format.
+ *
+ * @param <T> The type of each labelled child
+ */
+public abstract class Metric<T> {
+
+    private final String name;
+    private final String help;
+    private final String type;
+    private final String[] labelNames;
+    private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+    private final Function<List<String>, T> childFactory;
+
+    protected Metric(String name, String help, String type, String[] labelNames, Function<List<String>, T> childFactory) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.labelNames = labelNames;
+        this.childFactory = childFactory;
+    }
+
+    /**
+     * Gets the child for the given label values, creating it if this is the first time it is used.
+     *
+     * @param labelValues A value for each of the metric's label names, in order
+     * @return The child
+     */
+    public T labels(String... labelValues) {
+        if (labelValues.length != labelNames.length) {
+            throw new IllegalArgumentException(name + " has the labels " + Arrays.toString(labelNames) + ", got " + Arrays.toString(labelValues));
+        }
+
+        return children.computeIfAbsent(List.of(labelValues), childFactory);
+    }
+
+    /**
+     * Writes the {@code HELP} and {@code TYPE} lines of the metric followed by its samples.
+     *
+     * @param out The builder to append to
+     */
+    void write(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        children.forEach((labelValues, child) -> writeChild(out, labelValues, child));
+    }
+
+    protected abstract void writeChild(StringBuilder out, List<String> labelValues, T child);
+
+    /**
+     * Appends a single sample line.
+     *
+     * @param out         The builder to append to
+     * @param suffix      The suffix of the metric's name, e.g. {@code _bucket}
+     * @param labelValues The values of the metric's labels
+     * @param extraLabel  An extra label (e.g. {@code le}) written after the others, or null
+     * @param extraValue  The value of the extra label
+     * @param value       The sample's value
+     */
+    protected void writeSample(StringBuilder out, String suffix, List<String> labelValues, String extraLabel, String extraValue, String value) {
+        out.append(name).append(suffix);
+
+        if (!labelValues.isEmpty() || extraLabel != null) {
+            out.append('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                appendLabel(out, labelNames[i], labelValues.get(i)).append(',');
+            }
+
+            if (extraLabel != null) {
+                appendLabel(out, extraLabel, extraValue).append(',');
+            }
+
+            out.setLength(out.length() - 1);
+            out.append('}');
+        }
+
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static StringBuilder appendLabel(StringBuilder out, String name, String value) {
+        return out.append(name).append("=\"")
+                .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+    }
+
+    public String getName() {
+        return name;
+    }
+}
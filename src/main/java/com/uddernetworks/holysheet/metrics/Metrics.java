@@ -0,0 +1,107 @@
+package com.uddernetworks.holysheet.metrics;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * The process-wide registry of HolySheet's metrics, and the metrics of the transfer pipeline itself. Components owning
+ * a queue or pool register a {@link Gauge} of it here, and everything is exposed by the {@link MetricsServer}.
+ */
+public class Metrics {
+
+    private static final List<Metric<?>> METRICS = new CopyOnWriteArrayList<>();
+
+    private static final Set<String> THROTTLE_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded");
+
+    public static final Histogram CHUNK_ENCODE_SECONDS = histogram("holysheet_chunk_encode_seconds",
+            "Time from a chunk's first to last encoded character", Histogram.LATENCY_BUCKETS);
+
+    public static final Histogram DRIVE_REQUEST_SECONDS = histogram("holysheet_drive_request_seconds",
+            "Latency of Drive requests carrying sheet content", Histogram.LATENCY_BUCKETS, "operation");
+
+    public static final Counter RETRIES = counter("holysheet_retries_total",
+            "Sheet uploads and downloads attempted again after a failure", "operation");
+
+    public static final Counter THROTTLES = counter("holysheet_throttles_total",
+            "Drive requests rejected for exceeding a rate limit", "operation");
+
+    public static final Counter BYTES = counter("holysheet_bytes_total",
+            "Encoded sheet bytes sent to (out) and received from (in) Drive", "direction");
+
+    public static final Counter.Child BYTES_IN = BYTES.labels("in");
+    public static final Counter.Child BYTES_OUT = BYTES.labels("out");
+
+    public static Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public static Histogram histogram(String name, String help, double[] buckets, String... labelNames) {
+        return register(new Histogram(name, help, buckets, labelNames));
+    }
+
+    public static Gauge gauge(String name, String help, LongSupplier supplier) {
+        return register(new Gauge(name, help, supplier));
+    }
+
+    private static <T extends Metric<?>> T register(T metric) {
+        if (METRICS.stream().anyMatch(registered -> registered.getName().equals(metric.getName()))) {
+            throw new IllegalStateException("A metric named " + metric.getName() + " is already registered");
+        }
+
+        METRICS.add(metric);
+        return metric;
+    }
+
+    /**
+     * Records a failed Drive request, counting it as a throttle if Drive rejected it for exceeding a rate limit.
+     *
+     * @param operation The operation that failed, e.g. {@code upload}
+     * @param throwable The failure
+     */
+    public static void recordRetry(String operation, Throwable throwable) {
+        RETRIES.labels(operation).inc();
+
+        if (isThrottle(throwable)) {
+            THROTTLES.labels(operation).inc();
+        }
+    }
+
+    /**
+     * Checks if a failure, or any of its causes, is Drive rejecting a request for exceeding a rate limit.
+     *
+     * @param throwable The failure
+     * @return If the request was throttled
+     */
+    public static boolean isThrottle(Throwable throwable) {
+        for (var cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GoogleJsonResponseException) {
+                var exception = (GoogleJsonResponseException) cause;
+                if (exception.getStatusCode() == 429) {
+                    return true;
+                }
+
+                var details = exception.getDetails();
+                if (exception.getStatusCode() == 403 && details != null && details.getErrors() != null) {
+                    return details.getErrors().stream().anyMatch(error -> THROTTLE_REASONS.contains(error.getReason()));
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes every registered metric in the Prometheus text exposition format.
+     *
+     * @return The scrape body
+     */
+    public static String scrape() {
+        var out = new StringBuilder();
+        METRICS.forEach(metric -> metric.write(out));
+        return out.toString();
+    }
+}
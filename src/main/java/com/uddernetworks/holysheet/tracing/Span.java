@@ -0,0 +1,69 @@
+package com.uddernetworks.holysheet.tracing;
+
+/**
+ * A timed stage of a {@link Trace}, recorded into its trace when closed. Spans are meant for try-with-resources.
+ */
+public class Span implements AutoCloseable {
+
+    static final Span NOOP = new Span(null, null, -1);
+
+    private final Trace trace;
+    private final String name;
+    private final int index;
+    private final String threadName;
+    private final long threadId;
+    private final long startNanos;
+    private long endNanos;
+
+    Span(Trace trace, String name, int index) {
+        this.trace = trace;
+        this.name = name;
+        this.index = index;
+
+        var thread = Thread.currentThread();
+        this.threadName = thread.getName();
+        this.threadId = thread.getId();
+        this.startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        if (trace == null || endNanos != 0) {
+            return;
+        }
+
+        endNanos = System.nanoTime();
+        trace.record(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The index of the sheet this span is for, or -1 if it is not for a single sheet
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+}
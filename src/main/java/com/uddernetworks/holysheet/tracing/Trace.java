@@ -0,0 +1,249 @@
+package com.uddernetworks.holysheet.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * The spans of a single transfer, such as an upload or download. A trace is made {@link #activate() active} on the
+ * threads working on its transfer, so code deep in the pipeline may add spans through {@link #current()} without the
+ * trace being passed down to it. When tracing is disabled, {@link Tracing#start(String)} gives {@link #NOOP}, whose spans
+ * record nothing.
+ */
+public class Trace {
+
+    public static final Trace NOOP = new Trace("noop");
+
+    private static final ThreadLocal<Trace> CURRENT = ThreadLocal.withInitial(() -> NOOP);
+
+    private final String id = UUID.randomUUID().toString();
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final long startEpochMicros = System.currentTimeMillis() * 1000;
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+    private volatile long endNanos;
+
+    Trace(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the trace active on the current thread.
+     *
+     * @return The trace, or {@link #NOOP} if there is none
+     */
+    public static Trace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a span of the whole transfer, e.g. {@code finalize}.
+     *
+     * @param name The name of the stage
+     * @return The span, to be closed when the stage ends
+     */
+    public Span span(String name) {
+        return span(name, -1);
+    }
+
+    /**
+     * Starts a span of a stage of a single sheet, e.g. {@code export}.
+     *
+     * @param name  The name of the stage
+     * @param index The index of the sheet
+     * @return The span, to be closed when the stage ends
+     */
+    public Span span(String name, int index) {
+        return this == NOOP ? Span.NOOP : new Span(this, name, index);
+    }
+
+    /**
+     * Runs a stage of the whole transfer in a span.
+     *
+     * @param name  The name of the stage
+     * @param stage The stage
+     * @param <T>   The stage's result
+     * @param <E>   The exception the stage may throw
+     * @return The stage's result
+     * @throws E If the stage throws it
+     */
+    public <T, E extends Exception> T span(String name, Stage<T, E> stage) throws E {
+        return span(name, -1, stage);
+    }
+
+    /**
+     * Runs a stage of a single sheet in a span.
+     *
+     * @param name  The name of the stage
+     * @param index The index of the sheet
+     * @param stage The stage
+     * @param <T>   The stage's result
+     * @param <E>   The exception the stage may throw
+     * @return The stage's result
+     * @throws E If the stage throws it
+     */
+    public <T, E extends Exception> T span(String name, int index, Stage<T, E> stage) throws E {
+        var span = span(name, index);
+        try {
+            return stage.run();
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Runs a stage of the whole transfer without a result in a span.
+     *
+     * @param name The name of the stage
+     * @param task The stage
+     * @param <E>  The exception the stage may throw
+     * @throws E If the stage throws it
+     */
+    public <E extends Exception> void span(String name, Task<E> task) throws E {
+        span(name, -1, task);
+    }
+
+    /**
+     * Runs a stage of a single sheet without a result in a span.
+     *
+     * @param name  The name of the stage
+     * @param index The index of the sheet
+     * @param task  The stage
+     * @param <E>   The exception the stage may throw
+     * @throws E If the stage throws it
+     */
+    public <E extends Exception> void span(String name, int index, Task<E> task) throws E {
+        var span = span(name, index);
+        try {
+            task.run();
+        } finally {
+            span.close();
+        }
+    }
+
+    void record(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * Makes this the current thread's trace until the returned scope is closed.
+     *
+     * @return The scope
+     */
+    public Scope activate() {
+        var previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> CURRENT.set(previous);
+    }
+
+    /**
+     * Wraps a task to run with this trace active, for tasks handed to another thread.
+     *
+     * @param runnable The task
+     * @return The wrapped task
+     */
+    public Runnable wrap(Runnable runnable) {
+        if (this == NOOP) {
+            return runnable;
+        }
+
+        return () -> {
+            var scope = activate();
+            try {
+                runnable.run();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a task to run with this trace active, for tasks handed to another thread.
+     *
+     * @param supplier The task
+     * @param <T>      The task's result
+     * @return The wrapped task
+     */
+    public <T> Supplier<T> wrap(Supplier<T> supplier) {
+        if (this == NOOP) {
+            return supplier;
+        }
+
+        return () -> {
+            var scope = activate();
+            try {
+                return supplier.get();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * Ends the trace, handing it to {@link Tracing} to be exported or summarised. Spans closed afterwards are ignored by
+     * the export.
+     */
+    public void finish() {
+        if (this == NOOP || endNanos != 0) {
+            return;
+        }
+
+        endNanos = System.nanoTime();
+        Tracing.finished(this);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getStartEpochMicros() {
+        return startEpochMicros;
+    }
+
+    public long getDurationNanos() {
+        return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    public List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * A stage run in a span, with a result.
+     *
+     * @param <T> The result
+     * @param <E> The exception the stage may throw
+     */
+    @FunctionalInterface
+    public interface Stage<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * A stage run in a span, without a result.
+     *
+     * @param <E> The exception the stage may throw
+     */
+    @FunctionalInterface
+    public interface Task<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * Restores the previously active trace when closed.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
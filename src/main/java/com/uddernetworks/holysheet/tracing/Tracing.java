@@ -0,0 +1,161 @@
+package com.uddernetworks.holysheet.tracing;
+
+import com.google.gson.Gson;
+import com.uddernetworks.holysheet.console.ConsoleTableBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Where finished {@link Trace}s go. Traces may be written to a directory in the Chrome trace event format (Viewable in
+ * {@code chrome://tracing} or Perfetto), and/or have a per-stage breakdown logged when they finish. With neither
+ * enabled, traces are not recorded at all.
+ */
+public class Tracing {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Tracing.class);
+
+    private static final Gson GSON = new Gson();
+
+    private static volatile Path exportDirectory;
+    private static volatile boolean printSummary;
+
+    /**
+     * Starts a trace of a transfer.
+     *
+     * @param name The name of the transfer, e.g. {@code upload file.zip}
+     * @return The trace, or {@link Trace#NOOP} if tracing is disabled
+     */
+    public static Trace start(String name) {
+        return isEnabled() ? new Trace(name) : Trace.NOOP;
+    }
+
+    public static boolean isEnabled() {
+        return exportDirectory != null || printSummary;
+    }
+
+    /**
+     * Sets the directory every finished trace is written to as {@code <name>-<id>.json}.
+     *
+     * @param exportDirectory The directory, or null to not export traces
+     */
+    public static void setExportDirectory(Path exportDirectory) {
+        Tracing.exportDirectory = exportDirectory;
+    }
+
+    /**
+     * Sets if a per-stage breakdown is logged when a trace finishes.
+     *
+     * @param printSummary If the summary is logged
+     */
+    public static void setPrintSummary(boolean printSummary) {
+        Tracing.printSummary = printSummary;
+    }
+
+    static void finished(Trace trace) {
+        if (printSummary) {
+            LOGGER.info("Trace summary:{}", summarize(trace));
+        }
+
+        var directory = exportDirectory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                var file = directory.resolve(trace.getName().replaceAll("[^\\w.-]+", "_") + "-" + trace.getId() + ".json");
+                Files.writeString(file, toChromeTrace(trace));
+                LOGGER.info("Wrote trace to {}", file);
+            } catch (IOException e) {
+                LOGGER.error("Unable to write trace " + trace.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Formats a trace in the Chrome trace event format, as complete ({@code X}) events with microsecond timestamps.
+     *
+     * @param trace The trace
+     * @return The JSON document
+     */
+    public static String toChromeTrace(Trace trace) {
+        var events = new ArrayList<Map<String, Object>>();
+        events.add(event(trace.getName(), 0, trace.getStartNanos(), trace.getDurationNanos(), trace, Map.of("id", trace.getId())));
+
+        var threadNames = new HashMap<Long, String>();
+        for (var span : trace.getSpans()) {
+            threadNames.put(span.getThreadId(), span.getThreadName());
+            events.add(event(span.getName(), span.getThreadId(), span.getStartNanos(), span.getDurationNanos(), trace,
+                    span.getIndex() == -1 ? Map.of() : Map.of("sheet", span.getIndex())));
+        }
+
+        threadNames.forEach((tid, name) -> events.add(Map.of(
+                "name", "thread_name",
+                "ph", "M",
+                "pid", 1,
+                "tid", tid,
+                "args", Map.of("name", name)
+        )));
+
+        return GSON.toJson(Map.of("traceEvents", events, "displayTimeUnit", "ms"));
+    }
+
+    private static Map<String, Object> event(String name, long tid, long startNanos, long durationNanos, Trace trace, Map<String, Object> args) {
+        var event = new LinkedHashMap<String, Object>();
+        event.put("name", name);
+        event.put("cat", "holysheet");
+        event.put("ph", "X");
+        event.put("ts", trace.getStartEpochMicros() + (startNanos - trace.getStartNanos()) / 1000);
+        event.put("dur", durationNanos / 1000);
+        event.put("pid", 1);
+        event.put("tid", tid);
+        event.put("args", args);
+        return event;
+    }
+
+    /**
+     * Creates a table of the time spent in each stage of a trace. As sheets are handled in parallel, the total of a stage
+     * may exceed the wall time of the trace.
+     *
+     * @param trace The trace
+     * @return The table
+     */
+    public static String summarize(Trace trace) {
+        var stages = trace.getSpans().stream().collect(Collectors.groupingBy(Span::getName, LinkedHashMap::new, Collectors.toList()));
+
+        var table = new ConsoleTableBuilder()
+                .addColumn("Stage", 16)
+                .addColumn("Count", 6)
+                .addColumn("Total", 10)
+                .addColumn("Mean", 10)
+                .addColumn("Max", 10)
+                .setHorizontalSpacing(3);
+
+        var rows = stages.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().stream().mapToLong(Span::getStartNanos).min().orElse(0)))
+                .map(entry -> {
+                    var durations = entry.getValue().stream().mapToLong(Span::getDurationNanos).summaryStatistics();
+                    return List.of(
+                            entry.getKey(),
+                            String.valueOf(durations.getCount()),
+                            millis(durations.getSum()),
+                            millis((long) durations.getAverage()),
+                            millis(durations.getMax()));
+                })
+                .collect(Collectors.toList());
+
+        return "\n" + trace.getName() + " took " + millis(trace.getDurationNanos()) + "\n" + table.generateTable(rows);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+}
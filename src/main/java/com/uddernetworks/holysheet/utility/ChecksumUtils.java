@@ -0,0 +1,127 @@
+package com.uddernetworks.holysheet.utility;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for the CRC32C checksums stored on sheets and their parents, and the SHA-256 fingerprints of blocks.
+ */
+public class ChecksumUtils {
+
+    // Reversed CRC32C (Castagnoli) polynomial, as used by java.util.zip.CRC32C
+    private static final long POLYNOMIAL = 0x82F63B78L;
+
+    /**
+     * Formats a checksum as the fixed-width hex string stored in file properties.
+     *
+     * @param checksum The checksum value
+     * @return The 8 character hex string
+     */
+    public static String toHex(long checksum) {
+        return String.format("%08x", checksum);
+    }
+
+    /**
+     * Parses a checksum stored by {@link #toHex(long)}.
+     *
+     * @param hex The hex string
+     * @return The checksum value
+     */
+    public static long fromHex(String hex) {
+        return Long.parseLong(hex, 16);
+    }
+
+    /**
+     * Fingerprints a block of original bytes, to recognise it in a later upload.
+     *
+     * @param data   The data
+     * @param offset The offset of the block in the data
+     * @param length The length of the block
+     * @return The SHA-256 of the block as a lowercase hex string
+     */
+    public static String sha256(byte[] data, int offset, int length) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+
+            var hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Combines the CRC32C of two consecutive blocks into the CRC32C of their concatenation, without access to the data.
+     * This is zlib's crc32_combine applied to the Castagnoli polynomial, and allows a file's checksum to be verified
+     * from sheets decoded out of order.
+     *
+     * @param first        The checksum of the first block
+     * @param second       The checksum of the second block
+     * @param secondLength The length in bytes of the second block
+     * @return The checksum of both blocks
+     */
+    public static long combine(long first, long second, long secondLength) {
+        if (secondLength <= 0) {
+            return first;
+        }
+
+        var even = new long[32];
+        var odd = new long[32];
+
+        // The operator for a single zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int i = 1; i < 32; i++) {
+            odd[i] = row;
+            row <<= 1;
+        }
+
+        // Two then four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // Apply secondLength zero bytes to the first checksum, squaring the operator for each bit of the length
+        do {
+            square(even, odd);
+            if ((secondLength & 1) != 0) {
+                first = times(even, first);
+            }
+
+            secondLength >>= 1;
+            if (secondLength == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((secondLength & 1) != 0) {
+                first = times(odd, first);
+            }
+
+            secondLength >>= 1;
+        } while (secondLength != 0);
+
+        return first ^ second;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int i = 0; i < 32; i++) {
+            square[i] = times(matrix, matrix[i]);
+        }
+    }
+}
@@ -78,6 +78,16 @@ public class Utility {
         return Optional.ofNullable(list.get(0));
     }
 
+    /**
+     * Escapes a value to be quoted in a Drive query, such as a name or property value.
+     *
+     * @param value The value
+     * @return The value with its backslashes and single quotes escaped
+     */
+    public static String escapeQuery(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
     /**
      * Gets a human readable form of the given bytes, e.g. 1000 to 1 KB.
      * Source by aioobe on StackOverflow